@@ -0,0 +1,488 @@
+package com.ooliash.usg.export;
+
+import com.ooliash.usg.imaging.JpegHeader;
+import com.ooliash.usg.protocol.CaptureReader;
+import com.ooliash.usg.protocol.CaptureWriter;
+import com.ooliash.usg.protocol.FrameDecoder;
+import com.ooliash.usg.protocol.FrameFormatException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts saved session pictures or a {@link CaptureWriter} capture into a multi-frame DICOM
+ * Secondary Capture object, JPEG frames copied as they are:
+ *
+ * <pre>
+ * java -cp protocol.jar com.ooliash.usg.export.DicomExporter session-directory|capture output
+ * </pre>
+ *
+ * The input is read twice, first for frame count, geometry and scanner parameters, which precede
+ * the pixel data, then to stream the frames, so memory use doesn't depend on the session length.
+ * Frames of other size than the first one (e.g. zoomed in) are left out. Scanner parameters, in
+ * the {@code GET_STATE} reply format, go to Image Comments: from the sidecar of the first picture
+ * or from the replies captured up to the first frame, completed by later ones.
+ */
+public final class DicomExporter {
+    /** Extension of the scanner parameters sidecar saved next to a picture. */
+    public static final String STATE_EXTENSION = ".state";
+    public static final String PICTURE_EXTENSION = ".jpg";
+    public static final String DICOM_EXTENSION = ".dcm";
+
+    private static final String MULTI_FRAME_GRAYSCALE_BYTE_SC = "1.2.840.10008.5.1.4.1.1.7.2";
+    private static final String MULTI_FRAME_TRUE_COLOR_SC = "1.2.840.10008.5.1.4.1.1.7.4";
+    private static final int FRAME_TIME = 0x00181063;
+    private static final int DEFAULT_MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+    private static final int MAX_COMMAND_LENGTH = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // GET_STATE reply format and the single value replies mapping to it.
+    private static final char ENTRY_SEPARATOR = ';';
+    private static final char VALUE_SEPARATOR = '=';
+    private static final String[][] VALUE_COMMANDS = {
+            { "GET_GAIN", "GAIN" }, { "GAIN_UP", "GAIN" }, { "GAIN_DOWN", "GAIN" },
+            { "GET_IMAGING_RANGE", "IMAGING_RANGE" }, { "AREA_UP", "IMAGING_RANGE" },
+            { "AREA_DOWN", "IMAGING_RANGE" }, { "GET_TX_FREQUENCY", "TX_FREQUENCY" },
+            { "GET_TX_TYPE", "TX_TYPE" }, { "GET_FPS", "FPS" } };
+    private static final String GET_PICTURE = "GET_PICTURE";
+    // "GET_PICTURE:id" is answered by a picture or, if it didn't change, NOT_MODIFIED.
+    private static final String CONDITIONAL_GET_PICTURE = GET_PICTURE + ":";
+    private static final byte[] NOT_MODIFIED = "NOT_MODIFIED".getBytes(ASCII);
+
+    private static final FilenameFilter PICTURE_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(File directory, String name) {
+            return name.endsWith(PICTURE_EXTENSION);
+        }
+    };
+
+    private final int maxFrameLength;
+
+    /**
+     * @param maxFrameLength Longest reply frame expected in captures.
+     */
+    public DicomExporter(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: DicomExporter session-directory|capture-file output-file");
+            System.exit(1);
+        }
+        File input = new File(args[0]);
+        DicomExporter exporter = new DicomExporter(DEFAULT_MAX_FRAME_LENGTH);
+        long startNanos = System.nanoTime();
+        int frames = input.isDirectory()
+                ? exporter.exportPictures(input, new File(args[1]))
+                : exporter.exportCapture(input, new File(args[1]));
+        System.out.println("Exported " + frames + " frames in "
+                + (System.nanoTime() - startNanos) / 1000000 + " ms");
+    }
+
+    /**
+     * @return Pictures of the session directory in the order they were saved.
+     */
+    public static File[] listPictures(File sessionDirectory) {
+        File[] pictures = sessionDirectory.listFiles(PICTURE_FILTER);
+        if (pictures == null) {
+            return new File[0];
+        }
+        Arrays.sort(pictures);  // Names are save times.
+        return pictures;
+    }
+
+    /**
+     * Exports saved pictures of a session.
+     * @return Number of frames exported, 0 if there was nothing to export and no file was written.
+     * @throws IOException If a picture can't be read or the output written.
+     */
+    public int exportPictures(File sessionDirectory, File output) throws IOException {
+        File[] pictures = listPictures(sessionDirectory);
+        JpegHeader first = null;
+        File firstPicture = null;
+        int frames = 0;
+        long lastTime = 0;
+        for (File picture : pictures) {
+            JpegHeader header = readHeader(picture);
+            if (header == null) {
+                continue;
+            }
+            if (first == null) {
+                first = header;
+                firstPicture = picture;
+            }
+            if (header.sameGeometry(first)) {
+                frames++;
+                lastTime = picture.lastModified();
+            }
+        }
+        if (frames == 0) {
+            return 0;
+        }
+
+        Map<String, String> parameters = new TreeMap<String, String>();
+        readState(stateFile(firstPicture), parameters);
+        long firstTime = firstPicture.lastModified();
+        double frameTimeMillis = frames > 1 ? (lastTime - firstTime) / (double) (frames - 1) : 0;
+
+        DicomWriter writer = startObject(output, first, frames, frameTimeMillis, parameters,
+                sessionDirectory.getName(), new Date(firstTime));
+        try {
+            for (File picture : pictures) {
+                JpegHeader header = readHeader(picture);
+                if (header == null || !header.sameGeometry(first)) {
+                    continue;
+                }
+                InputStream input = new FileInputStream(picture);
+                try {
+                    writer.writeFrame(input, (int) picture.length());
+                } finally {
+                    input.close();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return frames;
+    }
+
+    /**
+     * Exports pictures received in a traffic capture, i.e. the replies to GET_PICTURE and to its
+     * conditional form other than NOT_MODIFIED.
+     * @return Number of frames exported, 0 if there was nothing to export and no file was written.
+     * @throws IOException If the capture can't be read or the output written.
+     */
+    public int exportCapture(File capture, File output) throws IOException {
+        JpegHeader first = null;
+        int frames = 0;
+        long firstNanos = 0;
+        long lastNanos = 0;
+        Map<String, String> parameters;
+        CaptureFrames captureFrames = new CaptureFrames(capture);
+        try {
+            while (captureFrames.next()) {
+                JpegHeader header = captureFrames.header();
+                if (header == null) {
+                    continue;
+                }
+                if (first == null) {
+                    first = header;
+                    firstNanos = captureFrames.timestampNanos;
+                }
+                if (header.sameGeometry(first)) {
+                    frames++;
+                    lastNanos = captureFrames.timestampNanos;
+                }
+            }
+            parameters = captureFrames.parameters;
+        } finally {
+            captureFrames.close();
+        }
+        if (frames == 0) {
+            return 0;
+        }
+
+        // The capture file was last modified when the capture stopped, near its last record.
+        Date firstFrameTime = new Date(capture.lastModified()
+                - (captureFrames.timestampNanos - firstNanos) / 1000000);
+        double frameTimeMillis = frames > 1 ? (lastNanos - firstNanos) / 1e6 / (frames - 1) : 0;
+        DicomWriter writer = startObject(output, first, frames, frameTimeMillis, parameters,
+                capture.getName(), firstFrameTime);
+        try {
+            captureFrames = new CaptureFrames(capture);
+            try {
+                while (captureFrames.next()) {
+                    JpegHeader header = captureFrames.header();
+                    if (header != null && header.sameGeometry(first)) {
+                        FrameDecoder replies = captureFrames.replies;
+                        writer.writeFrame(replies.window(), replies.frameOffset(),
+                                replies.frameLength());
+                    }
+                }
+            } finally {
+                captureFrames.close();
+            }
+        } finally {
+            writer.close();
+        }
+        return frames;
+    }
+
+    /**
+     * @return Parameters sidecar of the picture.
+     */
+    public static File stateFile(File picture) {
+        String name = picture.getName();
+        return new File(picture.getParentFile(),
+                name.substring(0, name.length() - PICTURE_EXTENSION.length()) + STATE_EXTENSION);
+    }
+
+    /**
+     * Writes the data set up to the pixel data, which the caller continues with.
+     */
+    private static DicomWriter startObject(File output, JpegHeader header, int frames,
+            double frameTimeMillis, Map<String, String> parameters, String description,
+            Date time) throws IOException {
+        if (!header.baseline || header.precision != 8
+                || (header.components != 1 && header.components != 3)) {
+            throw new IOException("Only 8-bit baseline JPEG pictures can be exported");
+        }
+        boolean color = header.components == 3;
+        String sopClassUid = color ? MULTI_FRAME_TRUE_COLOR_SC : MULTI_FRAME_GRAYSCALE_BYTE_SC;
+        String sopInstanceUid = DicomWriter.newUid();
+
+        DicomWriter writer = new DicomWriter(
+                new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE),
+                sopClassUid, sopInstanceUid, DicomWriter.JPEG_BASELINE);
+        try {
+            writer.writeString(0x00080008, "CS", "DERIVED\\SECONDARY");
+            writer.writeString(0x00080016, "UI", sopClassUid);
+            writer.writeString(0x00080018, "UI", sopInstanceUid);
+            writer.writeString(0x00080020, "DA", new SimpleDateFormat("yyyyMMdd").format(time));
+            writer.writeString(0x00080030, "TM", new SimpleDateFormat("HHmmss").format(time));
+            writer.writeString(0x00080050, "SH", null);     // Accession Number
+            writer.writeString(0x00080060, "CS", "US");
+            writer.writeString(0x00080064, "CS", "WSD");    // Conversion Type: workstation
+            writer.writeString(0x00080090, "PN", null);     // Referring Physician's Name
+            writer.writeString(0x0008103E, "LO", description);
+            writer.writeString(0x00100010, "PN", null);     // Patient's Name
+            writer.writeString(0x00100020, "LO", null);     // Patient ID
+            writer.writeString(0x00100030, "DA", null);     // Patient's Birth Date
+            writer.writeString(0x00100040, "CS", null);     // Patient's Sex
+            writer.writeString(FRAME_TIME, "DS", String.format(Locale.US, "%.1f", frameTimeMillis));
+            writer.writeString(0x0020000D, "UI", DicomWriter.newUid());    // Study Instance UID
+            writer.writeString(0x0020000E, "UI", DicomWriter.newUid());    // Series Instance UID
+            writer.writeString(0x00200010, "SH", null);     // Study ID
+            writer.writeString(0x00200011, "IS", "1");      // Series Number
+            writer.writeString(0x00200013, "IS", "1");      // Instance Number
+            writer.writeString(0x00200020, "CS", null);     // Patient Orientation
+            writer.writeString(0x00204000, "LT", formatState(parameters));
+            writer.writeUnsignedShort(0x00280002, header.components);
+            writer.writeString(0x00280004, "CS", color ? "YBR_FULL_422" : "MONOCHROME2");
+            if (color) {
+                writer.writeUnsignedShort(0x00280006, 0);   // Planar Configuration
+            }
+            writer.writeString(0x00280008, "IS", Integer.toString(frames));
+            writer.writeAttributeTag(0x00280009, FRAME_TIME);   // Frame Increment Pointer
+            writer.writeUnsignedShort(0x00280010, header.height);
+            writer.writeUnsignedShort(0x00280011, header.width);
+            writer.writeUnsignedShort(0x00280100, 8);       // Bits Allocated
+            writer.writeUnsignedShort(0x00280101, 8);       // Bits Stored
+            writer.writeUnsignedShort(0x00280102, 7);       // High Bit
+            writer.writeUnsignedShort(0x00280103, 0);       // Pixel Representation
+            writer.writeString(0x00282110, "CS", "01");     // Lossy Image Compression
+            writer.startPixelData();
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+        return writer;
+    }
+
+    private static JpegHeader readHeader(File picture) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(picture), 4096);
+        try {
+            return JpegHeader.read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the sidecar, if there is one, into the map.
+     */
+    private static void readState(File stateFile, Map<String, String> parameters)
+            throws IOException {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(stateFile));
+        try {
+            String line = reader.readLine();
+            if (line != null) {
+                parseState(line, parameters, true);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a GET_STATE reply into the map.
+     * @param replace True to replace values already in the map, false to add missing ones only.
+     * @return False if the text isn't a state reply.
+     */
+    private static boolean parseState(String state, Map<String, String> parameters,
+            boolean replace) {
+        if (state.indexOf(VALUE_SEPARATOR) < 0) {
+            return false;
+        }
+        int start = 0;
+        while (start < state.length()) {
+            int end = state.indexOf(ENTRY_SEPARATOR, start);
+            if (end < 0) {
+                end = state.length();
+            }
+            int separator = state.indexOf(VALUE_SEPARATOR, start);
+            if (separator > start && separator < end) {
+                String key = state.substring(start, separator).trim();
+                if (!key.equals("VERSION") && (replace || !parameters.containsKey(key))) {
+                    parameters.put(key, state.substring(separator + 1, end).trim());
+                }
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    private static String formatState(Map<String, String> parameters) {
+        StringBuilder state = new StringBuilder();
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            if (state.length() > 0) {
+                state.append(ENTRY_SEPARATOR);
+            }
+            state.append(entry.getKey()).append(VALUE_SEPARATOR).append(entry.getValue());
+        }
+        return state.toString();
+    }
+
+    /**
+     * Goes through the pictures received in a capture, pairing reply frames with the commands
+     * sent before them, as the client waits for each reply. Other replies update parameters.
+     */
+    private final class CaptureFrames implements Closeable {
+        final CaptureReader reader;
+        final FrameDecoder commands = new FrameDecoder(MAX_COMMAND_LENGTH);
+        final FrameDecoder replies = new FrameDecoder(maxFrameLength);
+        final ArrayDeque<String> pendingCommands = new ArrayDeque<String>();
+        final Map<String, String> parameters = new TreeMap<String, String>();
+        long timestampNanos;
+        private boolean pictureSeen;
+        private int chunkOffset;
+        private int chunkLength;
+
+        CaptureFrames(File capture) throws IOException {
+            reader = new CaptureReader(new FileInputStream(capture));
+        }
+
+        /**
+         * Moves to the next GET_PICTURE reply, the frame of {@link #replies}.
+         * @return False at the end of the capture.
+         */
+        boolean next() throws IOException {
+            while (true) {
+                if (replies.next()) {
+                    String command = pendingCommands.poll();
+                    if (command == null || replies.isError()) {
+                        continue;
+                    }
+                    if (command.equals(GET_PICTURE)
+                            || command.startsWith(CONDITIONAL_GET_PICTURE)) {
+                        if (isNotModified()) {
+                            continue;   // The previous picture, already exported.
+                        }
+                        pictureSeen = true;
+                        return true;
+                    }
+                    replyReceived(command);
+                } else if (chunkOffset < chunkLength) {
+                    int count = replies.feed(reader.data(), chunkOffset, chunkLength - chunkOffset);
+                    if (count == 0) {
+                        throw new FrameFormatException("Reply longer than " + maxFrameLength);
+                    }
+                    chunkOffset += count;
+                } else if (!reader.next()) {
+                    return false;
+                } else if (reader.direction() == CaptureWriter.DIRECTION_SENT) {
+                    commandsSent();
+                } else {
+                    timestampNanos = reader.timestampNanos();
+                    chunkOffset = 0;
+                    chunkLength = reader.length();
+                }
+            }
+        }
+
+        /**
+         * @return Header of the current picture, null if it isn't a JPEG.
+         */
+        JpegHeader header() {
+            return JpegHeader.parse(replies.window(), replies.frameOffset(), replies.frameLength());
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        private boolean isNotModified() {
+            if (replies.frameLength() != NOT_MODIFIED.length) {
+                return false;
+            }
+            byte[] window = replies.window();
+            int offset = replies.frameOffset();
+            for (int i = 0; i < NOT_MODIFIED.length; i++) {
+                if (window[offset + i] != NOT_MODIFIED[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void commandsSent() throws IOException {
+            int fed = 0;
+            while (fed < reader.length()) {
+                int count = commands.feed(reader.data(), fed, reader.length() - fed);
+                fed += count;
+                boolean decoded = false;
+                while (commands.next()) {
+                    pendingCommands.add(new String(commands.window(), commands.frameOffset(),
+                            commands.frameLength(), ASCII));
+                    decoded = true;
+                }
+                if (count == 0 && !decoded) {
+                    throw new FrameFormatException("Command longer than " + MAX_COMMAND_LENGTH);
+                }
+            }
+        }
+
+        private void replyReceived(String command) {
+            if (command.startsWith(GET_PICTURE)) {
+                return;     // Zoomed in pictures.
+            }
+            String reply = new String(replies.window(), replies.frameOffset(),
+                    replies.frameLength(), ASCII);
+            // Values known at the first picture are kept, later ones only fill the gaps.
+            if (parseState(reply, parameters, !pictureSeen)) {
+                return;
+            }
+            for (String[] valueCommand : VALUE_COMMANDS) {
+                if (command.equals(valueCommand[0])) {
+                    if (!pictureSeen || !parameters.containsKey(valueCommand[1])) {
+                        parameters.put(valueCommand[1], reply.trim());
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
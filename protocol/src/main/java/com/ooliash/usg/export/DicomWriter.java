@@ -0,0 +1,239 @@
+package com.ooliash.usg.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Streams a DICOM Part 10 file: preamble, file meta information, then data elements in explicit
+ * VR little endian and encapsulated pixel data, one fragment per compressed frame. Nothing but the
+ * file meta information is kept in memory, so frames go from their source to the output as they
+ * are copied, whatever their count.
+ *
+ * Elements must be written in ascending tag order, pixel data last; there are no sequences.
+ */
+public final class DicomWriter implements Closeable {
+    /** JPEG Baseline (Process 1) transfer syntax. */
+    public static final String JPEG_BASELINE = "1.2.840.10008.1.2.4.50";
+
+    private static final String IMPLEMENTATION_CLASS_UID = "2.25.98276158021645394357182468201";
+    private static final String IMPLEMENTATION_VERSION = "USG_GLASS_1";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int PREAMBLE_LENGTH = 128;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final int PIXEL_DATA = 0x7FE00010;
+    private static final int ITEM = 0xFFFEE000;
+    private static final int SEQUENCE_DELIMITATION_ITEM = 0xFFFEE0DD;
+    private static final int UNDEFINED_LENGTH = 0xFFFFFFFF;
+
+    private final OutputStream output;
+    private final byte[] header = new byte[12];
+    private byte[] copyBuffer;
+    private int lastTag;
+    private boolean inPixelData;
+
+    /**
+     * Writes the preamble and file meta information.
+     * @param output Stream to write to, preferably buffered. Closed with the writer.
+     * @param sopClassUid SOP class of the object.
+     * @param sopInstanceUid SOP instance of the object, also written as (0008,0018) by the caller.
+     * @param transferSyntaxUid Transfer syntax of the pixel data, e.g. {@link #JPEG_BASELINE}.
+     */
+    public DicomWriter(OutputStream output, String sopClassUid, String sopInstanceUid,
+            String transferSyntaxUid) throws IOException {
+        this.output = output;
+        output.write(new byte[PREAMBLE_LENGTH]);
+        output.write("DICM".getBytes(ASCII));
+
+        // Group length leads the group, so the group is formatted first.
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        DicomWriter metaWriter = new DicomWriter(meta);
+        metaWriter.writeBytes(0x00020001, "OB", new byte[] { 0, 1 });
+        metaWriter.writeString(0x00020002, "UI", sopClassUid);
+        metaWriter.writeString(0x00020003, "UI", sopInstanceUid);
+        metaWriter.writeString(0x00020010, "UI", transferSyntaxUid);
+        metaWriter.writeString(0x00020012, "UI", IMPLEMENTATION_CLASS_UID);
+        metaWriter.writeString(0x00020013, "SH", IMPLEMENTATION_VERSION);
+        writeUnsignedLong(0x00020000, meta.size());
+        meta.writeTo(output);
+        lastTag = 0x0002FFFF;
+    }
+
+    private DicomWriter(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * @return New UID from a random UUID, in the 2.25 arc which needs no registered root.
+     */
+    public static String newUid() {
+        String hex = UUID.randomUUID().toString().replace("-", "");
+        return "2.25." + new BigInteger(hex, 16);
+    }
+
+    /**
+     * Writes a text element, padded to even length as its VR requires. Null writes it empty.
+     */
+    public void writeString(int tag, String vr, String value) throws IOException {
+        byte[] bytes = value != null ? value.getBytes(ASCII) : new byte[0];
+        int length = bytes.length + (bytes.length & 1);
+        writeHeader(tag, vr, length);
+        output.write(bytes);
+        if (length != bytes.length) {
+            output.write(vr.equals("UI") ? 0 : ' ');
+        }
+    }
+
+    /**
+     * Writes an US element.
+     */
+    public void writeUnsignedShort(int tag, int value) throws IOException {
+        writeHeader(tag, "US", 2);
+        header[0] = (byte) value;
+        header[1] = (byte) (value >> 8);
+        output.write(header, 0, 2);
+    }
+
+    /**
+     * Writes an UL element.
+     */
+    public void writeUnsignedLong(int tag, int value) throws IOException {
+        writeHeader(tag, "UL", 4);
+        putInt(header, 0, value);
+        output.write(header, 0, 4);
+    }
+
+    /**
+     * Writes an AT element pointing to the given tag.
+     */
+    public void writeAttributeTag(int tag, int value) throws IOException {
+        writeHeader(tag, "AT", 4);
+        putTag(header, 0, value);
+        output.write(header, 0, 4);
+    }
+
+    /**
+     * Writes an OB element, padded to even length.
+     */
+    public void writeBytes(int tag, String vr, byte[] value) throws IOException {
+        int length = value.length + (value.length & 1);
+        writeHeader(tag, vr, length);
+        output.write(value);
+        if (length != value.length) {
+            output.write(0);
+        }
+    }
+
+    /**
+     * Starts encapsulated pixel data of undefined length with an empty offset table, which is
+     * allowed as there is one fragment per frame.
+     */
+    public void startPixelData() throws IOException {
+        writeHeader(PIXEL_DATA, "OB", UNDEFINED_LENGTH);
+        writeItemHeader(ITEM, 0);
+        inPixelData = true;
+    }
+
+    /**
+     * Writes one compressed frame as a pixel data fragment.
+     */
+    public void writeFrame(byte[] frame, int offset, int length) throws IOException {
+        checkPixelData();
+        writeItemHeader(ITEM, length + (length & 1));
+        output.write(frame, offset, length);
+        if ((length & 1) != 0) {
+            output.write(0);
+        }
+    }
+
+    /**
+     * Copies one compressed frame of known length from the stream as a pixel data fragment.
+     */
+    public void writeFrame(InputStream frame, int length) throws IOException {
+        checkPixelData();
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER_SIZE];
+        }
+        writeItemHeader(ITEM, length + (length & 1));
+        int remaining = length;
+        while (remaining > 0) {
+            int count = frame.read(copyBuffer, 0, Math.min(remaining, copyBuffer.length));
+            if (count < 0) {
+                throw new IOException("Frame shorter than " + length + " bytes");
+            }
+            output.write(copyBuffer, 0, count);
+            remaining -= count;
+        }
+        if ((length & 1) != 0) {
+            output.write(0);
+        }
+    }
+
+    /**
+     * Ends the pixel data, if started, and closes the output.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (inPixelData) {
+                inPixelData = false;
+                writeItemHeader(SEQUENCE_DELIMITATION_ITEM, 0);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private void checkPixelData() {
+        if (!inPixelData) {
+            throw new IllegalStateException("Pixel data not started");
+        }
+    }
+
+    private void writeHeader(int tag, String vr, int length) throws IOException {
+        if (inPixelData || (tag ^ Integer.MIN_VALUE) <= (lastTag ^ Integer.MIN_VALUE)) {
+            throw new IllegalStateException(String.format("Element %08X out of order", tag));
+        }
+        lastTag = tag;
+        putTag(header, 0, tag);
+        header[4] = (byte) vr.charAt(0);
+        header[5] = (byte) vr.charAt(1);
+        if (vr.equals("OB") || vr.equals("OW") || vr.equals("UN") || vr.equals("UT")
+                || vr.equals("SQ")) {
+            header[6] = 0;
+            header[7] = 0;
+            putInt(header, 8, length);
+            output.write(header, 0, 12);
+        } else {
+            header[6] = (byte) length;
+            header[7] = (byte) (length >> 8);
+            output.write(header, 0, 8);
+        }
+    }
+
+    private void writeItemHeader(int tag, int length) throws IOException {
+        putTag(header, 0, tag);
+        putInt(header, 4, length);
+        output.write(header, 0, 8);
+    }
+
+    private static void putTag(byte[] buffer, int offset, int tag) {
+        buffer[offset] = (byte) (tag >> 16);
+        buffer[offset + 1] = (byte) (tag >> 24);
+        buffer[offset + 2] = (byte) tag;
+        buffer[offset + 3] = (byte) (tag >> 8);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,64 @@
+package com.ooliash.usg.imaging;
+
+/**
+ * Contrast enhancement stretching the picture's gray levels between its low and high percentiles
+ * over the whole range. The stretch is limited, so a flat, dark picture isn't turned into
+ * amplified noise. The histogram is taken from every other pixel of every other row.
+ */
+public final class ContrastFilter implements PictureFilter {
+    private static final int LEVELS = 256;
+    private static final int LOW_PERCENTILE = 1;
+    private static final int HIGH_PERCENTILE = 99;
+    private static final int MAX_GAIN = 4;
+
+    private final int[] histogram = new int[LEVELS];
+    private final byte[] table = new byte[LEVELS];
+
+    @Override
+    public void prepare(byte[] source, int width, int height) {
+        int[] counts = histogram;
+        for (int i = 0; i < LEVELS; i++) {
+            counts[i] = 0;
+        }
+        int samples = 0;
+        for (int y = 0; y < height; y += 2) {
+            int end = (y + 1) * width;
+            for (int i = y * width; i < end; i += 2) {
+                counts[source[i] & 0xFF]++;
+                samples++;
+            }
+        }
+
+        int low = level(counts, samples * LOW_PERCENTILE / 100);
+        int high = level(counts, samples * HIGH_PERCENTILE / 100);
+        int range = Math.max(high - low, (LEVELS - 1) / MAX_GAIN);
+        for (int i = 0; i < LEVELS; i++) {
+            int value = (i - low) * (LEVELS - 1) / range;
+            table[i] = (byte) Math.max(0, Math.min(LEVELS - 1, value));
+        }
+    }
+
+    @Override
+    public void filterRows(byte[] source, byte[] target, int width, int height, int top,
+            int bottom) {
+        byte[] lookup = table;
+        int end = bottom * width;
+        for (int i = top * width; i < end; i++) {
+            target[i] = lookup[source[i] & 0xFF];
+        }
+    }
+
+    /**
+     * @return Lowest level with more than the given number of samples below or at it.
+     */
+    private static int level(int[] counts, int rank) {
+        int total = 0;
+        for (int i = 0; i < LEVELS; i++) {
+            total += counts[i];
+            if (total > rank) {
+                return i;
+            }
+        }
+        return LEVELS - 1;
+    }
+}
@@ -0,0 +1,253 @@
+package com.ooliash.usg.imaging;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the enabled {@link PictureFilter}s over ARGB pictures, treated as grayscale, in bands of
+ * rows spread over all cores; the calling thread works on bands too. Gray planes are reused from
+ * picture to picture.
+ *
+ * Every filter has a time budget per picture. Bands not started within it are passed on
+ * unfiltered, so a filter too slow for the device leaves part of the picture as it was rather
+ * than holding the frame rate down.
+ */
+public final class FilterPipeline implements Closeable {
+    private static final int BAND_ROWS = 16;
+
+    // Kinds of work spread over the bands.
+    private static final int UNPACK = 0;
+    private static final int FILTER = 1;
+    private static final int PACK = 2;
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final ExecutorService executor;
+    private final int helpers;
+    private final AtomicInteger nextBand = new AtomicInteger();
+    private final AtomicInteger skippedBands = new AtomicInteger();
+    private final Runnable helper = new Runnable() {
+        @Override
+        public void run() {
+            runBands();
+            synchronized (FilterPipeline.this) {
+                if (--pendingHelpers == 0) {
+                    FilterPipeline.this.notifyAll();
+                }
+            }
+        }
+    };
+
+    // Work in progress, set before the helpers start.
+    private int work;
+    private PictureFilter filter;
+    private long deadlineNanos;
+    private int[] pixels;
+    private byte[] source = new byte[0];
+    private byte[] target = new byte[0];
+    private int width;
+    private int height;
+    private int bands;
+    private int pendingHelpers;     // Guarded by this.
+
+    private static final class Stage {
+        final PictureFilter filter;
+        final long budgetNanos;
+        volatile boolean enabled;
+        long lastNanos;
+        int lastSkippedBands;
+
+        Stage(PictureFilter filter, long budgetNanos) {
+            this.filter = filter;
+            this.budgetNanos = budgetNanos;
+        }
+    }
+
+    /**
+     * @param threads Threads to filter on, the calling one included.
+     */
+    public FilterPipeline(int threads) {
+        helpers = Math.max(0, threads - 1);
+        executor = helpers > 0 ? Executors.newFixedThreadPool(helpers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "USG filter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * Appends a filter, disabled.
+     * @param budgetMicros Time the filter may take per picture.
+     * @return Index of the filter for the other methods.
+     */
+    public int add(PictureFilter filter, int budgetMicros) {
+        stages.add(new Stage(filter, budgetMicros * 1000L));
+        return stages.size() - 1;
+    }
+
+    public void setEnabled(int index, boolean enabled) {
+        stages.get(index).enabled = enabled;
+    }
+
+    public boolean isEnabled(int index) {
+        return stages.get(index).enabled;
+    }
+
+    /**
+     * @return True if any filter is enabled.
+     */
+    public boolean isActive() {
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).enabled) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Filters the picture in place with the enabled filters, in the order they were added.
+     * Pixels come out gray, opaque.
+     * @return True if any filter ran.
+     */
+    public boolean process(int[] argb, int pictureWidth, int pictureHeight) {
+        if (!isActive()) {
+            return false;
+        }
+        int size = pictureWidth * pictureHeight;
+        if (source.length < size) {
+            source = new byte[size];
+            target = new byte[size];
+        }
+        pixels = argb;
+        width = pictureWidth;
+        height = pictureHeight;
+        bands = (pictureHeight + BAND_ROWS - 1) / BAND_ROWS;
+
+        run(UNPACK, null, Long.MAX_VALUE);
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            if (!stage.enabled) {
+                continue;
+            }
+            long startNanos = System.nanoTime();
+            stage.filter.prepare(source, width, height);
+            skippedBands.set(0);
+            run(FILTER, stage.filter, startNanos + stage.budgetNanos);
+            stage.lastNanos = System.nanoTime() - startNanos;
+            stage.lastSkippedBands = skippedBands.get();
+            byte[] filtered = target;
+            target = source;
+            source = filtered;
+        }
+        run(PACK, null, Long.MAX_VALUE);
+        pixels = null;
+        return true;
+    }
+
+    /**
+     * @return Time the filter took on the last picture it ran on.
+     */
+    public long getLastNanos(int index) {
+        return stages.get(index).lastNanos;
+    }
+
+    /**
+     * @return Bands of the last picture the filter left unfiltered, being out of time.
+     */
+    public int getLastSkippedBands(int index) {
+        return stages.get(index).lastSkippedBands;
+    }
+
+    /**
+     * Stops the filter threads. The pipeline can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private void run(int newWork, PictureFilter newFilter, long newDeadlineNanos) {
+        work = newWork;
+        filter = newFilter;
+        deadlineNanos = newDeadlineNanos;
+        nextBand.set(0);
+        int started = Math.max(0, Math.min(helpers, bands - 1));
+        synchronized (this) {
+            pendingHelpers = started;
+        }
+        for (int i = 0; i < started; i++) {
+            try {
+                executor.execute(helper);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    pendingHelpers--;   // Closed meanwhile, the calling thread does it all.
+                }
+            }
+        }
+        runBands();
+        boolean interrupted = false;
+        synchronized (this) {
+            while (pendingHelpers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;     // Helpers still write to the planes, wait for them.
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runBands() {
+        int band;
+        while ((band = nextBand.getAndIncrement()) < bands) {
+            int top = band * BAND_ROWS;
+            int bottom = Math.min(top + BAND_ROWS, height);
+            switch (work) {
+                case UNPACK:
+                    unpack(top * width, bottom * width);
+                    break;
+                case FILTER:
+                    if (System.nanoTime() < deadlineNanos) {
+                        filter.filterRows(source, target, width, height, top, bottom);
+                    } else {
+                        System.arraycopy(source, top * width, target, top * width,
+                                (bottom - top) * width);
+                        skippedBands.incrementAndGet();
+                    }
+                    break;
+                case PACK:
+                    pack(top * width, bottom * width);
+                    break;
+            }
+        }
+    }
+
+    private void unpack(int start, int end) {
+        for (int i = start; i < end; i++) {
+            int pixel = pixels[i];
+            source[i] = (byte) ((((pixel >> 16) & 0xFF) + ((pixel >> 7) & 0x1FE) + (pixel & 0xFF))
+                    >> 2);
+        }
+    }
+
+    private void pack(int start, int end) {
+        for (int i = start; i < end; i++) {
+            int gray = source[i] & 0xFF;
+            pixels[i] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+        }
+    }
+}
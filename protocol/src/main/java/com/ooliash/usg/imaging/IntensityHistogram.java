@@ -0,0 +1,174 @@
+package com.ooliash.usg.imaging;
+
+/**
+ * Gray level histogram of a stream of pictures, kept up to date at a bounded cost per picture.
+ * Each picture adds a sparse grid of samples, at most the number given, and replaces what the
+ * same phase of the grid added {@link #PHASES} pictures before. The grid is shifted by half its
+ * spacing from phase to phase, so the histogram covers four times as many pixels as a single
+ * picture is sampled at, lagging a few pictures behind.
+ *
+ * Only the sampled rows are read, so pictures held outside the Java heap don't have to be
+ * copied whole.
+ */
+public final class IntensityHistogram {
+    public static final int LEVELS = 256;
+    /** Pictures it takes to replace all the samples. */
+    public static final int PHASES = 4;
+
+    /**
+     * Source of picture rows.
+     */
+    public interface RowReader {
+        /**
+         * Reads the ARGB pixels of a row, treated as gray.
+         * @param row Destination, at least as long as the picture is wide.
+         */
+        void readRow(int y, int[] row);
+    }
+
+    private final int maxSamples;
+    private final int[][] phaseCounts = new int[PHASES][LEVELS];
+    private final int[] phaseSamples = new int[PHASES];
+    private final int[] counts = new int[LEVELS];
+    private int samples;
+    private int phase;
+    private int filledPhases;
+    private int width;
+    private int height;
+    private int spacing;
+    private int[] row = new int[0];
+
+    /**
+     * @param maxSamples Samples taken of a picture at most.
+     */
+    public IntensityHistogram(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Adds samples of the picture, replacing the oldest. A picture of another size than the
+     * previous one starts the histogram over.
+     */
+    public void add(RowReader reader, int width, int height) {
+        if (width != this.width || height != this.height) {
+            reset();
+            this.width = width;
+            this.height = height;
+            spacing = spacing(width, height, maxSamples);
+            if (row.length < width) {
+                row = new int[width];
+            }
+        }
+        int[] phaseCount = phaseCounts[phase];
+        for (int i = 0; i < LEVELS; i++) {
+            counts[i] -= phaseCount[i];
+            phaseCount[i] = 0;
+        }
+        samples -= phaseSamples[phase];
+
+        int top = (phase & 1) * (spacing / 2);
+        int left = (phase >> 1) * (spacing / 2);
+        int added = 0;
+        for (int y = top; y < height; y += spacing) {
+            reader.readRow(y, row);
+            for (int x = left; x < width; x += spacing) {
+                int pixel = row[x];
+                int gray = (((pixel >> 16) & 0xFF) + ((pixel >> 7) & 0x1FE) + (pixel & 0xFF)) >> 2;
+                phaseCount[gray]++;
+                counts[gray]++;
+                added++;
+            }
+        }
+        phaseSamples[phase] = added;
+        samples += added;
+        phase = (phase + 1) % PHASES;
+        filledPhases = Math.min(filledPhases + 1, PHASES);
+    }
+
+    /**
+     * Empties the histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < PHASES; i++) {
+            for (int j = 0; j < LEVELS; j++) {
+                phaseCounts[i][j] = 0;
+            }
+            phaseSamples[i] = 0;
+        }
+        for (int i = 0; i < LEVELS; i++) {
+            counts[i] = 0;
+        }
+        samples = 0;
+        phase = 0;
+        filledPhases = 0;
+        width = 0;
+        height = 0;
+    }
+
+    /**
+     * @return True once all the phases are sampled, i.e. after {@link #PHASES} pictures of the
+     * same size.
+     */
+    public boolean isComplete() {
+        return filledPhases == PHASES;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return Lowest level with more than the given percentage of the samples below or at it.
+     */
+    public int getPercentile(int percent) {
+        long rank = (long) samples * percent / 100;
+        int total = 0;
+        for (int i = 0; i < LEVELS; i++) {
+            total += counts[i];
+            if (total > rank) {
+                return i;
+            }
+        }
+        return LEVELS - 1;
+    }
+
+    /**
+     * @return Percentage of the samples at the level or above.
+     */
+    public int getPercentAtLeast(int level) {
+        if (samples == 0) {
+            return 0;
+        }
+        int total = 0;
+        for (int i = level; i < LEVELS; i++) {
+            total += counts[i];
+        }
+        return (int) ((long) total * 100 / samples);
+    }
+
+    /**
+     * @return Mean level of the samples at the level or above, -1 if there are none.
+     */
+    public int getMeanAtLeast(int level) {
+        long sum = 0;
+        int total = 0;
+        for (int i = level; i < LEVELS; i++) {
+            sum += (long) counts[i] * i;
+            total += counts[i];
+        }
+        return total > 0 ? (int) (sum / total) : -1;
+    }
+
+    /**
+     * @return Smallest grid spacing, at least 2 so the phases differ, giving no more than the
+     * samples allowed.
+     */
+    private static int spacing(int width, int height, int maxSamples) {
+        int spacing = Math.max(2, (int) Math.sqrt((double) width * height / maxSamples));
+        while (((width + spacing - 1) / spacing) * ((height + spacing - 1) / spacing)
+                > maxSamples) {
+            spacing++;
+        }
+        return spacing;
+    }
+}
@@ -0,0 +1,142 @@
+package com.ooliash.usg.imaging;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Picture geometry from the frame header (SOF marker segment) of a JPEG, read without decoding
+ * anything: the segments before it are skipped over by their lengths.
+ */
+public final class JpegHeader {
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+
+    public final int width;
+    public final int height;
+    public final int components;
+    public final int precision;
+    /** True for baseline sequential DCT (SOF0), what DICOM JPEG Baseline transfer syntax takes. */
+    public final boolean baseline;
+
+    private JpegHeader(int width, int height, int components, int precision, boolean baseline) {
+        this.width = width;
+        this.height = height;
+        this.components = components;
+        this.precision = precision;
+        this.baseline = baseline;
+    }
+
+    /**
+     * @return True if the header describes a picture of the same size and kind.
+     */
+    public boolean sameGeometry(JpegHeader other) {
+        return width == other.width && height == other.height
+                && components == other.components && precision == other.precision;
+    }
+
+    /**
+     * Parses the JPEG in memory, e.g. a received frame.
+     * @return Header or null if the data isn't a JPEG with a frame header.
+     */
+    public static JpegHeader parse(byte[] data, int offset, int length) {
+        int end = offset + length;
+        if (length < 4 || (data[offset] & 0xFF) != MARKER_PREFIX
+                || (data[offset + 1] & 0xFF) != SOI) {
+            return null;
+        }
+        int position = offset + 2;
+        while (position + 4 <= end) {
+            if ((data[position] & 0xFF) != MARKER_PREFIX) {
+                return null;
+            }
+            int marker = data[position + 1] & 0xFF;
+            if (marker == MARKER_PREFIX) {
+                position++;     // Fill byte.
+                continue;
+            }
+            int segmentLength = ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+            if (isFrameHeader(marker)) {
+                if (position + 10 > end) {
+                    return null;
+                }
+                return new JpegHeader(
+                        ((data[position + 7] & 0xFF) << 8) | (data[position + 8] & 0xFF),
+                        ((data[position + 5] & 0xFF) << 8) | (data[position + 6] & 0xFF),
+                        data[position + 9] & 0xFF, data[position + 4] & 0xFF, marker == 0xC0);
+            }
+            if (marker == SOS || marker == EOI || segmentLength < 2) {
+                return null;
+            }
+            position += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the JPEG up to its frame header, e.g. from a saved picture.
+     * @return Header or null if the stream isn't a JPEG with a frame header.
+     * @throws IOException If the stream can't be read.
+     */
+    public static JpegHeader read(InputStream input) throws IOException {
+        if (input.read() != MARKER_PREFIX || input.read() != SOI) {
+            return null;
+        }
+        while (true) {
+            if (input.read() != MARKER_PREFIX) {
+                return null;
+            }
+            int marker = input.read();
+            while (marker == MARKER_PREFIX) {
+                marker = input.read();
+            }
+            if (marker < 0 || marker == SOS || marker == EOI) {
+                return null;
+            }
+            int segmentLength = readUnsignedShort(input);
+            if (isFrameHeader(marker)) {
+                int precision = readByte(input);
+                int height = readUnsignedShort(input);
+                int width = readUnsignedShort(input);
+                return new JpegHeader(width, height, readByte(input), precision, marker == 0xC0);
+            }
+            if (segmentLength < 2) {
+                return null;
+            }
+            skipFully(input, segmentLength - 2);
+        }
+    }
+
+    /**
+     * @return True for SOF0..SOF15, except DHT (C4), JPG (C8) and DAC (CC) sharing the range.
+     */
+    private static boolean isFrameHeader(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                && marker != 0xCC;
+    }
+
+    private static int readByte(InputStream input) throws IOException {
+        int value = input.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private static int readUnsignedShort(InputStream input) throws IOException {
+        return (readByte(input) << 8) | readByte(input);
+    }
+
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                readByte(input);
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
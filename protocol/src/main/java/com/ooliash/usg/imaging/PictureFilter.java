@@ -0,0 +1,18 @@
+package com.ooliash.usg.imaging;
+
+/**
+ * Filter of 8-bit grayscale pictures, run by {@link FilterPipeline} on bands of rows in parallel.
+ */
+public interface PictureFilter {
+    /**
+     * Called once per picture before its rows are filtered, on the thread running the pipeline,
+     * e.g. to collect statistics of the whole picture.
+     */
+    void prepare(byte[] source, int width, int height);
+
+    /**
+     * Filters rows from top (inclusive) to bottom (exclusive) of the source to the same rows of
+     * the target. Called concurrently for disjoint bands, reading any rows of the source.
+     */
+    void filterRows(byte[] source, byte[] target, int width, int height, int top, int bottom);
+}
@@ -0,0 +1,60 @@
+package com.ooliash.usg.imaging;
+
+/**
+ * Speckle reduction by a 3x3 median, which keeps tissue edges that a blur would smear. Each
+ * column of three is sorted once and shared by the three medians it takes part in; the median of
+ * nine is then the median of the largest low, the middle middle and the smallest high. Borders
+ * repeat the edge pixels.
+ */
+public final class SpeckleFilter implements PictureFilter {
+
+    @Override
+    public void prepare(byte[] source, int width, int height) {
+    }
+
+    @Override
+    public void filterRows(byte[] source, byte[] target, int width, int height, int top,
+            int bottom) {
+        for (int y = top; y < bottom; y++) {
+            int above = Math.max(y - 1, 0) * width;
+            int row = y * width;
+            int below = Math.min(y + 1, height - 1) * width;
+
+            // Sorted columns left of, at and right of the pixel.
+            int a = source[above] & 0xFF;
+            int b = source[row] & 0xFF;
+            int c = source[below] & 0xFF;
+            int centerLow = Math.min(Math.min(a, b), c);
+            int centerHigh = Math.max(Math.max(a, b), c);
+            int centerMiddle = a + b + c - centerLow - centerHigh;
+            int leftLow = centerLow;
+            int leftMiddle = centerMiddle;
+            int leftHigh = centerHigh;
+            for (int x = 0; x < width; x++) {
+                int next = Math.min(x + 1, width - 1);
+                a = source[above + next] & 0xFF;
+                b = source[row + next] & 0xFF;
+                c = source[below + next] & 0xFF;
+                int rightLow = Math.min(Math.min(a, b), c);
+                int rightHigh = Math.max(Math.max(a, b), c);
+                int rightMiddle = a + b + c - rightLow - rightHigh;
+
+                int low = Math.max(Math.max(leftLow, centerLow), rightLow);
+                int high = Math.min(Math.min(leftHigh, centerHigh), rightHigh);
+                int middleMin = Math.min(Math.min(leftMiddle, centerMiddle), rightMiddle);
+                int middleMax = Math.max(Math.max(leftMiddle, centerMiddle), rightMiddle);
+                int middle = leftMiddle + centerMiddle + rightMiddle - middleMin - middleMax;
+                int min = Math.min(Math.min(low, middle), high);
+                int max = Math.max(Math.max(low, middle), high);
+                target[row + x] = (byte) (low + middle + high - min - max);
+
+                leftLow = centerLow;
+                leftMiddle = centerMiddle;
+                leftHigh = centerHigh;
+                centerLow = rightLow;
+                centerMiddle = rightMiddle;
+                centerHigh = rightHigh;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.ooliash.usg.metrics;
+
+/**
+ * Fixed-memory log-linear histogram of non-negative values, e.g. latencies in microseconds.
+ *
+ * Values below {@link #SUB_BUCKETS} have their own buckets, every following power of two range is
+ * split into {@link #SUB_BUCKETS} linear buckets, so the relative error stays below 1/8 across the
+ * whole range. Recording doesn't allocate. Pure Java, so reports can be processed on any JVM.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 39;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long value) {
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        counts[bucketIndex(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds all values recorded in the other histogram to this one.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * @param percentile Percentile, 0-100.
+     * @return Approximate value below which the given percentage of recorded values is.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long middle = bucketLowerBound(i) + (bucketWidth(i) - 1) / 2;
+                return Math.max(getMin(), Math.min(max, middle));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Formats the histogram as "count sum min max index:count ..." with non-empty buckets only.
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(count).append(' ').append(sum).append(' ').append(getMin())
+                .append(' ').append(max);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] != 0) {
+                builder.append(' ').append(i).append(':').append(counts[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Parses histogram formatted by {@link #format()}.
+     * @throws IllegalArgumentException If the text is not a valid histogram.
+     */
+    public static LatencyHistogram parse(String text) {
+        String[] fields = text.trim().split(" ");
+        if (fields.length < 4) {
+            throw new IllegalArgumentException("Invalid histogram: " + text);
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        try {
+            histogram.count = Long.parseLong(fields[0]);
+            histogram.sum = Long.parseLong(fields[1]);
+            histogram.min = histogram.count > 0 ? Long.parseLong(fields[2]) : Long.MAX_VALUE;
+            histogram.max = Long.parseLong(fields[3]);
+            for (int i = 4; i < fields.length; i++) {
+                int separator = fields[i].indexOf(':');
+                int index = Integer.parseInt(fields[i].substring(0, separator));
+                histogram.counts[index] = Long.parseLong(fields[i].substring(separator + 1));
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid histogram: " + text, e);
+        }
+        return histogram;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int group = index / SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (group - 1);
+    }
+
+    private static long bucketWidth(int index) {
+        return index < SUB_BUCKETS ? 1 : 1L << (index / SUB_BUCKETS - 1);
+    }
+}
@@ -0,0 +1,119 @@
+package com.ooliash.usg.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Command line tool merging session metrics files written by {@link UsgMetrics}, e.g. to compare
+ * Wi-Fi setups across rooms:
+ *
+ * <pre>
+ * java -cp protocol.jar com.ooliash.usg.metrics.MetricsReportAggregator \
+ *         roomA=pulled/roomA roomB=pulled/roomB/session.metrics
+ * </pre>
+ *
+ * Every argument is a group: a metrics file or a directory searched for them recursively,
+ * optionally prefixed with a label. Each group is merged and reported separately. Counters and
+ * histograms are summed up, gauges such as the setup time are values of a single session, so
+ * their minimum, median and maximum over the sessions are reported.
+ */
+public final class MetricsReportAggregator {
+
+    private MetricsReportAggregator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: MetricsReportAggregator [label=]file-or-directory ...");
+            System.exit(1);
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String label = separator > 0 ? arg.substring(0, separator) : arg;
+            File path = new File(separator > 0 ? arg.substring(separator + 1) : arg);
+
+            List<File> files = new ArrayList<File>();
+            collectMetricsFiles(path, files);
+            report(System.out, label, files);
+        }
+    }
+
+    /**
+     * Merges the metrics files and reports them as a group.
+     * @throws IOException If a file can't be read.
+     */
+    static void report(PrintStream out, String label, List<File> files) throws IOException {
+        UsgMetrics merged = new UsgMetrics();
+        Map<String, List<Long>> gauges = new TreeMap<String, List<Long>>();
+        for (File file : files) {
+            UsgMetrics metrics = UsgMetrics.readFrom(file);
+            merged.merge(metrics);
+            for (String gauge : metrics.getGaugeNames()) {
+                List<Long> values = gauges.get(gauge);
+                if (values == null) {
+                    values = new ArrayList<Long>();
+                    gauges.put(gauge, values);
+                }
+                values.add(metrics.getGauge(gauge));
+            }
+        }
+        report(out, label, files.size(), merged, gauges);
+    }
+
+    private static void collectMetricsFiles(File path, List<File> files) {
+        if (path.isFile()) {
+            files.add(path);
+            return;
+        }
+        File[] children = path.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory() || child.getName().endsWith(UsgMetrics.FILE_EXTENSION)) {
+                collectMetricsFiles(child, files);
+            }
+        }
+    }
+
+    private static void report(PrintStream out, String label, int sessions, UsgMetrics metrics,
+            Map<String, List<Long>> gauges) {
+        out.println("== " + label + " (" + sessions + " sessions)");
+        for (String counter : metrics.getCounterNames()) {
+            out.println(String.format("%-28s %d", counter, metrics.getCounter(counter)));
+        }
+        out.println(String.format("%-28s %10s %10s %10s %10s",
+                "gauge", "sessions", "min", "median", "max"));
+        for (Map.Entry<String, List<Long>> entry : gauges.entrySet()) {
+            List<Long> values = entry.getValue();
+            Collections.sort(values);
+            out.println(String.format("%-28s %10d %10d %10d %10d", entry.getKey(),
+                    values.size(), values.get(0), median(values), values.get(values.size() - 1)));
+        }
+        out.println(String.format("%-28s %10s %10s %10s %10s %10s %10s",
+                "histogram [us]", "count", "mean", "p50", "p90", "p99", "max"));
+        for (String name : metrics.getHistogramNames()) {
+            LatencyHistogram histogram = metrics.getHistogram(name);
+            out.println(String.format("%-28s %10d %10d %10d %10d %10d %10d", name,
+                    histogram.getCount(), histogram.getMean(), histogram.getPercentile(50),
+                    histogram.getPercentile(90), histogram.getPercentile(99),
+                    histogram.getMax()));
+        }
+        out.println();
+    }
+
+    /**
+     * @param sorted Values in ascending order, at least one.
+     */
+    private static long median(List<Long> sorted) {
+        int middle = sorted.size() / 2;
+        return sorted.size() % 2 != 0 ? sorted.get(middle)
+                : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+}
@@ -0,0 +1,239 @@
+package com.ooliash.usg.metrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-session registry of counters, gauges and latency histograms.
+ *
+ * Updates don't allocate once a metric exists. At the session end the metrics are written as a
+ * compact text file next to the session's pictures directory; {@link MetricsReportAggregator}
+ * merges many such files offline on any JVM.
+ */
+public final class UsgMetrics {
+    // Counters.
+    public static final String FRAMES_RECEIVED = "frames_received";
+    public static final String BYTES_RECEIVED = "bytes_received";
+    public static final String RECONNECTS = "reconnects";
+    public static final String DROPPED_FRAMES = "dropped_frames";
+    public static final String COMMAND_ERRORS = "command_errors";
+    public static final String SOCKET_READS = "socket_reads";
+    // Decodes and redraws saved.
+    public static final String UNCHANGED_FRAMES = "unchanged_frames";
+    public static final String BYTES_SAVED = "bytes_saved";    // By NOT_MODIFIED replies.
+    public static final String FORMAT_SWITCHES = "format_switches";
+    // Out of time budget.
+    public static final String FILTER_SKIPPED_BANDS = "filter_skipped_bands";
+    public static final String AUTO_GAIN_STEPS = "auto_gain_steps";
+
+    // Gauges.
+    public static final String SESSION_DURATION_MS = "session_duration_ms";
+    // Session start to the first picture.
+    public static final String SETUP_TIME_MS = "setup_ms";
+    // Of the connection the session started on.
+    public static final String CONNECT_TIME_MS = "connect_ms";
+    // 1 if that connection was handed over.
+    public static final String WARM_START = "warm_start";
+
+    // Histograms, all in microseconds.
+    public static final String DECODE_TIME = "decode_us";
+    public static final String ROUND_TRIP_TIME = "rtt_us";
+    public static final String RECONNECT_TIME = "reconnect_us";    // From the link given up on.
+    public static final String FILTER_TIME = "filter_us";
+    public static final String HISTOGRAM_TIME = "histogram_us";   // Sampling for automatic gain.
+    public static final String TLS_HANDSHAKE_TIME = "tls_handshake_us";   // Full handshakes.
+    public static final String TLS_RESUMPTION_TIME = "tls_resume_us";     // Resumed sessions.
+    private static final String COMMAND_LATENCY_PREFIX = "command_us:";
+
+    public static final String FILE_EXTENSION = ".metrics";
+    private static final String FORMAT_HEADER = "# usg-metrics 1";
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String HISTOGRAM = "histogram";
+
+    /** Values are single element arrays, so updates don't box. */
+    private final Map<String, long[]> counters = new TreeMap<String, long[]>();
+    private final Map<String, long[]> gauges = new TreeMap<String, long[]>();
+    private final Map<String, LatencyHistogram> histograms =
+            new TreeMap<String, LatencyHistogram>();
+    private final Map<String, LatencyHistogram> commandLatencies =
+            new TreeMap<String, LatencyHistogram>();
+
+    public synchronized void increment(String counter, long delta) {
+        long[] value = counters.get(counter);
+        if (value == null) {
+            value = new long[1];
+            counters.put(counter, value);
+        }
+        value[0] += delta;
+    }
+
+    public synchronized void set(String gauge, long newValue) {
+        long[] value = gauges.get(gauge);
+        if (value == null) {
+            value = new long[1];
+            gauges.put(gauge, value);
+        }
+        value[0] = newValue;
+    }
+
+    public synchronized void record(String histogram, long micros) {
+        histogram(histograms, histogram).record(micros);
+    }
+
+    /**
+     * Records time from sending the command to receiving its whole reply.
+     */
+    public synchronized void recordCommandLatency(String command, long micros) {
+        histogram(commandLatencies, command).record(micros);
+    }
+
+    public synchronized long getCounter(String counter) {
+        long[] value = counters.get(counter);
+        return value != null ? value[0] : 0;
+    }
+
+    /**
+     * @return Histogram with the given name, including "command_us:COMMAND" ones, or null.
+     */
+    public synchronized LatencyHistogram getHistogram(String name) {
+        if (name.startsWith(COMMAND_LATENCY_PREFIX)) {
+            return commandLatencies.get(name.substring(COMMAND_LATENCY_PREFIX.length()));
+        }
+        return histograms.get(name);
+    }
+
+    /**
+     * @return Names of all histograms, including "command_us:COMMAND" ones.
+     */
+    public synchronized Iterable<String> getHistogramNames() {
+        TreeMap<String, LatencyHistogram> all = new TreeMap<String, LatencyHistogram>(histograms);
+        for (Map.Entry<String, LatencyHistogram> entry : commandLatencies.entrySet()) {
+            all.put(COMMAND_LATENCY_PREFIX + entry.getKey(), entry.getValue());
+        }
+        return all.keySet();
+    }
+
+    public synchronized Iterable<String> getCounterNames() {
+        return new TreeMap<String, long[]>(counters).keySet();
+    }
+
+    /**
+     * @return Value of the gauge, 0 if it wasn't set.
+     */
+    public synchronized long getGauge(String gauge) {
+        long[] value = gauges.get(gauge);
+        return value != null ? value[0] : 0;
+    }
+
+    public synchronized Iterable<String> getGaugeNames() {
+        return new TreeMap<String, long[]>(gauges).keySet();
+    }
+
+    /**
+     * Adds counters and histograms of the other metrics to these. Gauges are values of a single
+     * session which don't add up, they are left as they are; {@link MetricsReportAggregator}
+     * summarizes them across sessions.
+     */
+    public synchronized void merge(UsgMetrics other) {
+        synchronized (other) {
+            for (Map.Entry<String, long[]> entry : other.counters.entrySet()) {
+                increment(entry.getKey(), entry.getValue()[0]);
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : other.histograms.entrySet()) {
+                histogram(histograms, entry.getKey()).merge(entry.getValue());
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : other.commandLatencies.entrySet()) {
+                histogram(commandLatencies, entry.getKey()).merge(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes metrics as lines "counter name value", "gauge name value" and
+     * "histogram name count sum min max index:count ...".
+     * @param file Output file.
+     * @throws IOException
+     */
+    public synchronized void writeTo(File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write(FORMAT_HEADER + "\n");
+            for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+                writer.write(COUNTER + " " + entry.getKey() + " " + entry.getValue()[0] + "\n");
+            }
+            for (Map.Entry<String, long[]> entry : gauges.entrySet()) {
+                writer.write(GAUGE + " " + entry.getKey() + " " + entry.getValue()[0] + "\n");
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                writer.write(HISTOGRAM + " " + entry.getKey() + " "
+                        + entry.getValue().format() + "\n");
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : commandLatencies.entrySet()) {
+                writer.write(HISTOGRAM + " " + COMMAND_LATENCY_PREFIX + entry.getKey() + " "
+                        + entry.getValue().format() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads metrics written by {@link #writeTo(File)}.
+     * @param file Metrics file.
+     * @return Metrics read.
+     * @throws IOException If the file can't be read or has invalid format.
+     */
+    public static UsgMetrics readFrom(File file) throws IOException {
+        UsgMetrics metrics = new UsgMetrics();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            if (!FORMAT_HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a USG metrics file: " + file);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length < 3) {
+                    continue;
+                }
+                try {
+                    if (fields[0].equals(COUNTER)) {
+                        metrics.increment(fields[1], Long.parseLong(fields[2]));
+                    } else if (fields[0].equals(GAUGE)) {
+                        metrics.set(fields[1], Long.parseLong(fields[2]));
+                    } else if (fields[0].equals(HISTOGRAM)) {
+                        LatencyHistogram histogram = LatencyHistogram.parse(fields[2]);
+                        if (fields[1].startsWith(COMMAND_LATENCY_PREFIX)) {
+                            metrics.commandLatencies.put(
+                                    fields[1].substring(COMMAND_LATENCY_PREFIX.length()),
+                                    histogram);
+                        } else {
+                            metrics.histograms.put(fields[1], histogram);
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid line in " + file + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return metrics;
+    }
+
+    private static LatencyHistogram histogram(Map<String, LatencyHistogram> map, String name) {
+        LatencyHistogram histogram = map.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            map.put(name, histogram);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,86 @@
+package com.ooliash.usg.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads captures written by {@link CaptureWriter} record by record. The chunk buffer is reused,
+ * so a chunk is valid until the next call of {@link #next()}.
+ */
+public final class CaptureReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream input;
+    private byte[] data = new byte[BUFFER_SIZE];
+    private long timestampNanos;
+    private int direction;
+    private int length;
+
+    public CaptureReader(InputStream stream) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+        if (input.readInt() != CaptureWriter.MAGIC) {
+            throw new IOException("Not a USG capture");
+        }
+        int version = input.readInt();
+        if (version != CaptureWriter.VERSION) {
+            throw new IOException("Unsupported USG capture version " + version);
+        }
+    }
+
+    /**
+     * Reads the next record.
+     * @return False at the end of the capture, also if the last record is truncated, e.g. when
+     * the capture wasn't closed properly.
+     */
+    public boolean next() throws IOException {
+        try {
+            timestampNanos = input.readLong();
+            direction = input.readByte();
+            length = input.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid record length " + length);
+            }
+            if (length > data.length) {
+                data = new byte[Math.max(length, 2 * data.length)];
+            }
+            input.readFully(data, 0, length);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Time of the record since the capture start.
+     */
+    public long timestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return {@link CaptureWriter#DIRECTION_SENT} or {@link CaptureWriter#DIRECTION_RECEIVED}.
+     */
+    public int direction() {
+        return direction;
+    }
+
+    /**
+     * @return Buffer with the chunk at offset 0.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
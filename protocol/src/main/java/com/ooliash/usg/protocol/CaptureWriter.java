@@ -0,0 +1,60 @@
+package com.ooliash.usg.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the raw byte stream of a USG connection, chunk by chunk as it was written to and read
+ * from the socket, with timestamps relative to the capture start. {@link ReplayServer} plays such
+ * captures back. Thread-safe.
+ *
+ * Format (big-endian): magic, version, then records of timestamp in nanoseconds (long), direction
+ * (byte), length (int) and the chunk bytes.
+ */
+public final class CaptureWriter implements Closeable {
+    /** Bytes sent by the client, i.e. commands. */
+    public static final int DIRECTION_SENT = 0;
+    /** Bytes received by the client, i.e. replies. */
+    public static final int DIRECTION_RECEIVED = 1;
+
+    static final int MAGIC = 0x55534743;    // "USGC"
+    static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream output;
+    private final long startNanos;
+    private boolean closed;
+
+    public CaptureWriter(OutputStream stream) throws IOException {
+        output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Appends a chunk of the stream. Ignored once the capture is closed.
+     * @param direction {@link #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED}.
+     */
+    public synchronized void record(int direction, byte[] buffer, int offset, int length)
+            throws IOException {
+        if (closed) {
+            return;
+        }
+        output.writeLong(System.nanoTime() - startNanos);
+        output.writeByte(direction);
+        output.writeInt(length);
+        output.write(buffer, offset, length);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            output.close();
+        }
+    }
+}
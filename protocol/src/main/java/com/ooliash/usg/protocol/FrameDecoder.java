@@ -0,0 +1,193 @@
+package com.ooliash.usg.protocol;
+
+/**
+ * Incremental decoder of {@link FrameFormat} frames from arbitrary chunks of a byte stream.
+ *
+ * Bytes are collected in a window allocated once, either copied in by {@link #feed} or read
+ * straight into it at {@link #fillOffset()} and confirmed by {@link #filled}. {@link #next()}
+ * then yields complete frames in place, as offset and length within {@link #window()}, so nothing
+ * is allocated per frame. It never blocks, the caller decides when and how to get more bytes.
+ *
+ * A frame stays valid until the next call of {@link #next()}, {@link #feed}, {@link #fillOffset()}
+ * or {@link #fillCapacity()}, which may move the unparsed bytes to the window start. Not
+ * thread-safe.
+ */
+public final class FrameDecoder {
+    private final byte[] window;
+    private final int maxFrameLength;
+
+    private int start;  // First byte not parsed yet.
+    private int end;    // End of the bytes received.
+    private boolean errorMarkerReceived;
+
+    private int frameOffset;
+    private int frameLength;
+    private boolean errorFrame;
+
+    /**
+     * Creates decoder with the window twice as large as the largest frame, so bulk reads usually
+     * get the rest of one frame and the beginning of the next.
+     * @param maxFrameLength Maximum payload length, longer frames are a format error.
+     */
+    public FrameDecoder(int maxFrameLength) {
+        this(maxFrameLength, 2 * (FrameFormat.HEADER_LENGTH + maxFrameLength));
+    }
+
+    /**
+     * @param maxFrameLength Maximum payload length, longer frames are a format error.
+     * @param windowSize Size of the window, at least the header plus the maximum payload.
+     */
+    public FrameDecoder(int maxFrameLength, int windowSize) {
+        if (maxFrameLength <= 0 || windowSize < FrameFormat.HEADER_LENGTH + maxFrameLength) {
+            throw new IllegalArgumentException(
+                    "Window " + windowSize + " too small for frames up to " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+        this.window = new byte[windowSize];
+    }
+
+    /**
+     * Copies as many bytes as fit into the window.
+     * @return Number of bytes consumed, less than length if the window is full; call
+     * {@link #next()} and feed the rest afterwards.
+     */
+    public int feed(byte[] source, int offset, int length) {
+        compact();
+        int count = Math.min(length, window.length - end);
+        System.arraycopy(source, offset, window, end, count);
+        end += count;
+        return count;
+    }
+
+    /**
+     * @return Window to read the stream into directly, see {@link #fillOffset()}.
+     */
+    public byte[] window() {
+        return window;
+    }
+
+    /**
+     * @return Offset in the {@link #window()} where the next received bytes belong.
+     */
+    public int fillOffset() {
+        compact();
+        return end;
+    }
+
+    /**
+     * @return Number of bytes that can be stored at {@link #fillOffset()}; never zero while a
+     * frame is incomplete.
+     */
+    public int fillCapacity() {
+        compact();
+        return window.length - end;
+    }
+
+    /**
+     * Confirms bytes stored at {@link #fillOffset()}.
+     * @param count Number of bytes stored.
+     */
+    public void filled(int count) {
+        if (count < 0 || count > window.length - end) {
+            throw new IllegalArgumentException("Filled " + count + " of " + (window.length - end));
+        }
+        end += count;
+    }
+
+    /**
+     * Parses the next complete frame, if already received. Error markers are consumed, the
+     * following frame is reported with {@link #isError()} set.
+     * @return True if a frame is available through {@link #frameOffset()} and
+     * {@link #frameLength()}, false if more bytes are needed.
+     * @throws FrameFormatException If a frame length is out of bounds.
+     */
+    public boolean next() throws FrameFormatException {
+        while (end - start >= FrameFormat.HEADER_LENGTH) {
+            int length = FrameFormat.getLength(window, start);
+            if (length < 0 || length > maxFrameLength) {
+                throw new FrameFormatException("Frame length out of bounds: " + length);
+            }
+            if (length == FrameFormat.ERROR_MARKER && !errorMarkerReceived) {
+                errorMarkerReceived = true;
+                start += FrameFormat.HEADER_LENGTH;
+                continue;
+            }
+            if (end - start - FrameFormat.HEADER_LENGTH < length) {
+                return false;
+            }
+            frameOffset = start + FrameFormat.HEADER_LENGTH;
+            frameLength = length;
+            errorFrame = errorMarkerReceived;
+            errorMarkerReceived = false;
+            start = frameOffset + length;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Offset of the last frame payload in the {@link #window()}.
+     */
+    public int frameOffset() {
+        return frameOffset;
+    }
+
+    /**
+     * @return Length of the last frame payload.
+     */
+    public int frameLength() {
+        return frameLength;
+    }
+
+    /**
+     * @return True if the last frame is an error message rather than a reply.
+     */
+    public boolean isError() {
+        return errorFrame;
+    }
+
+    /**
+     * @return Number of bytes received but not parsed into frames yet.
+     */
+    public int available() {
+        return end - start;
+    }
+
+    /**
+     * Drops all buffered bytes, e.g. after reconnecting.
+     */
+    public void reset() {
+        start = 0;
+        end = 0;
+        errorMarkerReceived = false;
+        frameLength = 0;
+        errorFrame = false;
+    }
+
+    /**
+     * Moves unparsed bytes to the window start if the incomplete frame wouldn't fit otherwise.
+     */
+    private void compact() {
+        if (start == 0) {
+            return;
+        }
+        int pending = end - start;
+        if (pending == 0) {
+            start = 0;
+            end = 0;
+            return;
+        }
+        int required = FrameFormat.HEADER_LENGTH;
+        if (pending >= FrameFormat.HEADER_LENGTH) {
+            int length = FrameFormat.getLength(window, start);
+            if (length > 0 && length <= maxFrameLength) {
+                required += length;
+            }
+        }
+        if (start + required > window.length || end == window.length) {
+            System.arraycopy(window, start, window, 0, pending);
+            start = 0;
+            end = pending;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.ooliash.usg.protocol;
+
+/**
+ * Framing of the USG server protocol: every message is a little-endian 32-bit length followed by
+ * that many payload bytes. A zero length announces an error, its message follows as the next frame.
+ */
+public final class FrameFormat {
+    public static final int HEADER_LENGTH = 4;
+    public static final int ERROR_MARKER = 0;
+
+    private FrameFormat() {
+    }
+
+    /**
+     * Writes frame length to the buffer.
+     * @param buffer Destination buffer.
+     * @param offset Offset of the {@link #HEADER_LENGTH} bytes to write.
+     * @param length Length to write.
+     */
+    public static void putLength(byte[] buffer, int offset, int length) {
+        buffer[offset] = (byte) length;
+        buffer[offset + 1] = (byte) (length >> 8);
+        buffer[offset + 2] = (byte) (length >> 16);
+        buffer[offset + 3] = (byte) (length >> 24);
+    }
+
+    /**
+     * Reads frame length from the buffer.
+     * @param buffer Source buffer.
+     * @param offset Offset of the {@link #HEADER_LENGTH} bytes to read.
+     * @return The length read, may be negative if the stream is corrupt.
+     */
+    public static int getLength(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16)
+                | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * @param payload Frame payload, must not be empty, an empty frame is an error marker.
+     * @return New array with the whole frame, header included.
+     */
+    public static byte[] encode(byte[] payload) {
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("Empty payload can't be framed");
+        }
+        byte[] frame = new byte[HEADER_LENGTH + payload.length];
+        putLength(frame, 0, payload.length);
+        System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+        return frame;
+    }
+
+    /**
+     * @param message Error message.
+     * @return New array with the error marker followed by the message frame.
+     */
+    public static byte[] encodeError(byte[] message) {
+        byte[] frames = new byte[2 * HEADER_LENGTH + message.length];
+        putLength(frames, 0, ERROR_MARKER);
+        putLength(frames, HEADER_LENGTH, message.length);
+        System.arraycopy(message, 0, frames, 2 * HEADER_LENGTH, message.length);
+        return frames;
+    }
+}
@@ -0,0 +1,15 @@
+package com.ooliash.usg.protocol;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the received bytes don't follow the {@link FrameFormat}, so the stream is out of
+ * sync and the connection can't be used anymore.
+ */
+public class FrameFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FrameFormatException(String detailMessage) {
+        super(detailMessage);
+    }
+}
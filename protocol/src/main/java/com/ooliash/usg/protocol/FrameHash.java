@@ -0,0 +1,47 @@
+package com.ooliash.usg.protocol;
+
+/**
+ * Frame IDs for conditional picture requests: 32-bit FNV-1a hash of the picture bytes, written as
+ * lowercase hex in commands. Cheap enough to run on every received picture, a fraction of the
+ * time decoding it takes, and servers compute the same value over the picture they would send.
+ */
+public final class FrameHash {
+    private static final int OFFSET_BASIS = 0x811C9DC5;
+    private static final int PRIME = 0x01000193;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    /** Longest frame ID. */
+    public static final int MAX_ID_LENGTH = 8;
+
+    private FrameHash() {
+    }
+
+    public static int hash(byte[] data, int offset, int length) {
+        int hash = OFFSET_BASIS;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            hash = (hash ^ (data[i] & 0xFF)) * PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return Frame ID as written in commands.
+     */
+    public static String toId(int hash) {
+        return Integer.toHexString(hash);
+    }
+
+    /**
+     * Writes the frame ID as {@link #toId} returns it, without allocating.
+     * @return Number of bytes written, at most {@link #MAX_ID_LENGTH}.
+     */
+    public static int putId(int hash, byte[] buffer, int offset) {
+        int length = Math.max(1, (Integer.SIZE + 3 - Integer.numberOfLeadingZeros(hash)) / 4);
+        for (int i = offset + length - 1; i >= offset; i--) {
+            buffer[i] = HEX_DIGITS[hash & 0xF];
+            hash >>>= 4;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,182 @@
+package com.ooliash.usg.protocol;
+
+/**
+ * LZ4 block format, compatible with the reference implementation: sequences of a token, literals
+ * and a back reference, the last sequence holding literals only. Compression is greedy with a
+ * single hash table, fast rather than tight; decompression checks every length, so a corrupt
+ * block can't write out of bounds.
+ */
+public final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;     // A block ends with at least this many.
+    private static final int MATCH_FIND_LIMIT = 12; // No match starts in the last bytes.
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;      // Step grows on every 2^n bytes unmatched.
+    private static final int RUN_MASK = 15;
+
+    private Lz4() {
+    }
+
+    /**
+     * @return Size of the buffer {@link #compress} needs in the worst case.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses the source into the destination, which must have
+     * {@link #maxCompressedLength} bytes.
+     * @return Length of the block.
+     */
+    public static int compress(byte[] source, int sourceOffset, int sourceLength,
+            byte[] destination, int destinationOffset) {
+        int[] table = new int[1 << HASH_LOG];
+        int end = sourceOffset + sourceLength;
+        int matchLimit = end - LAST_LITERALS;
+        int findLimit = end - MATCH_FIND_LIMIT;
+        int anchor = sourceOffset;
+        int in = sourceOffset;
+        int out = destinationOffset;
+        for (int i = 0; i < table.length; i++) {
+            table[i] = -1;
+        }
+
+        while (in < findLimit) {
+            int sequence = readInt(source, in);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int reference = table[hash];
+            table[hash] = in;
+            if (reference < 0 || in - reference > MAX_OFFSET
+                    || readInt(source, reference) != sequence) {
+                in += 1 + ((in - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            while (in > anchor && reference > sourceOffset
+                    && source[in - 1] == source[reference - 1]) {
+                in--;
+                reference--;
+            }
+            int matchLength = MIN_MATCH;
+            while (in + matchLength < matchLimit
+                    && source[in + matchLength] == source[reference + matchLength]) {
+                matchLength++;
+            }
+
+            int literals = in - anchor;
+            int token = out++;
+            out = writeLength(destination, out, literals);
+            System.arraycopy(source, anchor, destination, out, literals);
+            out += literals;
+            int offset = in - reference;
+            destination[out++] = (byte) offset;
+            destination[out++] = (byte) (offset >> 8);
+            out = writeLength(destination, out, matchLength - MIN_MATCH);
+            destination[token] = (byte) ((Math.min(literals, RUN_MASK) << 4)
+                    | Math.min(matchLength - MIN_MATCH, RUN_MASK));
+            in += matchLength;
+            anchor = in;
+        }
+
+        int literals = end - anchor;
+        int token = out++;
+        out = writeLength(destination, out, literals);
+        destination[token] = (byte) (Math.min(literals, RUN_MASK) << 4);
+        System.arraycopy(source, anchor, destination, out, literals);
+        return out + literals - destinationOffset;
+    }
+
+    /**
+     * Decompresses a whole block.
+     * @return Number of bytes written to the destination.
+     * @throws FrameFormatException If the block is corrupt or doesn't fit the destination.
+     */
+    public static int decompress(byte[] source, int sourceOffset, int sourceLength,
+            byte[] destination, int destinationOffset, int destinationLength)
+            throws FrameFormatException {
+        int in = sourceOffset;
+        int end = sourceOffset + sourceLength;
+        int out = destinationOffset;
+        int outEnd = destinationOffset + destinationLength;
+        while (true) {
+            if (in >= end) {
+                throw new FrameFormatException("LZ4 block truncated");
+            }
+            int token = source[in++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int value;
+                do {
+                    if (in >= end) {
+                        throw new FrameFormatException("LZ4 block truncated");
+                    }
+                    value = source[in++] & 0xFF;
+                    literals += value;
+                } while (value == 255);
+            }
+            if (literals > end - in || literals > outEnd - out) {
+                throw new FrameFormatException("LZ4 literals out of bounds");
+            }
+            System.arraycopy(source, in, destination, out, literals);
+            in += literals;
+            out += literals;
+            if (in == end) {
+                return out - destinationOffset;     // The last sequence has no match.
+            }
+
+            if (end - in < 2) {
+                throw new FrameFormatException("LZ4 block truncated");
+            }
+            int offset = (source[in] & 0xFF) | ((source[in + 1] & 0xFF) << 8);
+            in += 2;
+            if (offset == 0 || offset > out - destinationOffset) {
+                throw new FrameFormatException("LZ4 match offset out of bounds");
+            }
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int value;
+                do {
+                    if (in >= end) {
+                        throw new FrameFormatException("LZ4 block truncated");
+                    }
+                    value = source[in++] & 0xFF;
+                    matchLength += value;
+                } while (value == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > outEnd - out) {
+                throw new FrameFormatException("LZ4 match out of bounds");
+            }
+            int from = out - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(destination, from, destination, out, matchLength);
+                out += matchLength;
+            } else {
+                // Overlapping, repeats the last offset bytes.
+                for (int i = 0; i < matchLength; i++) {
+                    destination[out++] = destination[from + i];
+                }
+            }
+        }
+    }
+
+    private static int writeLength(byte[] destination, int out, int length) {
+        if (length >= RUN_MASK) {
+            int remaining = length - RUN_MASK;
+            while (remaining >= 255) {
+                destination[out++] = (byte) 255;
+                remaining -= 255;
+            }
+            destination[out++] = (byte) remaining;
+        }
+        return out;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16)
+                | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,124 @@
+package com.ooliash.usg.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picture formats a server may send, negotiated per connection: GET_FORMATS replies with the
+ * names the server can send, comma separated, and "SET_FORMAT:name" switches the pictures that
+ * follow. Every connection starts with {@link #JPEG}, which is all servers without negotiation
+ * send.
+ *
+ * {@link #RAW8_LZ4} is 8-bit grayscale, row by row, as an {@link Lz4} block after a header of
+ * the little-endian 16-bit width and height. Lossless and cheap to decode, larger than JPEG.
+ */
+public final class PictureFormat {
+    public static final String JPEG = "JPEG";
+    public static final String WEBP = "WEBP";
+    public static final String PNG = "PNG";
+    public static final String RAW8_LZ4 = "RAW8_LZ4";
+
+    /** Known formats, the preferred first when costs are even. */
+    public static final String[] ALL = { JPEG, WEBP, PNG, RAW8_LZ4 };
+
+    public static final int RAW8_HEADER_LENGTH = 4;
+    /** Most pixels of a {@link #RAW8_LZ4} picture, well above those of any USG picture. */
+    public static final int MAX_RAW8_PIXELS = 2048 * 2048;
+
+    private PictureFormat() {
+    }
+
+    /**
+     * @return The constant of the named format, so formats can be compared by identity, or null
+     * if the format is unknown.
+     */
+    public static String canonical(String name) {
+        for (String format : ALL) {
+            if (format.equalsIgnoreCase(name.trim())) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param reply Reply to GET_FORMATS.
+     * @return Known formats listed in the reply, in the order of {@link #ALL}. Always includes
+     * {@link #JPEG}.
+     */
+    public static List<String> parseFormats(String reply) {
+        List<String> listed = new ArrayList<String>();
+        for (String name : reply.split(",")) {
+            String format = canonical(name);
+            if (format != null) {
+                listed.add(format);
+            }
+        }
+        List<String> formats = new ArrayList<String>();
+        for (String format : ALL) {
+            if (format == JPEG || listed.contains(format)) {
+                formats.add(format);
+            }
+        }
+        return formats;
+    }
+
+    /**
+     * Encodes a grayscale picture as {@link #RAW8_LZ4}.
+     * @return New array with the picture.
+     */
+    public static byte[] encodeRaw8(byte[] gray, int width, int height) {
+        byte[] buffer = new byte[RAW8_HEADER_LENGTH + Lz4.maxCompressedLength(width * height)];
+        buffer[0] = (byte) width;
+        buffer[1] = (byte) (width >> 8);
+        buffer[2] = (byte) height;
+        buffer[3] = (byte) (height >> 8);
+        int length = Lz4.compress(gray, 0, width * height, buffer, RAW8_HEADER_LENGTH);
+        byte[] picture = new byte[RAW8_HEADER_LENGTH + length];
+        System.arraycopy(buffer, 0, picture, 0, picture.length);
+        return picture;
+    }
+
+    public static int getRaw8Width(byte[] picture, int offset) {
+        return (picture[offset] & 0xFF) | ((picture[offset + 1] & 0xFF) << 8);
+    }
+
+    public static int getRaw8Height(byte[] picture, int offset) {
+        return (picture[offset + 2] & 0xFF) | ((picture[offset + 3] & 0xFF) << 8);
+    }
+
+    /**
+     * Checks the size from a {@link #RAW8_LZ4} header before a buffer is allocated for it, as a
+     * corrupt header may ask for up to 4 GB.
+     * @throws FrameFormatException If the picture is empty or has over {@link #MAX_RAW8_PIXELS}.
+     */
+    public static void checkRaw8Size(int width, int height) throws FrameFormatException {
+        long size = (long) width * height;
+        if (size == 0 || size > MAX_RAW8_PIXELS) {
+            throw new FrameFormatException("Raw picture size (" + width + "x" + height
+                    + ") out of bounds");
+        }
+    }
+
+    /**
+     * Decodes a {@link #RAW8_LZ4} picture.
+     * @param gray Destination of the pixels, at least width times height long.
+     * @throws FrameFormatException If the picture is corrupt, see also {@link #checkRaw8Size}.
+     */
+    public static void decodeRaw8(byte[] picture, int offset, int length, byte[] gray)
+            throws FrameFormatException {
+        if (length < RAW8_HEADER_LENGTH) {
+            throw new FrameFormatException("Raw picture without header");
+        }
+        int width = getRaw8Width(picture, offset);
+        int height = getRaw8Height(picture, offset);
+        checkRaw8Size(width, height);
+        int size = width * height;
+        int decoded = Lz4.decompress(picture, offset + RAW8_HEADER_LENGTH,
+                length - RAW8_HEADER_LENGTH, gray, 0, size);
+        if (decoded != size) {
+            throw new FrameFormatException("Raw picture of " + decoded + " pixels, expected "
+                    + size);
+        }
+    }
+}
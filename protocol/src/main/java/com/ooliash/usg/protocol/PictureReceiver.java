@@ -0,0 +1,95 @@
+package com.ooliash.usg.protocol;
+
+/**
+ * Client side of conditional picture polling: keeps a copy of the last picture received, so it
+ * stays available after the receive window is reused, and the "GET_PICTURE:id" request frame
+ * asking for the picture only if it isn't that one. Replies NOT_MODIFIED and pictures with the
+ * hash of the last one leave the last picture in place. Nothing is allocated per picture. Not
+ * thread-safe.
+ */
+public final class PictureReceiver {
+    private static final byte[] CONDITIONAL_PREFIX = "GET_PICTURE:".getBytes();
+    private static final byte[] NOT_MODIFIED = "NOT_MODIFIED".getBytes();
+    private static final int ID_OFFSET = FrameFormat.HEADER_LENGTH + CONDITIONAL_PREFIX.length;
+
+    private final byte[] picture;
+    private int pictureLength;
+    private int pictureHash;
+    private final byte[] requestFrame = new byte[ID_OFFSET + FrameHash.MAX_ID_LENGTH];
+    private int requestLength;
+
+    /**
+     * @param maxPictureLength Longest picture expected, as the replies are decoded with.
+     */
+    public PictureReceiver(int maxPictureLength) {
+        picture = new byte[maxPictureLength];
+        System.arraycopy(CONDITIONAL_PREFIX, 0, requestFrame, FrameFormat.HEADER_LENGTH,
+                CONDITIONAL_PREFIX.length);
+        updateRequest();
+    }
+
+    /**
+     * Takes the current frame of the decoder as the reply to a picture request.
+     * @return True if it's a new picture, now in {@link #picture()}, false if the last one
+     * repeats.
+     */
+    public boolean receive(FrameDecoder replies) {
+        byte[] window = replies.window();
+        int offset = replies.frameOffset();
+        int length = replies.frameLength();
+        if (isNotModified(window, offset, length)) {
+            return false;
+        }
+        int hash = FrameHash.hash(window, offset, length);
+        if (hash == pictureHash && length == pictureLength) {
+            return false;
+        }
+        pictureHash = hash;
+        pictureLength = length;
+        System.arraycopy(window, offset, picture, 0, length);
+        updateRequest();
+        return true;
+    }
+
+    /**
+     * @return Buffer holding the last picture, {@link #pictureLength()} bytes of it.
+     */
+    public byte[] picture() {
+        return picture;
+    }
+
+    public int pictureLength() {
+        return pictureLength;
+    }
+
+    /**
+     * @return Frame of the conditional request for the last picture, whose length
+     * {@link #conditionalRequestLength()} returns. Rewritten in place by {@link #receive}.
+     */
+    public byte[] conditionalRequest() {
+        return requestFrame;
+    }
+
+    public int conditionalRequestLength() {
+        return requestLength;
+    }
+
+    private void updateRequest() {
+        int payloadLength = CONDITIONAL_PREFIX.length
+                + FrameHash.putId(pictureHash, requestFrame, ID_OFFSET);
+        FrameFormat.putLength(requestFrame, 0, payloadLength);
+        requestLength = FrameFormat.HEADER_LENGTH + payloadLength;
+    }
+
+    private static boolean isNotModified(byte[] buffer, int offset, int length) {
+        if (length != NOT_MODIFIED.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != NOT_MODIFIED[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+package com.ooliash.usg.protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS for the USG connection. Servers are trusted by pinned public keys instead of certificate
+ * authorities: USG servers have self-signed certificates, and no authority the device trusts can
+ * issue one passing for them. A pin is the SHA-256 of the certificate's SubjectPublicKeyInfo in
+ * hex, as {@link #pin} computes it and {@link ReplayServer} prints it.
+ *
+ * Reconnects are frequent, so sessions are cached for resumption, which skips the key exchange
+ * and the certificate. One client context has to be shared by all connections for that, the
+ * cache is keyed by server address and port.
+ */
+public final class PinnedTls {
+    private static final String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 3600;
+
+    private PinnedTls() {
+    }
+
+    /**
+     * @return Pin of the certificate's public key.
+     */
+    public static String pin(Certificate certificate) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(certificate.getPublicKey().getEncoded());
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte value : digest) {
+                hex.append(Character.forDigit((value >> 4) & 0xF, 16))
+                        .append(Character.forDigit(value & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("No SHA-256", e);   // Every JVM has it.
+        }
+    }
+
+    /**
+     * @param pins Pins of the servers trusted.
+     * @return Context for all client connections, caching sessions for resumption.
+     */
+    public static SSLContext createClientContext(Collection<String> pins)
+            throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { new PinningTrustManager(pins) }, null);
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+
+    /**
+     * @param keyStore PKCS12 or JKS key store with the server's key and certificate.
+     * @return Context for a server, e.g. the {@link ReplayServer} stand-in.
+     */
+    public static SSLContext createServerContext(File keyStore, char[] password)
+            throws GeneralSecurityException, IOException {
+        KeyManagerFactory keyManagers =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(loadKeyStore(keyStore, password), password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * @return Pins of the certificates in the key store.
+     */
+    public static List<String> pins(File keyStore, char[] password)
+            throws GeneralSecurityException, IOException {
+        KeyStore store = loadKeyStore(keyStore, password);
+        List<String> pins = new ArrayList<String>();
+        Enumeration<String> aliases = store.aliases();
+        while (aliases.hasMoreElements()) {
+            Certificate certificate = store.getCertificate(aliases.nextElement());
+            if (certificate != null) {
+                pins.add(pin(certificate));
+            }
+        }
+        return pins;
+    }
+
+    /**
+     * Starts TLS over a connected socket and completes the handshake, resuming a cached session
+     * with the server if there's one.
+     * @param host Server address, keys the session cache with the port.
+     * @return The TLS socket, its read timeout as set on the plain one.
+     * @throws IOException If the handshake fails, e.g. as the server isn't pinned. The plain
+     * socket is closed then.
+     */
+    public static SSLSocket startClient(SSLContext context, Socket plain, String host, int port)
+            throws IOException {
+        SSLSocket socket;
+        try {
+            socket = (SSLSocket) context.getSocketFactory().createSocket(plain, host, port, true);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        try {
+            socket.setEnabledProtocols(supported(socket.getSupportedProtocols()));
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * @param handshakeStartMillis When the handshake started, in {@link System#currentTimeMillis}
+     *                             time.
+     * @return True if the session was resumed rather than negotiated in the handshake.
+     */
+    public static boolean isResumed(SSLSession session, long handshakeStartMillis) {
+        return session.getCreationTime() < handshakeStartMillis;
+    }
+
+    /**
+     * @return Protocols to enable: the recent ones the socket supports, older Android releases
+     * don't enable them for clients by default.
+     */
+    private static String[] supported(String[] supportedProtocols) {
+        List<String> supported = Arrays.asList(supportedProtocols);
+        List<String> enabled = new ArrayList<String>();
+        for (String protocol : PROTOCOLS) {
+            if (supported.contains(protocol)) {
+                enabled.add(protocol);
+            }
+        }
+        return enabled.isEmpty() ? supportedProtocols : enabled.toArray(new String[0]);
+    }
+
+    private static KeyStore loadKeyStore(File file, char[] password)
+            throws GeneralSecurityException, IOException {
+        String type = file.getName().toLowerCase(Locale.US).endsWith(".jks") ? "JKS" : "PKCS12";
+        KeyStore store = KeyStore.getInstance(type);
+        InputStream input = new FileInputStream(file);
+        try {
+            store.load(input, password);
+        } finally {
+            input.close();
+        }
+        return store;
+    }
+
+    /**
+     * Trusts the server's certificate if its key is pinned and it's valid.
+     */
+    private static final class PinningTrustManager implements X509TrustManager {
+        private final Set<String> pins = new HashSet<String>();
+
+        PinningTrustManager(Collection<String> pins) {
+            for (String pin : pins) {
+                this.pins.add(pin.trim().toLowerCase(Locale.US));
+            }
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            if (chain == null || chain.length == 0) {
+                throw new CertificateException("No server certificate");
+            }
+            // The rest of the chain isn't verified, so only the server's own key counts.
+            String pin = pin(chain[0]);
+            if (!pins.contains(pin)) {
+                throw new CertificateException("Server key not pinned: " + pin);
+            }
+            chain[0].checkValidity();
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            throw new CertificateException("Clients aren't authenticated");
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.ooliash.usg.protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Stand-in USG server playing back a {@link CaptureWriter} capture to a connecting client, so the
+ * whole client pipeline can be run repeatably against real traffic:
+ *
+ * <pre>
+ * java -cp protocol.jar com.ooliash.usg.protocol.ReplayServer [--fast] [--port 9050]
+ *         [--tls keystore.p12 password [--tls-port 9443]] capture
+ * </pre>
+ *
+ * Each recorded command is waited for before the recorded replies following it are sent, with
+ * the same chunking. In real time mode the replies keep their recorded delay after the command,
+ * so server and network latency are reproduced whatever the client speed; with --fast they are
+ * sent right away. Commands differing from the recorded ones are counted, not rejected. It also
+ * answers the USG server discovery broadcast, so Glass finds it like a real server.
+ *
+ * With --tls the capture is also served over TLS, with the key in the given key store, and the
+ * TLS port is announced in the extended discovery reply. The pins of the key store are printed
+ * for the client's configuration, see {@link PinnedTls}. A key store for testing can be made
+ * with e.g. {@code keytool -genkeypair -keyalg EC -storetype PKCS12 -keystore usg.p12}.
+ */
+public final class ReplayServer {
+    private static final int DEFAULT_PORT = 9050;
+    private static final int BROADCAST_PORT_NUMBER = 9049;  // As in the client discovery.
+    private static final int DEFAULT_TLS_PORT = 9443;
+    private static final String DISCOVERY_REQUEST = "LF_PJATK_USG_SERVER";
+    private static final String EXTENDED_DISCOVERY_REQUEST = DISCOVERY_REQUEST + ";v=2";
+    private static final String DISCOVERY_ACK = "PJATK_USG_SERVER_ACK";
+    private static final int MAX_COMMAND_LENGTH = 4096;
+
+    private final File capture;
+    private final boolean realTime;
+
+    /**
+     * What a replay sent and received.
+     */
+    public static final class Summary {
+        public final int commands;
+        /** Commands differing from the recorded ones, e.g. conditional requests of other IDs. */
+        public final int mismatchedCommands;
+        public final long replyBytes;
+        public final long elapsedNanos;
+
+        Summary(int commands, int mismatchedCommands, long replyBytes, long elapsedNanos) {
+            this.commands = commands;
+            this.mismatchedCommands = mismatchedCommands;
+            this.replyBytes = replyBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Replayed %d commands (%d different from the capture),"
+                            + " %d reply bytes in %d ms, %.1f MB/s", commands, mismatchedCommands,
+                    replyBytes, elapsedNanos / 1000000, replyBytes * 1000.0 / elapsedNanos);
+        }
+    }
+
+    /**
+     * @param capture Capture file.
+     * @param realTime True to keep the recorded reply delays, false to reply as fast as possible.
+     */
+    public ReplayServer(File capture, boolean realTime) {
+        this.capture = capture;
+        this.realTime = realTime;
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        boolean realTime = true;
+        int port = DEFAULT_PORT;
+        int tlsPort = DEFAULT_TLS_PORT;
+        File keyStore = null;
+        char[] password = null;
+        File capture = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--fast")) {
+                realTime = false;
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--tls") && i + 2 < args.length) {
+                keyStore = new File(args[++i]);
+                password = args[++i].toCharArray();
+            } else if (args[i].equals("--tls-port") && i + 1 < args.length) {
+                tlsPort = Integer.parseInt(args[++i]);
+            } else {
+                capture = new File(args[i]);
+            }
+        }
+        if (capture == null) {
+            System.err.println("Usage: ReplayServer [--fast] [--port PORT]"
+                    + " [--tls KEYSTORE PASSWORD [--tls-port PORT]] capture-file");
+            System.exit(1);
+        }
+
+        final ReplayServer server = new ReplayServer(capture, realTime);
+        System.out.println("Replaying " + capture + " on port " + port
+                + (realTime ? " in real time" : " as fast as possible"));
+        if (keyStore != null) {
+            SSLContext context = PinnedTls.createServerContext(keyStore, password);
+            final ServerSocket tlsServerSocket =
+                    context.getServerSocketFactory().createServerSocket(tlsPort);
+            System.out.println("TLS on port " + tlsPort + ", pins "
+                    + PinnedTls.pins(keyStore, password));
+            Thread tlsThread = new Thread("USG TLS replay") {
+                @Override
+                public void run() {
+                    try {
+                        server.serve(tlsServerSocket);
+                    } catch (IOException e) {
+                        System.out.println("TLS replay stopped: " + e.getMessage());
+                    }
+                }
+            };
+            tlsThread.setDaemon(true);
+            tlsThread.start();
+        } else {
+            tlsPort = 0;
+        }
+        startDiscoveryResponder(port, tlsPort);
+        server.serve(new ServerSocket(port));
+    }
+
+    /**
+     * Plays the capture back to every client connecting, one after another.
+     */
+    private void serve(ServerSocket serverSocket) throws IOException {
+        while (true) {
+            Socket client = serverSocket.accept();
+            try {
+                System.out.println(replay(client));
+            } catch (IOException e) {
+                System.out.println("Replay interrupted: " + e.getMessage());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Plays the capture back to the connected client.
+     * @return What was replayed.
+     * @throws IOException If the capture can't be read or the client disconnects.
+     */
+    public Summary replay(Socket client) throws IOException {
+        client.setTcpNoDelay(true);
+        InputStream clientInput = client.getInputStream();
+        OutputStream clientOutput = client.getOutputStream();
+        FrameDecoder recordedCommands = new FrameDecoder(MAX_COMMAND_LENGTH);
+        FrameDecoder clientCommands = new FrameDecoder(MAX_COMMAND_LENGTH);
+        int commands = 0;
+        int mismatchedCommands = 0;
+        long replyBytes = 0;
+
+        long startNanos = System.nanoTime();
+        long offsetNanos = startNanos;  // Maps capture time to the replay time.
+        CaptureReader reader = new CaptureReader(new FileInputStream(capture));
+        try {
+            while (reader.next()) {
+                if (reader.direction() == CaptureWriter.DIRECTION_SENT) {
+                    feedFully(recordedCommands, reader.data(), reader.length());
+                    while (recordedCommands.next()) {
+                        receiveCommand(clientInput, clientCommands);
+                        commands++;
+                        if (!sameFrame(recordedCommands, clientCommands)) {
+                            mismatchedCommands++;
+                        }
+                    }
+                    offsetNanos = System.nanoTime() - reader.timestampNanos();
+                } else {
+                    if (realTime) {
+                        sleepUntil(offsetNanos + reader.timestampNanos());
+                    }
+                    clientOutput.write(reader.data(), 0, reader.length());
+                    replyBytes += reader.length();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new Summary(commands, mismatchedCommands, replyBytes,
+                System.nanoTime() - startNanos);
+    }
+
+    private static void feedFully(FrameDecoder decoder, byte[] data, int length)
+            throws IOException {
+        int fed = 0;
+        while (fed < length) {
+            int count = decoder.feed(data, fed, length - fed);
+            if (count == 0) {
+                throw new FrameFormatException(
+                        "Recorded command longer than " + MAX_COMMAND_LENGTH);
+            }
+            fed += count;
+        }
+    }
+
+    private static void receiveCommand(InputStream input, FrameDecoder decoder)
+            throws IOException {
+        while (!decoder.next()) {
+            int count = input.read(
+                    decoder.window(), decoder.fillOffset(), decoder.fillCapacity());
+            if (count < 0) {
+                throw new SocketException("Client disconnected");
+            }
+            decoder.filled(count);
+        }
+    }
+
+    private static boolean sameFrame(FrameDecoder a, FrameDecoder b) {
+        if (a.frameLength() != b.frameLength()) {
+            return false;
+        }
+        for (int i = 0; i < a.frameLength(); i++) {
+            if (a.window()[a.frameOffset() + i] != b.window()[b.frameOffset() + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sleepUntil(long nanoTime) throws IOException {
+        long delay = nanoTime - System.nanoTime();
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Answers USG server discovery broadcasts from a daemon thread, the extended request with
+     * the ports.
+     * @param tlsPort TLS port, 0 for none.
+     */
+    private static void startDiscoveryResponder(final int port, final int tlsPort) {
+        Thread responder = new Thread("USG discovery responder") {
+            @Override
+            public void run() {
+                try {
+                    DatagramSocket socket = new DatagramSocket(null);
+                    socket.setReuseAddress(true);
+                    socket.bind(new InetSocketAddress(BROADCAST_PORT_NUMBER));
+                    byte[] buffer = new byte[100];
+                    byte[] ack = DISCOVERY_ACK.getBytes();
+                    byte[] extendedAck = (DISCOVERY_ACK + ";v=2;port=" + port
+                            + (tlsPort > 0 ? ";tls=" + tlsPort : "")).getBytes();
+                    while (true) {
+                        DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(request);
+                        String text = new String(request.getData(), 0, request.getLength());
+                        byte[] reply = text.equals(DISCOVERY_REQUEST) ? ack
+                                : text.equals(EXTENDED_DISCOVERY_REQUEST) ? extendedAck : null;
+                        if (reply != null) {
+                            socket.send(new DatagramPacket(reply, reply.length,
+                                    request.getAddress(), request.getPort()));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Discovery responder stopped: " + e.getMessage());
+                }
+            }
+        };
+        responder.setDaemon(true);
+        responder.start();
+    }
+}
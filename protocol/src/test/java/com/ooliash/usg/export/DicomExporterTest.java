@@ -0,0 +1,97 @@
+package com.ooliash.usg.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ooliash.usg.protocol.CaptureWriter;
+import com.ooliash.usg.protocol.FrameFormat;
+import com.ooliash.usg.protocol.FrameHash;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class DicomExporterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void conditionalPictureRepliesAreFrames() throws IOException {
+        byte[] first = picture(640, 480, 1);
+        byte[] second = picture(640, 480, 2);
+        byte[] third = picture(640, 480, 3);
+        byte[] zoomed = picture(320, 240, 4);
+        File capture = folder.newFile("session.capture");
+        CaptureWriter writer = new CaptureWriter(new FileOutputStream(capture));
+        try {
+            exchange(writer, "GET_STATE", "GAIN=12;IMAGING_RANGE=40".getBytes());
+            exchange(writer, "GET_PICTURE", first);
+            exchange(writer, "GET_PICTURE:" + id(first), second);
+            exchange(writer, "GET_PICTURE:" + id(second), "NOT_MODIFIED".getBytes());
+            exchange(writer, "GET_PICTURE_ROI:250,250,750,750", zoomed);
+            exchange(writer, "GET_PICTURE:" + id(second), third);
+        } finally {
+            writer.close();
+        }
+
+        File output = new File(folder.getRoot(), "session.dcm");
+        int frames = new DicomExporter(64 * 1024).exportCapture(capture, output);
+
+        assertEquals(3, frames);
+        byte[] dicom = Files.readAllBytes(output.toPath());
+        assertTrue(contains(dicom, first));
+        assertTrue(contains(dicom, second));
+        assertTrue(contains(dicom, third));
+        assertFalse(contains(dicom, zoomed));
+        assertTrue(contains(dicom, "GAIN=12".getBytes()));
+    }
+
+    private static void exchange(CaptureWriter writer, String command, byte[] reply)
+            throws IOException {
+        byte[] commandFrame = FrameFormat.encode(command.getBytes());
+        writer.record(CaptureWriter.DIRECTION_SENT, commandFrame, 0, commandFrame.length);
+        byte[] replyFrame = FrameFormat.encode(reply);
+        writer.record(CaptureWriter.DIRECTION_RECEIVED, replyFrame, 0, replyFrame.length);
+    }
+
+    private static String id(byte[] picture) {
+        return FrameHash.toId(FrameHash.hash(picture, 0, picture.length));
+    }
+
+    /**
+     * @return Baseline grayscale JPEG header of the given size followed by filler bytes, enough
+     * for the exporter, which copies frames without decoding them.
+     */
+    private static byte[] picture(int width, int height, int filler) {
+        byte[] picture = new byte[64];
+        byte[] header = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC0, 0, 11, 8,
+                (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width, 1,
+                1, 0x11, 0 };
+        System.arraycopy(header, 0, picture, 0, header.length);
+        for (int i = header.length; i < picture.length - 2; i++) {
+            picture[i] = (byte) (filler * 31 + i);
+        }
+        picture[picture.length - 2] = (byte) 0xFF;
+        picture[picture.length - 1] = (byte) 0xD9;
+        return picture;
+    }
+
+    private static boolean contains(byte[] data, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= data.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (data[i + j] != part[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
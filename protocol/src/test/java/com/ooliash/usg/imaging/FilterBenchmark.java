@@ -0,0 +1,151 @@
+package com.ooliash.usg.imaging;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the {@link PictureFilter}s on synthetic ultrasound-like pictures: a sector of tissue
+ * with bright boundaries and a cyst, under multiplicative Rayleigh speckle. Each filter and both
+ * together run single-threaded and on all cores, without time budgets. The histogram automatic
+ * gain samples pictures with is measured last.
+ *
+ * Usage: FilterBenchmark [width height [pictures]], 640x480 and 200 by default.
+ */
+public final class FilterBenchmark {
+    private static final int WARM_UP_PICTURES = 50;
+    private static final int SAMPLE_PICTURES = 4;
+    private static final int UNLIMITED_BUDGET_MICROS = Integer.MAX_VALUE;
+    private static final int HISTOGRAM_SAMPLES = 2000;  // As automatic gain takes.
+
+    private FilterBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int width = args.length >= 2 ? Integer.parseInt(args[0]) : 640;
+        int height = args.length >= 2 ? Integer.parseInt(args[1]) : 480;
+        int pictures = args.length >= 3 ? Integer.parseInt(args[2]) : 200;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        Random random = new Random(1);
+        int[][] samples = new int[SAMPLE_PICTURES][];
+        for (int i = 0; i < SAMPLE_PICTURES; i++) {
+            samples[i] = samplePicture(width, height, random);
+        }
+        System.out.println(width + "x" + height + ", " + pictures + " pictures, " + cores
+                + " cores");
+        System.out.println("filter          threads   mean ms   p95 ms");
+        String[] names = { "speckle", "contrast", "speckle+contrast" };
+        for (int i = 0; i < names.length; i++) {
+            int[] threadCounts = cores > 1 ? new int[] { 1, cores } : new int[] { 1 };
+            for (int threads : threadCounts) {
+                long[] nanos = measure(i, threads, samples, width, height, pictures);
+                Arrays.sort(nanos);
+                long total = 0;
+                for (long value : nanos) {
+                    total += value;
+                }
+                System.out.println(String.format("%-16s %7d %9.2f %8.2f", names[i], threads,
+                        total / 1e6 / nanos.length, nanos[nanos.length * 95 / 100] / 1e6));
+            }
+        }
+        long[] nanos = measureHistogram(samples, width, height, pictures);
+        Arrays.sort(nanos);
+        long total = 0;
+        for (long value : nanos) {
+            total += value;
+        }
+        System.out.println(String.format("%-16s %7d %9.3f %8.3f", "histogram", 1,
+                total / 1e6 / nanos.length, nanos[nanos.length * 95 / 100] / 1e6));
+    }
+
+    /**
+     * @param filters 0 for speckle reduction, 1 for contrast enhancement, 2 for both.
+     * @return Time per picture, unpacking and packing included.
+     */
+    private static long[] measure(int filters, int threads, int[][] samples, int width,
+            int height, int pictures) {
+        FilterPipeline pipeline = new FilterPipeline(threads);
+        int speckle = pipeline.add(new SpeckleFilter(), UNLIMITED_BUDGET_MICROS);
+        int contrast = pipeline.add(new ContrastFilter(), UNLIMITED_BUDGET_MICROS);
+        pipeline.setEnabled(speckle, filters != 1);
+        pipeline.setEnabled(contrast, filters != 0);
+        int[] pixels = new int[width * height];
+        long[] nanos = new long[pictures];
+        try {
+            for (int i = -WARM_UP_PICTURES; i < pictures; i++) {
+                int[] sample = samples[(i + WARM_UP_PICTURES) % samples.length];
+                System.arraycopy(sample, 0, pixels, 0, pixels.length);
+                long startNanos = System.nanoTime();
+                pipeline.process(pixels, width, height);
+                if (i >= 0) {
+                    nanos[i] = System.nanoTime() - startNanos;
+                }
+            }
+        } finally {
+            pipeline.close();
+        }
+        return nanos;
+    }
+
+    /**
+     * @return Time per picture of the {@link IntensityHistogram} automatic gain samples with.
+     */
+    private static long[] measureHistogram(final int[][] samples, final int width, int height,
+            int pictures) {
+        IntensityHistogram histogram = new IntensityHistogram(HISTOGRAM_SAMPLES);
+        final int[] sample = new int[1];
+        IntensityHistogram.RowReader reader = new IntensityHistogram.RowReader() {
+            @Override
+            public void readRow(int y, int[] row) {
+                System.arraycopy(samples[sample[0]], y * width, row, 0, width);
+            }
+        };
+        long[] nanos = new long[pictures];
+        for (int i = -WARM_UP_PICTURES; i < pictures; i++) {
+            sample[0] = (i + WARM_UP_PICTURES) % samples.length;
+            long startNanos = System.nanoTime();
+            histogram.add(reader, width, height);
+            if (i >= 0) {
+                nanos[i] = System.nanoTime() - startNanos;
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * @return Synthetic picture, also used by
+     * {@link com.ooliash.usg.protocol.PictureFormatBenchmark}.
+     */
+    public static int[] samplePicture(int width, int height, Random random) {
+        int[] pixels = new int[width * height];
+        double apexX = width / 2.0;
+        double depth = height * 0.95;
+        double cystX = width * (0.35 + 0.3 * random.nextDouble());
+        double cystY = height * (0.4 + 0.3 * random.nextDouble());
+        double cystRadius = height * 0.08;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double dx = x - apexX;
+                double distance = Math.sqrt(dx * dx + y * y);
+                double echo = 0;
+                if (distance < depth && Math.abs(dx) < y * 0.8) {
+                    echo = 90 * (1 - 0.5 * distance / depth);     // Attenuation with depth.
+                    if (Math.abs(distance - depth * 0.3) < 3
+                            || Math.abs(distance - depth * 0.7) < 4) {
+                        echo = 200;     // Tissue boundaries.
+                    }
+                    double cx = x - cystX;
+                    double cy = y - cystY;
+                    if (cx * cx + cy * cy < cystRadius * cystRadius) {
+                        echo = 10;
+                    }
+                }
+                // Rayleigh distributed speckle with unit mean.
+                double speckle = Math.sqrt(-2 * Math.log(1 - random.nextDouble())) / 1.2533;
+                int gray = (int) Math.min(255, echo * speckle);
+                pixels[y * width + x] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+        return pixels;
+    }
+}
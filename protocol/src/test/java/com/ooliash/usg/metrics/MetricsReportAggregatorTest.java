@@ -0,0 +1,103 @@
+package com.ooliash.usg.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MetricsReportAggregatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void gaugesAreSummarizedAcrossSessions() throws IOException {
+        long[] setupTimes = { 900, 300, 2000, 400 };
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < setupTimes.length; i++) {
+            UsgMetrics metrics = new UsgMetrics();
+            metrics.set(UsgMetrics.SETUP_TIME_MS, setupTimes[i]);
+            if (i == 0) {
+                metrics.set(UsgMetrics.WARM_START, 1);
+            }
+            files.add(write(metrics));
+        }
+
+        String report = report(files);
+
+        assertTrue(report, contains(report, UsgMetrics.SETUP_TIME_MS, "4", "300", "650", "2000"));
+        assertTrue(report, contains(report, UsgMetrics.WARM_START, "1", "1", "1", "1"));
+    }
+
+    @Test
+    public void countersAndHistogramsAreMerged() throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (int i = 1; i <= 3; i++) {
+            UsgMetrics metrics = new UsgMetrics();
+            metrics.increment(UsgMetrics.FRAMES_RECEIVED, 100 * i);
+            metrics.record(UsgMetrics.DECODE_TIME, 1000 * i);
+            metrics.recordCommandLatency("GET_PICTURE", 5000);
+            files.add(write(metrics));
+        }
+
+        String report = report(files);
+
+        assertTrue(report, report.contains("(3 sessions)"));
+        assertTrue(report, contains(report, UsgMetrics.FRAMES_RECEIVED, "600"));
+        assertTrue(report, contains(report, UsgMetrics.DECODE_TIME, "3", "2000"));
+        assertTrue(report, contains(report, "command_us:GET_PICTURE", "3"));
+    }
+
+    @Test
+    public void mergeLeavesGaugesAlone() {
+        UsgMetrics merged = new UsgMetrics();
+        merged.set(UsgMetrics.CONNECT_TIME_MS, 10);
+        UsgMetrics other = new UsgMetrics();
+        other.set(UsgMetrics.CONNECT_TIME_MS, 500);
+        merged.merge(other);
+        assertEquals(10, merged.getGauge(UsgMetrics.CONNECT_TIME_MS));
+    }
+
+    private File write(UsgMetrics metrics) throws IOException {
+        File file = folder.newFile("session" + folder.getRoot().list().length
+                + UsgMetrics.FILE_EXTENSION);
+        metrics.writeTo(file);
+        return file;
+    }
+
+    private static String report(List<File> files) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output);
+        MetricsReportAggregator.report(out, "test", files);
+        out.flush();
+        return output.toString();
+    }
+
+    /**
+     * @return True if a line of the report starts with the name followed by the values.
+     */
+    private static boolean contains(String report, String name, String... values) {
+        for (String line : report.split("\n")) {
+            String[] fields = line.trim().split(" +");
+            if (!fields[0].equals(name) || fields.length < values.length + 1) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < values.length; i++) {
+                matches &= fields[i + 1].equals(values[i]);
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,120 @@
+package com.ooliash.usg.protocol;
+
+import com.ooliash.usg.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Measures command round trips over a loopback socket against a stand-in server replying to
+ * every command at once, the way commands used to be sent, length and payload in two writes
+ * with Nagle's algorithm on, and the way they are sent now, one pre-encoded frame with
+ * TCP_NODELAY, as well as the mixed cases. Nagle holds the second write back until the first is
+ * acknowledged, which the server delays, having nothing to send before the whole command is in.
+ *
+ * Usage: CommandLatencyBenchmark [commands], 500 by default.
+ */
+public final class CommandLatencyBenchmark {
+    private static final int WARM_UP_COMMANDS = 50;
+    private static final byte[] COMMAND = "GET_GAIN".getBytes();
+    private static final byte[] REPLY = FrameFormat.encode("12".getBytes());
+
+    private CommandLatencyBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int commands = args.length >= 1 ? Integer.parseInt(args[0]) : 500;
+        final ServerSocket serverSocket = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        Thread server = new Thread("Stand-in server") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket client = serverSocket.accept();
+                        try {
+                            answer(client);
+                        } catch (IOException e) {
+                            // Next mode.
+                        } finally {
+                            client.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed.
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        System.out.println(commands + " commands per mode");
+        System.out.println("mode                      mean us    p50 us    p99 us    max us");
+        for (int mode = 0; mode < 4; mode++) {
+            boolean singleWrite = mode >= 2;
+            boolean noDelay = mode % 2 != 0;
+            LatencyHistogram latencies =
+                    measure(serverSocket.getLocalPort(), singleWrite, noDelay, commands);
+            System.out.println(String.format("%-24s %9d %9d %9d %9d",
+                    (singleWrite ? "one write" : "two writes") + (noDelay ? ", no delay" : ""),
+                    latencies.getMean(), latencies.getPercentile(50),
+                    latencies.getPercentile(99), latencies.getMax()));
+        }
+        serverSocket.close();
+    }
+
+    private static LatencyHistogram measure(int port, boolean singleWrite, boolean noDelay,
+            int commands) throws IOException {
+        LatencyHistogram latencies = new LatencyHistogram();
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(noDelay);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            FrameDecoder decoder = new FrameDecoder(1024);
+            byte[] frame = FrameFormat.encode(COMMAND);
+            for (int i = -WARM_UP_COMMANDS; i < commands; i++) {
+                long startNanos = System.nanoTime();
+                if (singleWrite) {
+                    output.write(frame);
+                } else {
+                    output.write(frame, 0, FrameFormat.HEADER_LENGTH);
+                    output.write(COMMAND);
+                }
+                receive(input, decoder);
+                if (i >= 0) {
+                    latencies.record((System.nanoTime() - startNanos) / 1000);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        return latencies;
+    }
+
+    private static void answer(Socket client) throws IOException {
+        client.setTcpNoDelay(true);
+        InputStream input = client.getInputStream();
+        OutputStream output = client.getOutputStream();
+        FrameDecoder decoder = new FrameDecoder(1024);
+        while (true) {
+            receive(input, decoder);
+            output.write(REPLY);
+        }
+    }
+
+    private static void receive(InputStream input, FrameDecoder decoder) throws IOException {
+        while (!decoder.next()) {
+            int count = input.read(decoder.window(), decoder.fillOffset(), decoder.fillCapacity());
+            if (count < 0) {
+                throw new IOException("Connection closed");
+            }
+            decoder.filled(count);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.ooliash.usg.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives {@link FrameDecoder} the way the client does, reading straight into its window from a
+ * socket, against a stand-in server writing the stream in arbitrary pieces. Read counts are
+ * checked on a stream handing out one server write per read, as loopback may merge writes.
+ */
+public class FrameDecoderLoopbackTest {
+    private static final int MAX_FRAME_LENGTH = 128 * 1024;
+    private static final int FRAMES = 400;
+
+    private ServerSocket serverSocket;
+    private Thread server;
+    private volatile Throwable serverFailure;
+
+    @After
+    public void tearDown() throws Exception {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (server != null) {
+            server.join(5000);
+        }
+    }
+
+    @Test
+    public void framesSplitAtRandomBoundaries() throws Exception {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            List<byte[]> payloads = new ArrayList<byte[]>();
+            List<Boolean> errors = new ArrayList<Boolean>();
+            byte[] stream = randomStream(random, FRAMES, MAX_FRAME_LENGTH, payloads, errors);
+            // The smallest window possible, so the unparsed bytes are moved often.
+            FrameDecoder decoder = new FrameDecoder(
+                    MAX_FRAME_LENGTH, FrameFormat.HEADER_LENGTH + MAX_FRAME_LENGTH);
+            receiveAndCheck(stream, randomChunks(random, stream.length), decoder, payloads,
+                    errors, "seed " + seed);
+        }
+    }
+
+    @Test
+    public void framesSplitInsideHeaders() throws Exception {
+        Random random = new Random(42);
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        List<Boolean> errors = new ArrayList<Boolean>();
+        byte[] stream = randomStream(random, FRAMES, 64, payloads, errors);
+        int[] chunks = new int[stream.length / 3 + 1];
+        Arrays.fill(chunks, 3);     // Headers split between writes.
+        receiveAndCheck(stream, chunks, new FrameDecoder(MAX_FRAME_LENGTH), payloads, errors,
+                "3 byte chunks");
+    }
+
+    @Test
+    public void wholeFramesTakeOneReadEach() throws Exception {
+        Random random = new Random(7);
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        List<Boolean> errors = new ArrayList<Boolean>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int[] chunks = new int[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = FrameFormat.encode(randomPayload(random, payloads, errors));
+            stream.write(frame);
+            chunks[i] = frame.length;   // Header and payload in one write.
+        }
+
+        int reads = receive(new ChunkedInputStream(stream.toByteArray(), chunks),
+                new FrameDecoder(MAX_FRAME_LENGTH), payloads, errors, "whole frames");
+
+        // Reading the header and then the payload would take two reads per frame.
+        assertEquals(FRAMES, reads);
+    }
+
+    @Test
+    public void splitFramesTakeOneReadPerPiece() throws Exception {
+        Random random = new Random(11);
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        List<Boolean> errors = new ArrayList<Boolean>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int[] chunks = new int[2 * FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = FrameFormat.encode(randomPayload(random, payloads, errors));
+            stream.write(frame);
+            // Split anywhere, the header included, the rest of the frame comes next.
+            chunks[2 * i] = 1 + random.nextInt(frame.length - 1);
+            chunks[2 * i + 1] = frame.length - chunks[2 * i];
+        }
+
+        int reads = receive(new ChunkedInputStream(stream.toByteArray(), chunks),
+                new FrameDecoder(MAX_FRAME_LENGTH), payloads, errors, "split frames");
+
+        // Once the first piece is in, the window takes the rest in one read.
+        assertEquals(2 * FRAMES, reads);
+    }
+
+    @Test(expected = FrameFormatException.class)
+    public void lengthOutOfBoundsIsFormatError() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(16);
+        byte[] header = new byte[FrameFormat.HEADER_LENGTH];
+        FrameFormat.putLength(header, 0, 17);
+        decoder.feed(header, 0, header.length);
+        decoder.next();
+    }
+
+    /**
+     * Serves the stream in the given chunks and receives it on the client side.
+     */
+    private void receiveAndCheck(byte[] stream, int[] chunks, FrameDecoder decoder,
+            List<byte[]> payloads, List<Boolean> errors, String description) throws Exception {
+        serve(stream, chunks);
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        try {
+            client.setSoTimeout(10000);
+            receive(client.getInputStream(), decoder, payloads, errors, description);
+        } finally {
+            client.close();
+        }
+        server.join(5000);
+        if (serverFailure != null) {
+            throw new AssertionError(description + ": server failed", serverFailure);
+        }
+        serverSocket.close();
+    }
+
+    /**
+     * Reads the frames into the decoder and checks them, then the end of the stream.
+     * @return Number of reads it took, the end of the stream left out.
+     */
+    private static int receive(InputStream input, FrameDecoder decoder, List<byte[]> payloads,
+            List<Boolean> errors, String description) throws IOException {
+        int reads = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            while (!decoder.next()) {
+                int count = input.read(
+                        decoder.window(), decoder.fillOffset(), decoder.fillCapacity());
+                if (count < 0) {
+                    fail(description + ": end of stream before frame " + i);
+                }
+                reads++;
+                decoder.filled(count);
+            }
+            String frame = description + ", frame " + i;
+            assertEquals(frame, errors.get(i), decoder.isError());
+            assertArrayEquals(frame, payloads.get(i), Arrays.copyOfRange(decoder.window(),
+                    decoder.frameOffset(), decoder.frameOffset() + decoder.frameLength()));
+        }
+        assertEquals(description, 0, decoder.available());
+        assertEquals(description, -1, input.read());
+        return reads;
+    }
+
+    /**
+     * Starts stand-in server writing the stream in the chunks, each flushed on its own, to the
+     * first client and closing the connection.
+     */
+    private void serve(final byte[] stream, final int[] chunks) throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverFailure = null;
+        server = new Thread("Stand-in server") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        socket.setTcpNoDelay(true);
+                        OutputStream output = socket.getOutputStream();
+                        int offset = 0;
+                        for (int i = 0; offset < stream.length; i++) {
+                            int length = Math.min(chunks[i], stream.length - offset);
+                            output.write(stream, offset, length);
+                            output.flush();
+                            offset += length;
+                            if (i % 50 == 0) {
+                                Thread.sleep(1);    // Lets the client catch up mid-frame.
+                            }
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Throwable e) {
+                    serverFailure = e;
+                }
+            }
+        };
+        server.start();
+    }
+
+    /**
+     * @return Frames of random payloads, from a byte to the maximum length, one in ten an error
+     * message.
+     */
+    private static byte[] randomStream(Random random, int frames, int maxLength,
+            List<byte[]> payloads, List<Boolean> errors) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < frames; i++) {
+            int length;
+            switch (random.nextInt(4)) {
+                case 0:
+                    length = 1 + random.nextInt(Math.min(16, maxLength));
+                    break;
+                case 1:
+                    length = maxLength - random.nextInt(Math.min(16, maxLength));
+                    break;
+                default:
+                    length = 1 + random.nextInt(maxLength);
+            }
+            byte[] payload = new byte[length];
+            random.nextBytes(payload);
+            boolean error = random.nextInt(10) == 0;
+            stream.write(error ? FrameFormat.encodeError(payload) : FrameFormat.encode(payload));
+            payloads.add(payload);
+            errors.add(error);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * @return Payload of up to 8 KB, also added to the expected frames.
+     */
+    private static byte[] randomPayload(Random random, List<byte[]> payloads,
+            List<Boolean> errors) {
+        byte[] payload = new byte[1 + random.nextInt(8 * 1024)];
+        random.nextBytes(payload);
+        payloads.add(payload);
+        errors.add(false);
+        return payload;
+    }
+
+    /**
+     * @return Chunk lengths covering the stream, mostly short ones so boundaries fall anywhere.
+     */
+    private static int[] randomChunks(Random random, int streamLength) {
+        List<Integer> chunks = new ArrayList<Integer>();
+        int total = 0;
+        while (total < streamLength) {
+            int length = random.nextBoolean() ? 1 + random.nextInt(8)
+                    : 1 + random.nextInt(3 * MAX_FRAME_LENGTH / 2);
+            chunks.add(length);
+            total += length;
+        }
+        int[] result = new int[chunks.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = chunks.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Stream returning at most one chunk per read, as a socket does when each write has arrived
+     * before the next read and no sooner.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+        private final byte[] stream;
+        private final int[] chunks;
+        private int chunk;
+        private int chunkRemaining;
+        private int offset;
+
+        ChunkedInputStream(byte[] stream, int[] chunks) {
+            this.stream = stream;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int bufferOffset, int length) {
+            if (offset == stream.length) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                chunkRemaining = chunks[chunk++];
+            }
+            int count = Math.min(length, chunkRemaining);
+            System.arraycopy(stream, offset, buffer, bufferOffset, count);
+            offset += count;
+            chunkRemaining -= count;
+            return count;
+        }
+    }
+}
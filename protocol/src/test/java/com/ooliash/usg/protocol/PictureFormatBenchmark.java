@@ -0,0 +1,158 @@
+package com.ooliash.usg.protocol;
+
+import com.ooliash.usg.export.DicomExporter;
+import com.ooliash.usg.imaging.FilterBenchmark;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the {@link PictureFormat}s on canned pictures: bytes per picture against decode time,
+ * and the resulting time per picture at a few link speeds, as the client selects formats by.
+ * The JVM has no WebP codec, so WebP is left to measure on the device; decode times here are
+ * only relative to each other.
+ *
+ * Usage: PictureFormatBenchmark [directory of JPEG pictures, e.g. a saved session], synthetic
+ * pictures by default.
+ */
+public final class PictureFormatBenchmark {
+    private static final int SYNTHETIC_PICTURES = 8;
+    private static final int DECODE_ROUNDS = 20;
+    private static final int[] LINK_MBITS = { 2, 5, 10, 20 };
+    private static final String[] FORMATS =
+            { PictureFormat.JPEG, PictureFormat.PNG, PictureFormat.RAW8_LZ4 };
+
+    private PictureFormatBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<BufferedImage> pictures = args.length > 0
+                ? readPictures(new File(args[0])) : syntheticPictures();
+        if (pictures.isEmpty()) {
+            System.err.println("No pictures");
+            System.exit(1);
+        }
+        BufferedImage first = pictures.get(0);
+        System.out.println(pictures.size() + " pictures, " + first.getWidth() + "x"
+                + first.getHeight());
+
+        StringBuilder header = new StringBuilder("format      KB/picture  decode ms");
+        for (int mbits : LINK_MBITS) {
+            header.append(String.format("  ms@%2dMb", mbits));
+        }
+        System.out.println(header);
+        for (String format : FORMATS) {
+            List<byte[]> encoded = new ArrayList<byte[]>();
+            long bytes = 0;
+            for (BufferedImage picture : pictures) {
+                byte[] data = encode(format, picture);
+                encoded.add(data);
+                bytes += data.length;
+            }
+            double bytesPerPicture = (double) bytes / pictures.size();
+            double decodeMillis = measureDecode(format, encoded, first.getWidth(),
+                    first.getHeight());
+            StringBuilder line = new StringBuilder(String.format("%-10s %11.1f %10.2f", format,
+                    bytesPerPicture / 1024, decodeMillis));
+            for (int mbits : LINK_MBITS) {
+                double transferMillis = bytesPerPicture * 8 / (mbits * 1000.0);
+                line.append(String.format(" %9.1f", transferMillis + decodeMillis));
+            }
+            System.out.println(line);
+        }
+        System.out.println(PictureFormat.WEBP + "       no JVM codec, measure on the device");
+    }
+
+    private static List<BufferedImage> readPictures(File directory) throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(DicomExporter.PICTURE_EXTENSION);
+            }
+        });
+        List<BufferedImage> pictures = new ArrayList<BufferedImage>();
+        if (files == null) {
+            return pictures;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            BufferedImage picture = ImageIO.read(file);
+            // One size, as in a stream.
+            if (picture != null && (pictures.isEmpty()
+                    || (picture.getWidth() == pictures.get(0).getWidth()
+                    && picture.getHeight() == pictures.get(0).getHeight()))) {
+                pictures.add(toGray(picture));
+            }
+        }
+        return pictures;
+    }
+
+    private static List<BufferedImage> syntheticPictures() {
+        Random random = new Random(1);
+        List<BufferedImage> pictures = new ArrayList<BufferedImage>();
+        for (int i = 0; i < SYNTHETIC_PICTURES; i++) {
+            int[] argb = FilterBenchmark.samplePicture(640, 480, random);
+            BufferedImage picture = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
+            picture.setRGB(0, 0, 640, 480, argb, 0, 640);
+            pictures.add(toGray(picture));
+        }
+        return pictures;
+    }
+
+    private static BufferedImage toGray(BufferedImage picture) {
+        BufferedImage gray = new BufferedImage(picture.getWidth(), picture.getHeight(),
+                BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(picture, 0, 0, null);
+        return gray;
+    }
+
+    private static byte[] encode(String format, BufferedImage picture) throws IOException {
+        if (format == PictureFormat.RAW8_LZ4) {
+            byte[] gray = ((DataBufferByte) picture.getRaster().getDataBuffer()).getData();
+            return PictureFormat.encodeRaw8(gray, picture.getWidth(), picture.getHeight());
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(picture, format == PictureFormat.JPEG ? "jpg" : "png", output);
+        return output.toByteArray();
+    }
+
+    /**
+     * @return Mean decode time to ARGB pixels, as the client draws them, in milliseconds.
+     */
+    private static double measureDecode(String format, List<byte[]> encoded, int width,
+            int height) throws IOException {
+        byte[] gray = new byte[width * height];
+        int[] argb = new int[width * height];
+        long totalNanos = 0;
+        for (int round = -1; round < DECODE_ROUNDS; round++) {   // Round -1 warms up.
+            long startNanos = System.nanoTime();
+            for (byte[] data : encoded) {
+                if (format == PictureFormat.RAW8_LZ4) {
+                    PictureFormat.decodeRaw8(data, 0, data.length, gray);
+                    for (int i = 0; i < argb.length; i++) {
+                        int value = gray[i] & 0xFF;
+                        argb[i] = 0xFF000000 | (value << 16) | (value << 8) | value;
+                    }
+                } else {
+                    BufferedImage picture = ImageIO.read(new ByteArrayInputStream(data));
+                    picture.getRGB(0, 0, width, height, argb, 0, width);
+                }
+            }
+            if (round >= 0) {
+                totalNanos += System.nanoTime() - startNanos;
+            }
+        }
+        return totalNanos / 1e6 / DECODE_ROUNDS / encoded.size();
+    }
+}
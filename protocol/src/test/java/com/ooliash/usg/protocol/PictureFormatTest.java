@@ -0,0 +1,65 @@
+package com.ooliash.usg.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class PictureFormatTest {
+    @Test
+    public void raw8RoundTrip() throws FrameFormatException {
+        byte[] gray = new byte[64 * 48];
+        new Random(5).nextBytes(gray);
+        byte[] picture = PictureFormat.encodeRaw8(gray, 64, 48);
+        byte[] decoded = new byte[gray.length];
+        PictureFormat.decodeRaw8(picture, 0, picture.length, decoded);
+        assertArrayEquals(gray, decoded);
+    }
+
+    /**
+     * Covers the match paths of {@link Lz4}: runs far longer than a token holds, short periods
+     * copied from overlapping back references and rows repeated from further back, with noise
+     * in between for the literal runs.
+     */
+    @Test
+    public void raw8RoundTripWithRepetitiveData() throws FrameFormatException {
+        int width = 256;
+        int height = 64;
+        byte[] gray = new byte[width * height];
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if (y < 8) {
+                    gray[row + x] = (byte) 0x80;    // One run of 2048 bytes.
+                } else if (y % 4 == 0) {
+                    gray[row + x] = (byte) (x % 3 * 40);    // Period shorter than a match.
+                } else if (y % 4 == 1) {
+                    gray[row + x] = (byte) random.nextInt();
+                } else {
+                    gray[row + x] = gray[row - width + x];  // The row above.
+                }
+            }
+        }
+        byte[] picture = PictureFormat.encodeRaw8(gray, width, height);
+        assertTrue("Compressed to " + picture.length, picture.length < gray.length / 2);
+        byte[] decoded = new byte[gray.length];
+        PictureFormat.decodeRaw8(picture, 0, picture.length, decoded);
+        assertArrayEquals(gray, decoded);
+    }
+
+    @Test(expected = FrameFormatException.class)
+    public void raw8HeaderOutOfBoundsIsRejected() throws FrameFormatException {
+        byte[] picture = PictureFormat.encodeRaw8(new byte[16], 4, 4);
+        picture[1] = (byte) 0xFF;   // Width of 65284.
+        picture[3] = (byte) 0xFF;
+        PictureFormat.decodeRaw8(picture, 0, picture.length, new byte[16]);
+    }
+
+    @Test(expected = FrameFormatException.class)
+    public void emptyRaw8PictureIsRejected() throws FrameFormatException {
+        PictureFormat.checkRaw8Size(640, 0);
+    }
+}
@@ -0,0 +1,171 @@
+package com.ooliash.usg.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Runs the steady-state picture loop of the client, conditional GET_PICTURE polls answered by
+ * pictures or NOT_MODIFIED, against {@link ReplayServer} and checks it allocates nothing per
+ * frame once warmed up. Like the client's communication, the loop reads straight into the
+ * {@link FrameDecoder} window and hands each reply to a {@link PictureReceiver}, which makes the
+ * next request. Decoding is Android's.
+ */
+public class PictureLoopAllocationTest {
+    private static final int FRAMES = 5000;
+    private static final int WARM_UP_FRAMES = 1000;
+    private static final int PICTURE_BUFFER_SIZE = 128 * 1024;
+    private static final int DISTINCT_PICTURES = 5;
+    private static final byte[] NOT_MODIFIED = "NOT_MODIFIED".getBytes();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerSocket serverSocket;
+    private Thread server;
+    private volatile Throwable serverFailure;
+    private volatile ReplayServer.Summary replaySummary;
+
+    // Client state, as kept per connection.
+    private final FrameDecoder decoder = new FrameDecoder(PICTURE_BUFFER_SIZE);
+    private final PictureReceiver receiver = new PictureReceiver(PICTURE_BUFFER_SIZE);
+    private int unchangedFrames;
+
+    @After
+    public void tearDown() throws Exception {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (server != null) {
+            server.join(5000);
+        }
+    }
+
+    @Test
+    public void steadyStateFramesDontAllocate() throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        serve(writeCapture());
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        try {
+            client.setTcpNoDelay(true);
+            client.setSoTimeout(10000);
+            InputStream input = client.getInputStream();
+            OutputStream output = client.getOutputStream();
+            for (int i = 0; i < WARM_UP_FRAMES; i++) {
+                poll(input, output);
+            }
+            // What reading the counter takes, so only the loop is measured.
+            long overhead = -allocations.getThreadAllocatedBytes(threadId);
+            overhead += allocations.getThreadAllocatedBytes(threadId);
+            long allocated = -allocations.getThreadAllocatedBytes(threadId);
+            for (int i = WARM_UP_FRAMES; i < FRAMES; i++) {
+                poll(input, output);
+            }
+            allocated += allocations.getThreadAllocatedBytes(threadId) - overhead;
+
+            // The JVM allocates a few hundred bytes now and then, e.g. compiling the loop, not a
+            // byte per frame, while an object allocated per frame takes 16 bytes at least.
+            int frames = FRAMES - WARM_UP_FRAMES;
+            assertEquals("Bytes allocated per frame, " + allocated + " over " + frames + " frames",
+                    0, allocated / frames);
+            assertEquals("NOT_MODIFIED replies", FRAMES / 4, unchangedFrames);
+        } finally {
+            client.close();
+        }
+        server.join(5000);
+        if (serverFailure != null) {
+            throw new AssertionError("Server failed", serverFailure);
+        }
+        assertEquals("Commands replayed", FRAMES, replaySummary.commands);
+    }
+
+    /**
+     * Sends the conditional picture request and handles the reply.
+     */
+    private void poll(InputStream input, OutputStream output) throws IOException {
+        output.write(receiver.conditionalRequest(), 0, receiver.conditionalRequestLength());
+
+        while (!decoder.next()) {
+            int count = input.read(decoder.window(), decoder.fillOffset(), decoder.fillCapacity());
+            if (count < 0) {
+                throw new IOException("Connection closed");
+            }
+            decoder.filled(count);
+        }
+        if (!receiver.receive(decoder)) {
+            unchangedFrames++;
+        }
+    }
+
+    /**
+     * @return Capture of a session cycling through a few pictures of different sizes, each
+     * fourth reply NOT_MODIFIED. The commands are recorded as plain polls, the replay only
+     * counts the differing ones.
+     */
+    private File writeCapture() throws IOException {
+        Random random = new Random(3);
+        byte[][] pictures = new byte[DISTINCT_PICTURES][];
+        for (int i = 0; i < pictures.length; i++) {
+            byte[] picture = new byte[2 * 1024 + random.nextInt(6 * 1024)];
+            random.nextBytes(picture);
+            pictures[i] = FrameFormat.encode(picture);
+        }
+        byte[] poll = FrameFormat.encode("GET_PICTURE".getBytes());
+        byte[] notModified = FrameFormat.encode(NOT_MODIFIED);
+
+        File file = folder.newFile("session.capture");
+        CaptureWriter capture = new CaptureWriter(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                capture.record(CaptureWriter.DIRECTION_SENT, poll, 0, poll.length);
+                byte[] reply = i % 4 == 3 ? notModified : pictures[i % pictures.length];
+                capture.record(CaptureWriter.DIRECTION_RECEIVED, reply, 0, reply.length);
+            }
+        } finally {
+            capture.close();
+        }
+        return file;
+    }
+
+    private void serve(File capture) throws IOException {
+        final ReplayServer replayServer = new ReplayServer(capture, false);
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server = new Thread("Stand-in server") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        replaySummary = replayServer.replay(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Throwable e) {
+                    serverFailure = e;
+                }
+            }
+        };
+        server.start();
+    }
+}
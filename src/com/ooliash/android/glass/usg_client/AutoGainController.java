@@ -0,0 +1,174 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.ooliash.usg.imaging.IntensityHistogram;
+
+/**
+ * Optional automatic gain: steps the server gain toward a target brightness of the tissue in the
+ * pictures, instead of the user swiping GAIN_UP and GAIN_DOWN until it looks right.
+ *
+ * Brightness is the mean of an {@link IntensityHistogram} above the background level, so the
+ * black outside the sector doesn't count. Adjusting starts when it's off the target by more
+ * than a wide margin and goes on until it's within a narrow one, so it doesn't oscillate around
+ * the margin. Steps wanted are coalesced into one burst, as many as the error calls for at the
+ * gain change per step learnt so far, and nothing more is decided until the histogram is
+ * refilled with pictures taken at the new gain. A manual gain change holds it off for a while.
+ */
+final class AutoGainController {
+    private static final String LOG_TAG = "USG";
+    /** Bounds the histogram cost, 37 rows read of a 640x480 picture. */
+    private static final int MAX_SAMPLES_PER_PICTURE = 2000;
+    private static final int BACKGROUND_LEVEL = 16;
+    /** Below this percentage of samples above the background the probe is likely in the air. */
+    private static final int MIN_TISSUE_PERCENT = 5;
+    private static final int TARGET_LEVEL = 96;
+    private static final int START_ERROR = 24;
+    private static final int STOP_ERROR = 8;
+    private static final int SATURATED_LEVEL = 250;
+    private static final int MAX_SATURATED_PERCENT = 2;
+    private static final int MAX_STEPS = 3;
+    private static final int INITIAL_LEVELS_PER_STEP = 12;
+    private static final int MIN_LEVELS_PER_STEP = 2;
+    private static final int MAX_LEVELS_PER_STEP = 64;
+    /** Pictures after a step before judging it, the server may have some in flight. */
+    private static final int SETTLE_PICTURES = IntensityHistogram.PHASES + 2;
+    private static final long MANUAL_HOLD_NANOS = 10 * 1000000000L;
+
+    private final IntensityHistogram histogram = new IntensityHistogram(MAX_SAMPLES_PER_PICTURE);
+    private final IntensityHistogram.RowReader rowReader = new IntensityHistogram.RowReader() {
+        @Override
+        public void readRow(int y, int[] row) {
+            picture.getPixels(row, 0, picture.getWidth(), 0, y, picture.getWidth(), 1);
+        }
+    };
+    private Bitmap picture;     // Being sampled.
+    private volatile boolean enabled;
+    private volatile boolean restart;
+    private volatile long holdUntilNanos = System.nanoTime();
+    private boolean adjusting;
+    private int settlePictures;
+    private int levelsPerStep = INITIAL_LEVELS_PER_STEP;
+    private int stepLevel;      // Brightness before the last steps.
+    private int steps;          // Last steps, positive up.
+    private String stepGain;    // Gain before the last steps.
+    private int limitDirection; // Direction the gain didn't change in, being at its end.
+    private long lastCostNanos;
+
+    /**
+     * @return True if automatic gain is on now.
+     */
+    boolean toggle() {
+        restart = true;     // The communication thread may be sampling, it starts over.
+        enabled = !enabled;
+        return enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Holds off automatic steps for a while, as the user changed the gain.
+     */
+    void manualAdjustment() {
+        holdUntilNanos = System.nanoTime() + MANUAL_HOLD_NANOS;
+    }
+
+    /**
+     * Samples a new picture and decides on gain steps. Communication thread only.
+     * @param newPicture Picture as received, before any filtering.
+     * @param gain Gain last reported by the server, empty if unknown.
+     * @param commandsWaiting True if other commands are waiting, which go first, so no steps
+     *                        are decided on.
+     * @return Number of {@link Command#GAIN_UP} steps to take now, negative for
+     * {@link Command#GAIN_DOWN}, 0 for none.
+     */
+    int pictureReceived(Bitmap newPicture, String gain, boolean commandsWaiting) {
+        if (!enabled) {
+            return 0;
+        }
+        if (restart) {
+            restart = false;
+            reset();
+        }
+        long startNanos = System.nanoTime();
+        picture = newPicture;
+        histogram.add(rowReader, newPicture.getWidth(), newPicture.getHeight());
+        picture = null;
+        lastCostNanos = System.nanoTime() - startNanos;
+
+        if (!histogram.isComplete()
+                || histogram.getPercentAtLeast(BACKGROUND_LEVEL) < MIN_TISSUE_PERCENT) {
+            return 0;
+        }
+        int level = histogram.getMeanAtLeast(BACKGROUND_LEVEL);
+        if (settlePictures > 0) {
+            if (--settlePictures == 0) {
+                learn(level, gain);
+            }
+            return 0;
+        }
+        if (System.nanoTime() - holdUntilNanos < 0) {
+            adjusting = false;
+            return 0;
+        }
+        if (commandsWaiting) {
+            return 0;
+        }
+
+        int error = level - TARGET_LEVEL;
+        if (histogram.getPercentAtLeast(SATURATED_LEVEL) > MAX_SATURATED_PERCENT) {
+            error = Math.max(error, START_ERROR + 1);
+        }
+        if (Math.abs(error) <= (adjusting ? STOP_ERROR : START_ERROR)) {
+            adjusting = false;
+            return 0;
+        }
+        adjusting = true;
+        int direction = error > 0 ? -1 : 1;
+        if (direction == limitDirection) {
+            return 0;
+        }
+        limitDirection = 0;
+        int count = Math.max(1, Math.min(MAX_STEPS,
+                (Math.abs(error) + levelsPerStep / 2) / levelsPerStep));
+        stepLevel = level;
+        steps = direction * count;
+        stepGain = gain;
+        settlePictures = SETTLE_PICTURES;
+        return steps;
+    }
+
+    /**
+     * @return How long sampling the last picture took, in nanoseconds.
+     */
+    long getLastCostNanos() {
+        return lastCostNanos;
+    }
+
+    /**
+     * Updates the brightness change per step from the last steps, or notes the end of the gain
+     * range if the gain didn't change.
+     */
+    private void learn(int level, String gain) {
+        if (gain.length() > 0 && gain.equals(stepGain)) {
+            limitDirection = steps > 0 ? 1 : -1;
+            Log.d(LOG_TAG, "Auto gain at the end of the range, gain " + gain);
+            return;
+        }
+        int change = (level - stepLevel) / steps;
+        if (change > 0) {   // Anything else is the scene changing.
+            int observed = Math.max(MIN_LEVELS_PER_STEP, Math.min(MAX_LEVELS_PER_STEP, change));
+            levelsPerStep += (observed - levelsPerStep) / 2;
+        }
+    }
+
+    private void reset() {
+        histogram.reset();
+        adjusting = false;
+        settlePictures = 0;
+        limitDirection = 0;
+    }
+}
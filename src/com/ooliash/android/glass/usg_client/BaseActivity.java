@@ -99,6 +99,7 @@ public abstract class BaseActivity extends Activity {
                 lastBatteryLevel = batteryLevel;
                 batteryState.setText(buildBatteryBar());
             }
+            onBatteryChanged(intent);
         }
     };
 
@@ -142,6 +143,13 @@ public abstract class BaseActivity extends Activity {
      */
     protected abstract boolean handleGesture(Gesture gesture);
 
+    /**
+     * Called with every {@link Intent#ACTION_BATTERY_CHANGED} broadcast, for subclasses adapting
+     * their work to the battery state.
+     */
+    protected void onBatteryChanged(Intent intent) {
+    }
+
     /** Plays the sound effect of the specified type. */
     protected void playSoundEffect(int effectType) {
         audioManager.playSoundEffect(effectType);
@@ -0,0 +1,38 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decodes the formats {@link BitmapFactory} knows, JPEG, WebP and PNG, into mutable Bitmaps so
+ * they can be decoded into again.
+ */
+final class BitmapFactoryDecoder implements PictureDecoder {
+    private static final int DECODE_STORAGE_SIZE = 16 * 1024;
+
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+
+    BitmapFactoryDecoder() {
+        options.inMutable = true;
+        options.inTempStorage = new byte[DECODE_STORAGE_SIZE];
+    }
+
+    @Override
+    public Bitmap decode(byte[] picture, int length, int sampleSize, Bitmap reuse) {
+        options.inSampleSize = sampleSize;
+        options.inBitmap = reuse;
+        try {
+            return BitmapFactory.decodeByteArray(picture, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            if (reuse == null) {
+                throw e;
+            }
+            // Reused picture too small, e.g. after the server's picture size grew.
+            reuse.recycle();
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(picture, 0, length, options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+}
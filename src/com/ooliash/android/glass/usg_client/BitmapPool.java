@@ -0,0 +1,44 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pictures no longer on the screen, kept for decoding the next pictures into, so a steady stream
+ * doesn't allocate a Bitmap per picture.
+ *
+ * A picture is released only by the last one to use it, the renderer once it shows a newer
+ * picture or the {@link FramePacer} when it drops one; until then it's never decoded into.
+ */
+final class BitmapPool {
+    private final Bitmap[] bitmaps;
+    private int count;
+
+    /**
+     * @param capacity Most pictures kept, more are left to the garbage collector.
+     */
+    BitmapPool(int capacity) {
+        bitmaps = new Bitmap[capacity];
+    }
+
+    /**
+     * @return Picture to decode into, null if there's none.
+     */
+    synchronized Bitmap acquire() {
+        if (count == 0) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps[--count];
+        bitmaps[count] = null;
+        return bitmap;
+    }
+
+    /**
+     * Takes back a picture nobody uses any more. Immutable ones can't be decoded into and are
+     * left alone.
+     */
+    synchronized void release(Bitmap bitmap) {
+        if (bitmap != null && bitmap.isMutable() && count < bitmaps.length) {
+            bitmaps[count++] = bitmap;
+        }
+    }
+}
@@ -8,6 +8,20 @@ final class Command {
     static final String GET_TX_FREQUENCY = "GET_TX_FREQUENCY";
     static final String GET_TX_TYPE = "GET_TX_TYPE";
     static final String GET_FPS = "GET_FPS";
+    // All of the above GET_* in one reply, and the freeze state, see UsgParameters.
+    static final String GET_STATE = "GET_STATE";
+    // Cropped picture of higher detail, "GET_PICTURE_ROI:left,top,right,bottom" in per mille
+    // of the whole picture.
+    static final String GET_PICTURE_ROI = "GET_PICTURE_ROI";
+    // "GET_PICTURE:id" asks for the picture only if it isn't the one of the given ID, FrameHash
+    // of its bytes, otherwise the server replies NOT_MODIFIED.
+    static final String NOT_MODIFIED = "NOT_MODIFIED";
+    // Picture formats the server can send, see PictureFormat; "SET_FORMAT:name" switches to one.
+    static final String GET_FORMATS = "GET_FORMATS";
+    static final String SET_FORMAT = "SET_FORMAT";
+    // Keepalive, sent over a connection of its own, see WindowsSocketCommunication. The server
+    // replies with it, servers not knowing it with an error, which will do too.
+    static final String PING = "PING";
     static final String FREEZE = "FREEZE";
     static final String GAIN_UP = "GAIN_UP";
     static final String GAIN_DOWN = "GAIN_DOWN";
@@ -0,0 +1,55 @@
+package com.ooliash.android.glass.usg_client;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide place where an already connected {@link WindowsSocketCommunication} can be left
+ * for the activity starting next, so switching to a server doesn't cost reconnect latency.
+ */
+final class ConnectionHandoff {
+    private static final Map<InetAddress, WindowsSocketCommunication> connections =
+            new HashMap<InetAddress, WindowsSocketCommunication>();
+
+    private ConnectionHandoff() {
+    }
+
+    /**
+     * Leaves idle, connected communication for the next user. Replaces (and disconnects) any
+     * communication previously left for the same server.
+     * @param communication Connected communication with no request in flight.
+     */
+    static void offer(WindowsSocketCommunication communication) {
+        WindowsSocketCommunication previous;
+        synchronized (connections) {
+            previous = connections.put(communication.getServerAddress(), communication);
+        }
+        if (previous != null && previous != communication) {
+            previous.disconnectFromUsgServer();
+        }
+    }
+
+    /**
+     * Takes communication left for the given server.
+     * @param serverAddress Server address or null if any server will do.
+     * @return Connected communication or null if there's none.
+     */
+    static WindowsSocketCommunication take(InetAddress serverAddress) {
+        WindowsSocketCommunication communication;
+        synchronized (connections) {
+            if (serverAddress == null) {
+                if (connections.isEmpty()) {
+                    return null;
+                }
+                serverAddress = connections.keySet().iterator().next();
+            }
+            communication = connections.remove(serverAddress);
+        }
+        if (communication != null && !communication.isConnected()) {
+            communication.disconnectFromUsgServer();
+            return null;
+        }
+        return communication;
+    }
+}
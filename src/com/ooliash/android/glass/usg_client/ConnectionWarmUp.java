@@ -0,0 +1,127 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Discovers USG servers and connects to the server ahead of time, while the splash screen is
+ * shown, so a session starts with the discovery done and the connection already open in
+ * {@link ConnectionHandoff}.
+ *
+ * Only a single server in the network is connected to: with more of them the user picks one, and
+ * {@link UsgServerPickerActivity} starts with the servers found here.
+ */
+final class ConnectionWarmUp {
+    private static final String LOG_TAG = "USG";
+    private static final int DISCOVERY_WINDOW = 1000;
+    /** Results are reused for this long, e.g. when coming back to the splash screen. */
+    private static final long MAX_AGE_MILLIS = 30000;
+
+    private static Thread thread;
+    private static List<InetAddress> servers = new ArrayList<InetAddress>();
+    private static long discoveredAtMillis;
+    private static InetAddress connectedServer;     // Connection left in ConnectionHandoff.
+
+    private ConnectionWarmUp() {
+    }
+
+    /**
+     * Starts discovery and connection in the background, unless running or recently done.
+     */
+    static synchronized void start() {
+        if ((thread != null && thread.isAlive())
+                || System.currentTimeMillis() - discoveredAtMillis < MAX_AGE_MILLIS) {
+            return;
+        }
+        thread = new Thread("USG warm-up") {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        };
+        thread.start();
+    }
+
+    /**
+     * Stops the warm-up if it's still running, e.g. as the server picker does its own.
+     */
+    static synchronized void cancel() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Cancels the warm-up and closes the connection it opened, unless a session has taken it.
+     */
+    static void release() {
+        InetAddress server;
+        synchronized (ConnectionWarmUp.class) {
+            cancel();
+            server = connectedServer;
+            connectedServer = null;
+            discoveredAtMillis = 0;
+        }
+        if (server != null) {
+            WindowsSocketCommunication communication = ConnectionHandoff.take(server);
+            if (communication != null) {
+                communication.disconnectFromUsgServer();
+            }
+        }
+    }
+
+    /**
+     * @return Servers found by the last warm-up, in order of response.
+     */
+    static synchronized List<InetAddress> getServers() {
+        return new ArrayList<InetAddress>(servers);
+    }
+
+    /**
+     * @return The only server found if the warm-up connected to it, otherwise null. The
+     * connection can be taken from {@link ConnectionHandoff} only once.
+     */
+    static synchronized InetAddress takeConnectedServer() {
+        InetAddress server = connectedServer;
+        connectedServer = null;
+        return server;
+    }
+
+    private static void warmUp() {
+        long startNanos = System.nanoTime();
+        List<InetAddress> found = UsgServerDiscovery.findAllServers(DISCOVERY_WINDOW, null);
+        long discoveryNanos = System.nanoTime() - startNanos;
+        synchronized (ConnectionWarmUp.class) {
+            if (Thread.currentThread() != thread) {
+                return;     // Cancelled.
+            }
+            servers = found;
+            if (!found.isEmpty()) {
+                discoveredAtMillis = System.currentTimeMillis();
+            }
+        }
+        if (found.size() != 1) {
+            Log.i(LOG_TAG, "Warm-up: " + found.size() + " servers found in "
+                    + discoveryNanos / 1000000 + " ms");
+            return;
+        }
+
+        WindowsSocketCommunication communication = new WindowsSocketCommunication(found.get(0));
+        communication.connectToUsgServer();     // Retries until connected, gives up in the end.
+        synchronized (ConnectionWarmUp.class) {
+            if (Thread.currentThread() != thread || !communication.isConnected()) {
+                communication.disconnectFromUsgServer();
+                return;
+            }
+            ConnectionHandoff.offer(communication);
+            connectedServer = found.get(0);
+            thread = null;
+        }
+        Log.i(LOG_TAG, "Warm-up: discovery " + discoveryNanos / 1000000 + " ms, connect "
+                + communication.getLastConnectNanos() / 1000000 + " ms");
+    }
+}
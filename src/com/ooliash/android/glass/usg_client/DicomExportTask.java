@@ -0,0 +1,66 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.ooliash.usg.export.DicomExporter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Exports a session to DICOM in the background: saved pictures to one multi-frame object and each
+ * traffic capture to another, in the DICOM directory of the session. The result is shown as a
+ * toast, so the export can outlive the screen it was started from.
+ */
+class DicomExportTask extends AsyncTask<File, Void, String> {
+    private static final String LOG_TAG = "USG";
+
+    private final Context applicationContext;
+
+    DicomExportTask(Context context) {
+        applicationContext = context.getApplicationContext();
+    }
+
+    @Override
+    protected String doInBackground(File... sessionDirectories) {
+        File sessionDirectory = sessionDirectories[0];
+        File dicomDirectory = UsgStorage.getDicomDirectory(sessionDirectory);
+        DicomExporter exporter = new DicomExporter(WindowsSocketCommunication.PICTURE_BUFFER_SIZE);
+        long startMillis = System.currentTimeMillis();
+        int files = 0;
+        int frames = 0;
+        try {
+            File output = new File(dicomDirectory,
+                    sessionDirectory.getName() + DicomExporter.DICOM_EXTENSION);
+            int exported = exporter.exportPictures(sessionDirectory, output);
+            if (exported > 0) {
+                files++;
+                frames += exported;
+            }
+            for (File capture : UsgStorage.getCaptureFiles(sessionDirectory)) {
+                String name = capture.getName();
+                output = new File(dicomDirectory,
+                        name.substring(0, name.lastIndexOf('.')) + DicomExporter.DICOM_EXTENSION);
+                exported = exporter.exportCapture(capture, output);
+                if (exported > 0) {
+                    files++;
+                    frames += exported;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "DICOM export failed: " + e.getMessage());
+            return applicationContext.getString(R.string.dicom_export_failed);
+        }
+        Log.i(LOG_TAG, "Exported " + frames + " frames to " + files + " DICOM files in "
+                + (System.currentTimeMillis() - startMillis) + " ms");
+        return applicationContext.getString(R.string.dicom_exported, files, frames);
+    }
+
+    @Override
+    protected void onPostExecute(String message) {
+        Toast.makeText(applicationContext, message, Toast.LENGTH_LONG).show();
+    }
+}
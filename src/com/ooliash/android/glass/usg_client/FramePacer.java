@@ -0,0 +1,228 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Small jitter buffer presenting USG pictures on display vsync ticks at a smoothed cadence.
+ *
+ * Each picture gets a due time: the previous due time plus the smoothed frame interval, pulled
+ * slightly towards the picture's timestamp plus the target delay so the playout never drifts away
+ * from the stream. The target delay adapts to the measured arrival jitter but never drops below
+ * the configured one.
+ *
+ * Pictures are offered from the communication thread; presentation runs on the {@link
+ * Choreographer} of the thread that called {@link #start()}.
+ */
+final class FramePacer implements Choreographer.FrameCallback {
+
+    /**
+     * Receives pictures when they are due.
+     */
+    interface FrameSink {
+        void showFrame(Bitmap frame);
+
+        /**
+         * Takes back a picture which won't be shown, as a newer one replaced it.
+         */
+        void discardFrame(Bitmap frame);
+    }
+
+    // Constants.
+    private static final String LOG_TAG = "USG";
+    private static final int CAPACITY = 4;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long VSYNC_PERIOD = 16666667L;
+    private static final long MAX_TARGET_DELAY = 250 * NANOS_PER_MILLI;
+    private static final long STREAM_IDLE_TIME = 1000 * NANOS_PER_MILLI;
+    /** Target delay as a multiple of the mean jitter, covers nearly all late arrivals. */
+    private static final int JITTER_MULTIPLIER = 3;
+    /** Weight of a new sample in the interval and jitter averages is 1/2^SMOOTHING_SHIFT. */
+    private static final int SMOOTHING_SHIFT = 4;
+    /** Fraction of the distance to the natural due time corrected at every picture. */
+    private static final double CADENCE_CORRECTION = 0.1;
+
+    private final FrameSink sink;
+    private final long minTargetDelay;
+
+    // Ring buffer of pictures waiting for presentation, guarded by this.
+    private final Bitmap[] frames = new Bitmap[CAPACITY];
+    private final long[] timestamps = new long[CAPACITY];
+    private int head;
+    private int count;
+
+    // Arrival statistics.
+    private long lastTimestamp = -1;
+    private long smoothedInterval;
+    private long jitter;
+    private long targetDelay;
+
+    // Presentation state.
+    private Choreographer choreographer;
+    private boolean running;
+    private long lastDueTime = -1;
+    private long nextExpectedDueTime = -1;
+
+    // Statistics.
+    private int presentedFrames;
+    private int lateFrames;
+    private int droppedFrames;
+    private int repeatedFrames;
+
+    /**
+     * @param sink Receiver of the pictures, called on the thread which started the pacer.
+     * @param targetDelayMillis Minimum delay between picture arrival and its presentation.
+     */
+    FramePacer(FrameSink sink, int targetDelayMillis) {
+        this.sink = sink;
+        this.minTargetDelay = targetDelayMillis * NANOS_PER_MILLI;
+        this.targetDelay = minTargetDelay;
+    }
+
+    /**
+     * Starts presenting on vsync ticks. Must be called on a looper thread.
+     */
+    synchronized void start() {
+        choreographer = Choreographer.getInstance();
+        running = true;
+        choreographer.postFrameCallback(this);
+    }
+
+    /**
+     * Stops presenting and drops pictures still waiting. Must be called on the starting thread.
+     */
+    synchronized void stop() {
+        running = false;
+        choreographer.removeFrameCallback(this);
+        while (count > 0) {
+            sink.discardFrame(frames[head]);
+            frames[head] = null;
+            head = (head + 1) % CAPACITY;
+            count--;
+        }
+        Log.d(LOG_TAG, "Frame pacer stopped: " + getStatistics());
+    }
+
+    /**
+     * Adds the picture to the jitter buffer. Drops the oldest waiting picture if it's full.
+     * @param frame Decoded picture.
+     * @param timestampNanos Picture timestamp on the {@link System#nanoTime()} clock.
+     */
+    synchronized void offer(Bitmap frame, long timestampNanos) {
+        if (lastTimestamp >= 0) {
+            long interval = timestampNanos - lastTimestamp;
+            if (smoothedInterval == 0) {
+                smoothedInterval = interval;
+            } else {
+                smoothedInterval += (interval - smoothedInterval) >> SMOOTHING_SHIFT;
+            }
+            jitter += (Math.abs(interval - smoothedInterval) - jitter) >> SMOOTHING_SHIFT;
+            targetDelay = Math.min(MAX_TARGET_DELAY,
+                    Math.max(minTargetDelay, JITTER_MULTIPLIER * jitter));
+        }
+        lastTimestamp = timestampNanos;
+
+        if (count == CAPACITY) {
+            sink.discardFrame(frames[head]);
+            frames[head] = null;
+            head = (head + 1) % CAPACITY;
+            count--;
+            droppedFrames++;
+        }
+        int tail = (head + count) % CAPACITY;
+        frames[tail] = frame;
+        timestamps[tail] = timestampNanos;
+        count++;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        Bitmap frameToShow = null;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            long frameDueTime = 0;
+            while (count > 0) {
+                long dueTime = dueTime(timestamps[head]);
+                if (dueTime > frameTimeNanos) {
+                    break;
+                }
+                if (frameToShow != null) {
+                    droppedFrames++;    // Newer picture is due as well.
+                    sink.discardFrame(frameToShow);
+                }
+                frameToShow = frames[head];
+                frameDueTime = dueTime;
+                lastDueTime = dueTime;
+                frames[head] = null;
+                head = (head + 1) % CAPACITY;
+                count--;
+            }
+
+            if (frameToShow != null) {
+                presentedFrames++;
+                if (frameTimeNanos - frameDueTime > VSYNC_PERIOD) {
+                    lateFrames++;
+                }
+                nextExpectedDueTime = frameDueTime + smoothedInterval;
+            } else if (nextExpectedDueTime >= 0 && smoothedInterval > 0
+                    && frameTimeNanos > nextExpectedDueTime + VSYNC_PERIOD
+                    && frameTimeNanos - lastTimestamp < STREAM_IDLE_TIME) {
+                repeatedFrames++;   // Previous picture stays on screen for another interval.
+                nextExpectedDueTime += smoothedInterval;
+            }
+            choreographer.postFrameCallback(this);
+        }
+
+        if (frameToShow != null) {
+            sink.showFrame(frameToShow);
+        }
+    }
+
+    /**
+     * @return Time at which the picture with the given timestamp should be presented.
+     */
+    private long dueTime(long timestamp) {
+        long naturalDueTime = timestamp + targetDelay;
+        if (lastDueTime < 0) {
+            return naturalDueTime;
+        }
+        long smoothDueTime = lastDueTime + smoothedInterval;
+        long error = naturalDueTime - smoothDueTime;
+        if (Math.abs(error) > targetDelay + smoothedInterval) {
+            return naturalDueTime;  // Stream paused or changed rate, start over.
+        }
+        return smoothDueTime + (long) (error * CADENCE_CORRECTION);
+    }
+
+    synchronized int getPresentedFrames() {
+        return presentedFrames;
+    }
+
+    /** @return Number of pictures presented more than one vsync after their due time. */
+    synchronized int getLateFrames() {
+        return lateFrames;
+    }
+
+    /** @return Number of pictures never presented, because a newer one replaced them. */
+    synchronized int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /** @return Number of frame intervals in which the previous picture had to stay on screen. */
+    synchronized int getRepeatedFrames() {
+        return repeatedFrames;
+    }
+
+    synchronized int getTargetDelayMillis() {
+        return (int) (targetDelay / NANOS_PER_MILLI);
+    }
+
+    synchronized String getStatistics() {
+        return "presented " + presentedFrames + ", late " + lateFrames + ", dropped "
+                + droppedFrames + ", repeated " + repeatedFrames + ", delay "
+                + targetDelay / NANOS_PER_MILLI + " ms";
+    }
+}
@@ -0,0 +1,196 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.content.Intent;
+import android.net.wifi.WifiManager;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Picks how hard the session works from the user selected profile, battery level, charging state
+ * and battery temperature (the only temperature Glass reports to applications).
+ *
+ * The effective profile is the selected one, lowered when the battery is low and not charging, or
+ * when the device gets hot. It sets the minimum interval between picture polls, the decode
+ * subsampling and whether Wi-Fi is kept in high performance mode. Received frame rate and the
+ * measured battery drain are logged periodically, so the thresholds below can be tuned.
+ *
+ * Battery updates and profile changes come on the UI thread, the settings are read by the
+ * communication thread.
+ */
+class FrameRateGovernor {
+    // Profiles, from the most to the least demanding.
+    static final int PROFILE_PERFORMANCE = 0;
+    static final int PROFILE_BALANCED = 1;
+    static final int PROFILE_ENDURANCE = 2;
+
+    private static final String[] PROFILE_NAMES = { "performance", "balanced", "endurance" };
+    private static final int[] POLL_INTERVALS_MS = { 0, 66, 200 };     // flat out, ~15, 5 fps
+    private static final int[] SAMPLE_SIZES = { 1, 1, 2 };
+
+    private static final String LOG_TAG = "USG";
+    private static final int LOW_BATTERY_PERCENT = 30;
+    private static final int CRITICAL_BATTERY_PERCENT = 15;
+    private static final int WARM_TENTHS_CELSIUS = 400;
+    private static final int HOT_TENTHS_CELSIUS = 450;
+    private static final int TEMPERATURE_HYSTERESIS = 20;
+    private static final long LOG_INTERVAL_NANOS = 10000000000L;
+
+    private final WifiManager.WifiLock wifiLock;
+
+    private int selectedProfile = PROFILE_BALANCED;
+    private int batteryPercent = 100;
+    private boolean charging;
+    private int temperature;            // Tenths of degree Celsius.
+    private int thermalSteps;           // Profiles to step down because of temperature.
+
+    private volatile int effectiveProfile = PROFILE_BALANCED;
+
+    // Battery drain since the effective profile last changed.
+    private int drainStartPercent = -1;
+    private long drainStartMillis;
+    private float drainPercentPerHour;
+
+    // Frame rate, touched by the communication thread only.
+    private int framesSinceLog;
+    private long lastLogNanos;
+
+    /**
+     * @param wifiManager Wi-Fi manager to hold the high performance lock with.
+     */
+    FrameRateGovernor(WifiManager wifiManager) {
+        wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, LOG_TAG);
+        wifiLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Selects profile and applies it, unless battery or temperature require a lower one.
+     * @param profile One of PROFILE_* constants.
+     */
+    void setProfile(int profile) {
+        selectedProfile = profile;
+        update();
+    }
+
+    int getSelectedProfile() {
+        return selectedProfile;
+    }
+
+    /**
+     * @return Name of the profile in effect, e.g. for status messages.
+     */
+    String getEffectiveProfileName() {
+        return PROFILE_NAMES[effectiveProfile];
+    }
+
+    /**
+     * Updates battery state from {@link Intent#ACTION_BATTERY_CHANGED} broadcast.
+     */
+    void onBatteryChanged(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        batteryPercent = scale > 0 ? level * 100 / scale : level;
+        charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+
+        int steps = temperature >= HOT_TENTHS_CELSIUS ? 2
+                : temperature >= WARM_TENTHS_CELSIUS ? 1 : 0;
+        if (steps < thermalSteps) {
+            // Step up again only when clearly cooler, not to flap around the threshold.
+            int threshold = thermalSteps == 2 ? HOT_TENTHS_CELSIUS : WARM_TENTHS_CELSIUS;
+            if (temperature > threshold - TEMPERATURE_HYSTERESIS) {
+                steps = thermalSteps;
+            }
+        }
+        thermalSteps = steps;
+        updateDrain();
+        update();
+    }
+
+    /**
+     * @return Minimum time between two picture polls, 0 to poll as fast as the server replies.
+     */
+    int getPollIntervalMillis() {
+        return POLL_INTERVALS_MS[effectiveProfile];
+    }
+
+    /**
+     * @return Subsampling factor to decode pictures with, 1 for full resolution.
+     */
+    int getSampleSize() {
+        return SAMPLE_SIZES[effectiveProfile];
+    }
+
+    /**
+     * Counts a received frame and periodically logs the frame rate and battery drain.
+     * Called on the communication thread.
+     */
+    void frameReceived() {
+        framesSinceLog++;
+        long now = System.nanoTime();
+        if (lastLogNanos == 0) {
+            lastLogNanos = now;
+        } else if (now - lastLogNanos >= LOG_INTERVAL_NANOS) {
+            float fps = framesSinceLog * 1e9f / (now - lastLogNanos);
+            Log.i(LOG_TAG, String.format("Governor: %s, %.1f fps, battery %d%%%s, %.1f%%/h,"
+                            + " %.1f\u00b0C", PROFILE_NAMES[effectiveProfile], fps,
+                    batteryPercent, charging ? " charging" : "", drainPercentPerHour,
+                    temperature / 10f));
+            framesSinceLog = 0;
+            lastLogNanos = now;
+        }
+    }
+
+    /**
+     * Releases the Wi-Fi lock, call when the session stops.
+     */
+    void release() {
+        if (wifiLock.isHeld()) {
+            wifiLock.release();
+        }
+    }
+
+    private void update() {
+        int profile = selectedProfile + thermalSteps;
+        if (!charging) {
+            if (batteryPercent <= CRITICAL_BATTERY_PERCENT) {
+                profile = PROFILE_ENDURANCE;
+            } else if (batteryPercent <= LOW_BATTERY_PERCENT) {
+                profile = Math.max(profile, PROFILE_BALANCED);
+            }
+        }
+        profile = Math.min(profile, PROFILE_ENDURANCE);
+
+        if (profile != effectiveProfile) {
+            Log.i(LOG_TAG, "Governor: " + PROFILE_NAMES[effectiveProfile] + " -> "
+                    + PROFILE_NAMES[profile] + " (selected " + PROFILE_NAMES[selectedProfile]
+                    + ", battery " + batteryPercent + "%, " + temperature / 10f + "\u00b0C)");
+            effectiveProfile = profile;
+            drainStartPercent = -1;     // Measure drain of the new profile from scratch.
+        }
+        // Power save of the radio adds up to a beacon interval of latency, worth it only when
+        // frames aren't polled flat out anyway.
+        if (profile == PROFILE_PERFORMANCE) {
+            wifiLock.acquire();
+        } else if (wifiLock.isHeld()) {
+            wifiLock.release();
+        }
+    }
+
+    /**
+     * Estimates battery drain per hour from level changes while not charging.
+     */
+    private void updateDrain() {
+        long now = SystemClock.elapsedRealtime();
+        if (charging || drainStartPercent < 0 || batteryPercent > drainStartPercent) {
+            drainStartPercent = charging ? -1 : batteryPercent;
+            drainStartMillis = now;
+            drainPercentPerHour = 0;
+            return;
+        }
+        long elapsed = now - drainStartMillis;
+        if (elapsed > 0 && batteryPercent < drainStartPercent) {
+            drainPercentPerHour = (drainStartPercent - batteryPercent) * 3600000f / elapsed;
+        }
+    }
+}
@@ -34,6 +34,8 @@ import android.view.MotionEvent;
 import android.view.Window;
 import android.view.WindowManager;
 
+import java.net.InetAddress;
+
 /**
  * The initial splash screen activity in the application that displays a "Start transfer" prompt and
  * allows the user to tap to access the instructions.
@@ -79,6 +81,20 @@ public class MainActivity extends Activity {
         setContentView(R.layout.start_usg_app_layout);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Find and connect to the server while the user is still in the menu.
+        TransportSecurity.configure(getApplicationContext());
+        ConnectionWarmUp.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        ConnectionWarmUp.release();
+    }
+
     @Override
     public boolean onGenericMotionEvent(MotionEvent event) {
         return mGestureDetector.onMotionEvent(event);
@@ -125,6 +141,15 @@ public class MainActivity extends Activity {
                         }
                     });
                     return true;
+                case R.id.gallery:
+                    Log.d(LOG_TAG, "Voice: Gallery");
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startGallery();
+                        }
+                    });
+                    return true;
 //                case R.id.instructions:
 //                    Log.d(LOG_TAG, "Voice: Instructions");
 //                    mHandler.post(new Runnable() {
@@ -146,11 +171,28 @@ public class MainActivity extends Activity {
     }
 
     /**
-     * Starts the main video transfer activity, and finishes this activity so that the user is not returned
-     * to the splash screen when they exit.
+     * Starts the main video transfer activity (through the USG server picker, unless the warm-up
+     * already connected to the only server), and finishes this activity so that the user is not
+     * returned to the splash screen when they exit.
      */
     private void startNewSession() {
-        startActivity(new Intent(this, UsgSessionActivity.class));
+        InetAddress server = ConnectionWarmUp.takeConnectedServer();
+        if (server != null) {
+            // The only server is connected to already, nothing to pick.
+            Intent intent = new Intent(this, UsgSessionActivity.class);
+            intent.putExtra(UsgSessionActivity.EXTRA_SERVER_ADDRESS, server.getHostAddress());
+            startActivity(intent);
+        } else {
+            ConnectionWarmUp.cancel();
+            startActivity(new Intent(this, UsgServerPickerActivity.class));
+        }
+    }
+
+    /**
+     * Starts the gallery of saved pictures, returning to the splash screen when it's closed.
+     */
+    private void startGallery() {
+        startActivity(new Intent(this, UsgGalleryActivity.class));
     }
 
     /**
@@ -0,0 +1,17 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+
+/**
+ * Decoder of pictures in one of the {@link com.ooliash.usg.protocol.PictureFormat}s. Keeps its
+ * buffers from picture to picture, so an instance is used by one thread only.
+ */
+interface PictureDecoder {
+    /**
+     * @param picture Picture bytes, from offset 0.
+     * @param sampleSize Subsampling factor, e.g. 4 decodes every 4th pixel in each dimension.
+     * @param reuse Bitmap no longer shown to decode into, if it fits, null to allocate one.
+     * @return Decoded picture, null if it couldn't be decoded.
+     */
+    Bitmap decode(byte[] picture, int length, int sampleSize, Bitmap reuse);
+}
@@ -0,0 +1,160 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Picks the picture format giving the shortest time per picture, the transfer at the measured
+ * link throughput plus the decode, as pictures are polled one after another.
+ *
+ * Every format offered is tried for a few pictures first, then the cheapest is kept. Its bytes
+ * and decode time keep being measured, and the link throughput with every format, so a slower
+ * link can move the choice to a smaller format. All formats are tried again now and then, as
+ * their sizes depend on what's being scanned.
+ */
+final class PictureFormatSelector {
+    private static final String LOG_TAG = "USG";
+    private static final int PROBE_PICTURES = 8;
+    private static final long REPROBE_INTERVAL_NANOS = 120 * 1000000000L;
+    /** Weight of a new sample in the averages is 1/2^SMOOTHING_SHIFT. */
+    private static final int SMOOTHING_SHIFT = 3;
+    /** Throughput is only taken from pictures of at least this size, small ones come in bursts. */
+    private static final int MIN_THROUGHPUT_BYTES = 16 * 1024;
+    /** A format must be this much cheaper, in percent, to replace the current one. */
+    private static final int SWITCH_MARGIN_PERCENT = 15;
+
+    private final String[] formats;
+    private final long[] bytesPerPicture;
+    private final long[] decodeNanos;
+    private final int[] samples;
+    private final boolean[] rejected;
+    private long bytesPerSecond;
+    private boolean probing = true;
+    private long probeEndNanos;
+    private int selected;
+
+    /**
+     * @param formats Formats both the server and the client support, the preferred first.
+     */
+    PictureFormatSelector(List<String> formats) {
+        this.formats = formats.toArray(new String[formats.size()]);
+        bytesPerPicture = new long[this.formats.length];
+        decodeNanos = new long[this.formats.length];
+        samples = new int[this.formats.length];
+        rejected = new boolean[this.formats.length];
+    }
+
+    /**
+     * Records a decoded picture.
+     * @param format Format the picture came in.
+     * @param bytes Size of the picture.
+     * @param transferNanos Time from the first to the last byte of the picture.
+     * @param pictureDecodeNanos Time its decoding took.
+     */
+    void pictureDecoded(String format, int bytes, long transferNanos, long pictureDecodeNanos) {
+        int index = indexOf(format);
+        if (index < 0) {
+            return;
+        }
+        if (samples[index] == 0) {
+            bytesPerPicture[index] = bytes;
+            decodeNanos[index] = pictureDecodeNanos;
+        } else {
+            bytesPerPicture[index] += (bytes - bytesPerPicture[index]) >> SMOOTHING_SHIFT;
+            decodeNanos[index] += (pictureDecodeNanos - decodeNanos[index]) >> SMOOTHING_SHIFT;
+        }
+        samples[index]++;
+        if (bytes >= MIN_THROUGHPUT_BYTES && transferNanos > 0) {
+            long throughput = bytes * 1000000000L / transferNanos;
+            if (bytesPerSecond == 0) {
+                bytesPerSecond = throughput;
+            } else {
+                bytesPerSecond += (throughput - bytesPerSecond) >> SMOOTHING_SHIFT;
+            }
+        }
+    }
+
+    /**
+     * Takes the format out of the choice, as the server refused to switch to it.
+     */
+    void reject(String format) {
+        int index = indexOf(format);
+        if (index > 0) {    // The first one is what the connection starts with.
+            rejected[index] = true;
+        }
+    }
+
+    /**
+     * @return Format the pictures should come in now, one of those given.
+     */
+    String getFormat(long nowNanos) {
+        if (probing) {
+            for (int i = 0; i < formats.length; i++) {
+                if (!rejected[i] && samples[i] < PROBE_PICTURES) {
+                    return formats[i];
+                }
+            }
+            probing = false;
+            probeEndNanos = nowNanos;
+            selected = cheapest();
+            Log.i(LOG_TAG, "Picture format " + formats[selected] + " selected, " + describe());
+            return formats[selected];
+        }
+        if (nowNanos - probeEndNanos > REPROBE_INTERVAL_NANOS) {
+            probing = true;
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = 0;
+            }
+            return getFormat(nowNanos);
+        }
+        int cheapest = cheapest();
+        if (cheapest != selected && cost(cheapest) * 100
+                < cost(selected) * (100 - SWITCH_MARGIN_PERCENT)) {
+            selected = cheapest;
+            Log.i(LOG_TAG, "Picture format " + formats[selected] + " selected, " + describe());
+        }
+        return formats[selected];
+    }
+
+    private int cheapest() {
+        int cheapest = 0;
+        for (int i = 1; i < formats.length; i++) {
+            if (!rejected[i] && samples[i] > 0 && cost(i) < cost(cheapest)) {
+                cheapest = i;
+            }
+        }
+        return cheapest;
+    }
+
+    /**
+     * @return Estimated nanoseconds from the first byte of a picture to it being decoded.
+     */
+    private long cost(int index) {
+        long transferNanos = bytesPerSecond > 0
+                ? bytesPerPicture[index] * 1000000000L / bytesPerSecond : 0;
+        return transferNanos + decodeNanos[index];
+    }
+
+    private int indexOf(String format) {
+        for (int i = 0; i < formats.length; i++) {
+            if (formats[i] == format) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String describe() {
+        StringBuilder text = new StringBuilder();
+        text.append(bytesPerSecond / 1024).append(" KB/s");
+        for (int i = 0; i < formats.length; i++) {
+            if (samples[i] > 0) {
+                text.append(", ").append(formats[i]).append(' ')
+                        .append(bytesPerPicture[i] / 1024).append(" KB ")
+                        .append(decodeNanos[i] / 1000000).append(" ms");
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,65 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.ooliash.usg.protocol.FrameFormatException;
+import com.ooliash.usg.protocol.PictureFormat;
+
+/**
+ * Decodes {@link PictureFormat#RAW8_LZ4} pictures: LZ4 into a gray plane, subsampled into ARGB
+ * pixels, both buffers kept for the next picture.
+ */
+final class Raw8PictureDecoder implements PictureDecoder {
+    private static final String LOG_TAG = "USG";
+
+    private byte[] gray = new byte[0];
+    private int[] pixels = new int[0];
+
+    @Override
+    public Bitmap decode(byte[] picture, int length, int sampleSize, Bitmap reuse) {
+        if (length < PictureFormat.RAW8_HEADER_LENGTH) {
+            Log.e(LOG_TAG, "Raw picture without header");
+            return null;
+        }
+        int width = PictureFormat.getRaw8Width(picture, 0);
+        int height = PictureFormat.getRaw8Height(picture, 0);
+        try {
+            PictureFormat.checkRaw8Size(width, height);
+            if (gray.length < width * height) {
+                gray = new byte[width * height];
+            }
+            PictureFormat.decodeRaw8(picture, 0, length, gray);
+        } catch (FrameFormatException e) {
+            Log.e(LOG_TAG, e.getMessage());
+            return null;
+        }
+
+        int outWidth = (width + sampleSize - 1) / sampleSize;
+        int outHeight = (height + sampleSize - 1) / sampleSize;
+        if (pixels.length < outWidth * outHeight) {
+            pixels = new int[outWidth * outHeight];
+        }
+        int i = 0;
+        for (int y = 0; y < height; y += sampleSize) {
+            int row = y * width;
+            for (int x = 0; x < width; x += sampleSize) {
+                int value = gray[row + x] & 0xFF;
+                pixels[i++] = 0xFF000000 | (value << 16) | (value << 8) | value;
+            }
+        }
+
+        Bitmap bitmap = reuse;
+        if (bitmap == null || bitmap.getAllocationByteCount() < outWidth * outHeight * 4) {
+            if (bitmap != null) {
+                bitmap.recycle();   // Too small, e.g. after the server's picture size grew.
+            }
+            bitmap = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        } else if (bitmap.getWidth() != outWidth || bitmap.getHeight() != outHeight
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap.reconfigure(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.setPixels(pixels, 0, outWidth, 0, 0, outWidth, outHeight);
+        return bitmap;
+    }
+}
@@ -0,0 +1,219 @@
+package com.ooliash.android.glass.usg_client;
+
+import com.ooliash.usg.protocol.PictureFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What a USG server tells about itself in its reply to a discovery broadcast, so a session can be
+ * set up before the connection is, without the usual burst of queries after it.
+ *
+ * Older servers know only the bare {@link UsgServerDiscovery#DISCOVERY_REQUEST} and reply the
+ * bare {@link UsgServerDiscovery#DISCOVERY_ACK}, which older clients compare whole. Newer servers
+ * reply the same to it, and to {@link UsgServerDiscovery#EXTENDED_DISCOVERY_REQUEST} the ACK
+ * with entries appended, e.g. {@code "PJATK_USG_SERVER_ACK;v=2;port=9050;formats=JPEG,RAW8_LZ4;
+ * modes=STATE,ROI,CONDITIONAL;gain=12;range=40;fps=20;tls=9443"}, without the line break.
+ * Every entry is optional and unknown ones are ignored, so the list can grow. A tls entry is the
+ * port of the TLS transport, see {@link TransportSecurity}.
+ */
+final class ServerAnnouncement {
+    static final int VERSION = 2;
+    // Modes, the optional requests a server takes.
+    static final String MODE_STATE = "STATE";               // Command.GET_STATE
+    static final String MODE_ROI = "ROI";                   // Command.GET_PICTURE_ROI
+    static final String MODE_CONDITIONAL = "CONDITIONAL";   // "GET_PICTURE:id"
+
+    private static final char ENTRY_SEPARATOR = ';';
+    private static final char VALUE_SEPARATOR = '=';
+    private static final char LIST_SEPARATOR = ',';
+    private static final String VERSION_KEY = "v";
+    private static final String PORT_KEY = "port";
+    private static final String FORMATS_KEY = "formats";
+    private static final String MODES_KEY = "modes";
+    private static final String GAIN_KEY = "gain";
+    private static final String RANGE_KEY = "range";
+    private static final String FPS_KEY = "fps";
+    private static final String TLS_KEY = "tls";
+
+    private final long receivedAtMillis = System.currentTimeMillis();
+    private int version = 1;
+    private int port;
+    private int tlsPort;
+    private List<String> formats;
+    private List<String> modes;
+    private String gain = "";
+    private String range = "";
+    private String fps = "";
+
+    private ServerAnnouncement() {
+    }
+
+    /**
+     * @param reply Reply to the discovery broadcast.
+     * @return The announcement, or null if the reply isn't from a USG server.
+     */
+    static ServerAnnouncement parse(String reply) {
+        String ack = UsgServerDiscovery.DISCOVERY_ACK;
+        if (!reply.startsWith(ack) || (reply.length() > ack.length()
+                && reply.charAt(ack.length()) != ENTRY_SEPARATOR)) {
+            return null;
+        }
+        ServerAnnouncement announcement = new ServerAnnouncement();
+        if (reply.length() > ack.length()) {
+            announcement.version = VERSION;     // Unless it tells otherwise.
+        }
+        int start = ack.length() + 1;
+        while (start < reply.length()) {
+            int end = reply.indexOf(ENTRY_SEPARATOR, start);
+            if (end < 0) {
+                end = reply.length();
+            }
+            int separator = reply.indexOf(VALUE_SEPARATOR, start);
+            if (separator >= 0 && separator < end) {
+                announcement.put(reply.substring(start, separator).trim(),
+                        reply.substring(separator + 1, end).trim());
+            }
+            start = end + 1;
+        }
+        return announcement;
+    }
+
+    /**
+     * Formats an announcement, as the relay answers discovery with.
+     * @param parameters Current parameters, those known are announced.
+     */
+    static String format(int port, String[] formats, String[] modes, UsgParameters parameters) {
+        StringBuilder reply = new StringBuilder(UsgServerDiscovery.DISCOVERY_ACK);
+        append(reply, VERSION_KEY, Integer.toString(VERSION));
+        append(reply, PORT_KEY, Integer.toString(port));
+        append(reply, FORMATS_KEY, join(formats));
+        append(reply, MODES_KEY, join(modes));
+        append(reply, GAIN_KEY, parameters.get(UsgParameters.GAIN));
+        append(reply, RANGE_KEY, parameters.get(UsgParameters.AREA));
+        append(reply, FPS_KEY, parameters.get(UsgParameters.FPS));
+        return reply.toString();
+    }
+
+    /**
+     * @return Version of the announcement, 1 for the bare ACK of older servers.
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return TCP port of the server, 0 if not announced.
+     */
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * @return TLS port of the server, 0 if it offers no TLS.
+     */
+    int getTlsPort() {
+        return tlsPort;
+    }
+
+    /**
+     * @return Picture formats the server can send, as {@link PictureFormat#parseFormats} lists
+     * them, null if not announced.
+     */
+    List<String> getFormats() {
+        return formats;
+    }
+
+    /**
+     * @return True if the modes the server takes are announced.
+     */
+    boolean hasModes() {
+        return modes != null;
+    }
+
+    /**
+     * @param mode E.g. {@link #MODE_STATE}.
+     * @return True if the server takes the mode, false if not or if the modes aren't announced.
+     */
+    boolean supportsMode(String mode) {
+        return modes != null && modes.contains(mode);
+    }
+
+    /**
+     * @return Gain as {@link Command#GET_GAIN} replies it, empty if not announced.
+     */
+    String getGain() {
+        return gain;
+    }
+
+    /**
+     * @return Imaging range as {@link Command#GET_AREA} replies it, empty if not announced.
+     */
+    String getRange() {
+        return range;
+    }
+
+    /**
+     * @return Frame rate as {@link Command#GET_FPS} replies it, empty if not announced.
+     */
+    String getFps() {
+        return fps;
+    }
+
+    /**
+     * @return Milliseconds since the announcement was received.
+     */
+    long getAgeMillis() {
+        return System.currentTimeMillis() - receivedAtMillis;
+    }
+
+    private void put(String key, String value) {
+        try {
+            if (key.equals(VERSION_KEY)) {
+                version = Integer.parseInt(value);
+            } else if (key.equals(PORT_KEY)) {
+                port = parsePort(value);
+            } else if (key.equals(TLS_KEY)) {
+                tlsPort = parsePort(value);
+            } else if (key.equals(FORMATS_KEY)) {
+                formats = PictureFormat.parseFormats(value);
+            } else if (key.equals(MODES_KEY)) {
+                modes = new ArrayList<String>();
+                for (String mode : value.split(String.valueOf(LIST_SEPARATOR))) {
+                    modes.add(mode.trim().toUpperCase(Locale.US));
+                }
+            } else if (key.equals(GAIN_KEY)) {
+                gain = value;
+            } else if (key.equals(RANGE_KEY)) {
+                range = value;
+            } else if (key.equals(FPS_KEY)) {
+                fps = value;
+            }
+        } catch (NumberFormatException e) {
+            // Left as not announced.
+        }
+    }
+
+    private static int parsePort(String value) {
+        int port = Integer.parseInt(value);
+        return port > 0 && port <= 65535 ? port : 0;
+    }
+
+    private static void append(StringBuilder reply, String key, String value) {
+        if (value.length() > 0) {
+            reply.append(ENTRY_SEPARATOR).append(key).append(VALUE_SEPARATOR).append(value);
+        }
+    }
+
+    private static String join(String[] values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(LIST_SEPARATOR);
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+}
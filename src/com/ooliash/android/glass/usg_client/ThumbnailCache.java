@@ -0,0 +1,193 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Thumbnails of saved USG pictures in two levels: a process-wide memory LRU sized in bytes and a
+ * disk cache of small JPEGs in the application cache directory, evicted least recently used first.
+ *
+ * Missing thumbnails are made on a background thread from a subsampled decode of the picture,
+ * the most recently requested first, so the card scrolled to is served before the ones scrolled
+ * past. The listener is called on the UI thread when a thumbnail is ready.
+ */
+final class ThumbnailCache {
+    interface Listener {
+        void onThumbnailLoaded(File picture, Bitmap thumbnail);
+    }
+
+    private static final String LOG_TAG = "USG";
+    private static final String DIRECTORY = "thumbnails";
+    private static final int THUMBNAIL_WIDTH = 320;
+    private static final int THUMBNAIL_QUALITY = 85;
+    private static final long MAX_DISK_BYTES = 16 * 1024 * 1024;
+    private static final int TRIM_INTERVAL = 32;    // Thumbnails written between disk trims.
+
+    /** Shared by all galleries, an eighth of the heap. Keys are {@link #key(File)}. */
+    private static final LruCache<String, Bitmap> memoryCache =
+            new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 8)) {
+                @Override
+                protected int sizeOf(String key, Bitmap thumbnail) {
+                    return thumbnail.getByteCount();
+                }
+            };
+
+    private final File diskDirectory;
+    private final Listener listener;
+    private final HandlerThread loaderThread;
+    private final Handler loaderHandler;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();  // Loader.
+    private final Set<String> pending = new HashSet<String>();  // UI thread only.
+    private int writtenSinceTrim;   // Loader thread only.
+
+    ThumbnailCache(Context context, Listener listener) {
+        this.listener = listener;
+        diskDirectory = new File(context.getCacheDir(), DIRECTORY);
+        diskDirectory.mkdirs();
+        loaderThread = new HandlerThread("USG thumbnails", Process.THREAD_PRIORITY_BACKGROUND);
+        loaderThread.start();
+        loaderHandler = new Handler(loaderThread.getLooper());
+        decodeOptions.inPreferredConfig = Bitmap.Config.RGB_565;  // Grayscale anyway.
+    }
+
+    /**
+     * @return Thumbnail of the picture if it's in memory, otherwise null and the thumbnail is
+     * loaded in the background. Call on the UI thread.
+     */
+    Bitmap get(final File picture) {
+        final String key = key(picture);
+        Bitmap thumbnail = memoryCache.get(key);
+        if (thumbnail != null || !pending.add(key)) {
+            return thumbnail;
+        }
+        loaderHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap loaded = load(picture, key);
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.remove(key);
+                        if (loaded != null) {
+                            memoryCache.put(key, loaded);
+                            listener.onThumbnailLoaded(picture, loaded);
+                        }
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Drops requests not started yet, e.g. when the gallery is left.
+     */
+    void cancelPending() {
+        loaderHandler.removeCallbacksAndMessages(null);
+        pending.clear();
+    }
+
+    /**
+     * Stops the loader thread. The memory cache stays for the next gallery.
+     */
+    void release() {
+        cancelPending();
+        loaderThread.quitSafely();
+    }
+
+    private Bitmap load(File picture, String key) {
+        File cached = new File(diskDirectory, key + ".jpg");
+        // Older than the picture if it was replaced meanwhile; reads update the time too.
+        if (cached.lastModified() >= picture.lastModified()) {
+            Bitmap thumbnail = BitmapFactory.decodeFile(cached.getPath(), decodeOptions);
+            if (thumbnail != null) {
+                cached.setLastModified(System.currentTimeMillis());     // LRU order.
+                return thumbnail;
+            }
+        }
+
+        // Decode only as many pixels as the thumbnail needs.
+        decodeOptions.inJustDecodeBounds = true;
+        decodeOptions.inSampleSize = 1;
+        BitmapFactory.decodeFile(picture.getPath(), decodeOptions);
+        decodeOptions.inJustDecodeBounds = false;
+        while (decodeOptions.outWidth / (decodeOptions.inSampleSize * 2) >= THUMBNAIL_WIDTH) {
+            decodeOptions.inSampleSize *= 2;
+        }
+        Bitmap thumbnail = BitmapFactory.decodeFile(picture.getPath(), decodeOptions);
+        decodeOptions.inSampleSize = 1;
+        if (thumbnail == null) {
+            Log.e(LOG_TAG, "Couldn't decode picture " + picture);
+            return null;
+        }
+
+        try {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(cached));
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't cache thumbnail: " + e.getMessage());
+        }
+        if (++writtenSinceTrim >= TRIM_INTERVAL) {
+            writtenSinceTrim = 0;
+            trimDiskCache();
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the disk cache fits its limit.
+     */
+    private void trimDiskCache() {
+        File[] files = diskDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_DISK_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_DISK_BYTES; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    /**
+     * @return Cache key of the picture, "session_picture" as pictures are in session directories.
+     */
+    private static String key(File picture) {
+        return picture.getParentFile().getName() + '_' + picture.getName();
+    }
+}
@@ -0,0 +1,69 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.ooliash.usg.protocol.PinnedTls;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Optional TLS for the connections to USG servers, trusting the servers by the keys pinned in the
+ * usg_server_pins resource, see {@link PinnedTls}. With any pin configured, every connection is
+ * over TLS, on the port the server announced in discovery or the default one. The announcement
+ * isn't authenticated, so it doesn't decide whether TLS is used: a server announcing no TLS port,
+ * or whose announcement was spoofed or lost, fails the handshake rather than getting plaintext.
+ *
+ * All connections share a single context, so its session cache lets reconnects, spare
+ * connections and the connection made during the splash screen resume the TLS session.
+ */
+final class TransportSecurity {
+    private static final String LOG_TAG = "USG";
+
+    private static boolean configured;
+    private static SSLContext context;      // Null while TLS is off or failed to set up.
+    private static boolean required;
+
+    private TransportSecurity() {
+    }
+
+    /**
+     * Reads the configuration, once per process.
+     */
+    static synchronized void configure(Context appContext) {
+        if (configured) {
+            return;
+        }
+        configured = true;
+        Resources resources = appContext.getResources();
+        String[] pins = resources.getStringArray(R.array.usg_server_pins);
+        if (pins.length == 0) {
+            return;
+        }
+        required = true;
+        try {
+            context = PinnedTls.createClientContext(Arrays.asList(pins));
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "TLS unavailable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Context for TLS connections, null if TLS is off or its configuration is broken.
+     */
+    static synchronized SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return True if servers may be connected to over TLS only, i.e. pins are configured, even
+     * if the context couldn't be created from them.
+     */
+    static synchronized boolean isRequired() {
+        return required;
+    }
+}
@@ -1,18 +1,23 @@
 package com.ooliash.android.glass.usg_client;
 
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.media.AudioManager;
 import android.os.AsyncTask;
 import android.util.Log;
 
 import com.google.android.glass.media.Sounds;
+import com.ooliash.usg.metrics.UsgMetrics;
+import com.ooliash.usg.protocol.CaptureWriter;
+import com.ooliash.usg.protocol.PictureFormat;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 class UsgCommunicationTask extends AsyncTask<Void, String, Void> {
     // Constants.
@@ -20,6 +25,15 @@ class UsgCommunicationTask extends AsyncTask<Void, String, Void> {
     private static final int COMMAND_QUEUE_CAPACITY = 10;
     private static final String SET_MAIN_TEXT = "SET_MAIN_TEXT";
     private static final String ERROR_MESSAGE = "ERROR_MESSAGE";
+    private static final String CONNECTION_MESSAGE = "CONNECTION_MESSAGE";
+    // While frozen the picture can't change, only check now and then if it still is.
+    private static final int FROZEN_POLL_INTERVAL_MS = 1000;
+    // Servers not reporting FROZEN are taken as frozen after this many repeated pictures in a
+    // row, if they come within the window after a FREEZE command.
+    private static final int FROZEN_REPEATED_PICTURES = 5;
+    private static final long FREEZE_CHECK_WINDOW_NANOS = 3000000000L;
+    // Parameters announced in discovery replies are taken as current for this long.
+    private static final long ANNOUNCEMENT_MAX_AGE_MS = 5000;
 
 
     // Local commands.
@@ -28,25 +42,182 @@ class UsgCommunicationTask extends AsyncTask<Void, String, Void> {
     // Other fields.
     private final WindowsSocketCommunication communication;
     private final WeakReference<UsgSessionActivity> contextWR;
+    private final InetAddress requestedServerAddress;
 
     ArrayBlockingQueue<String> commandQueue =
             new ArrayBlockingQueue<String>(COMMAND_QUEUE_CAPACITY);
 
+    private final UsgParameters parameters = new UsgParameters();
+    private final UsgMetrics metrics = new UsgMetrics();
+    private final AutoGainController autoGain = new AutoGainController();
     private Bitmap usgPicture;
     private boolean isConnected;
+    private boolean stateQuerySupported = true;
+    private boolean roiQuerySupported = true;
+    private boolean conditionalQuerySupported = true;
+    private boolean formatQuerySupported = true;
+    private PictureFormatSelector formatSelector;   // Null until the server lists its formats.
+    private ServerAnnouncement appliedAnnouncement;
+    private boolean frozen;     // Server freeze state, as far as replies and pictures tell.
+    private long freezeCheckStartNanos;     // Of the FREEZE reply telling no state, 0 if none.
+    private int repeatedPictures;
+    private final long createdNanos = System.nanoTime();
+    private final boolean warmStart;
+    private boolean setupReported;
+    private final ZoomRegion zoomRegion = new ZoomRegion();
+    private int displayedParametersVersion = -1;
+    private volatile UsgRelayServer relay;
+    private volatile FramePacer framePacer;
+    private volatile UsgPictureRenderer pictureRenderer;
+    private volatile FrameRateGovernor governor;
+    private volatile UsgPictureFilters pictureFilters;
+    private CaptureWriter capture;
 //    private String networkIndicatorText;
 
-    UsgCommunicationTask(UsgSessionActivity context) {
+    /**
+     * @param context Session activity.
+     * @param serverAddress Address of the USG server picked by the user, null for the first
+     *                      server responding to discovery.
+     */
+    UsgCommunicationTask(UsgSessionActivity context, InetAddress serverAddress) {
         contextWR = new WeakReference<UsgSessionActivity>(context);
-        communication = new WindowsSocketCommunication();
+        requestedServerAddress = serverAddress;
+        WindowsSocketCommunication handedOver = ConnectionHandoff.take(serverAddress);
+        communication = handedOver != null
+                ? handedOver : new WindowsSocketCommunication(serverAddress);
+        warmStart = handedOver != null;
     }
 
     boolean isConnected() {
         return isConnected;
     }
 
+    /**
+     * @return The last picture as JPEG, whatever format it came in, null if it can't be converted.
+     */
     byte[] getLastUsgPictureBytes() {
-        return communication.getLastPictureBytes();
+        return communication.getLastPictureAsJpeg();
+    }
+
+    /**
+     * @return Known scanner parameters in the {@link Command#GET_STATE} reply format, null if
+     * none are known yet.
+     */
+    String getParametersState() {
+        return parameters.toStateReply();
+    }
+
+    /**
+     * @return Performance metrics of this session.
+     */
+    UsgMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Automatic gain of this session, off until toggled.
+     */
+    AutoGainController getAutoGain() {
+        return autoGain;
+    }
+
+    /**
+     * Starts sharing received pictures with other viewers.
+     * @throws IOException If the relay can't be started.
+     */
+    void startRelay() throws IOException {
+        UsgRelayServer newRelay = new UsgRelayServer(parameters);
+        newRelay.start();
+        relay = newRelay;
+    }
+
+    /**
+     * Stops sharing received pictures, if they are shared.
+     */
+    void stopRelay() {
+        UsgRelayServer oldRelay = relay;
+        relay = null;
+        if (oldRelay != null) {
+            oldRelay.stop();
+        }
+    }
+
+    /**
+     * Sets renderer the received pictures are drawn with.
+     */
+    void setPictureRenderer(UsgPictureRenderer pictureRenderer) {
+        this.pictureRenderer = pictureRenderer;
+        communication.setBitmapPool(
+                pictureRenderer != null ? pictureRenderer.getBitmapPool() : null);
+    }
+
+    /**
+     * Sets post-processing of the received pictures, null for none.
+     */
+    void setPictureFilters(UsgPictureFilters pictureFilters) {
+        this.pictureFilters = pictureFilters;
+    }
+
+    /**
+     * Sets jitter buffer the received pictures go through, null to show them right away.
+     */
+    void setFramePacer(FramePacer framePacer) {
+        this.framePacer = framePacer;
+    }
+
+    /**
+     * @return Region of the picture shown, changes take effect with the next picture.
+     */
+    ZoomRegion getZoomRegion() {
+        return zoomRegion;
+    }
+
+    /**
+     * Sets governor limiting the picture poll rate and decode resolution, null for no limits.
+     */
+    void setGovernor(FrameRateGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Starts capturing the raw traffic of the session for replay.
+     * @param file File to write the capture to.
+     * @throws IOException If the file can't be created.
+     */
+    void startCapture(File file) throws IOException {
+        capture = new CaptureWriter(new FileOutputStream(file));
+        communication.setCapture(capture);
+    }
+
+    /**
+     * Stops capturing the traffic, if it's captured.
+     */
+    void stopCapture() {
+        if (capture == null) {
+            return;
+        }
+        communication.setCapture(null);
+        try {
+            capture.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't close USG traffic capture: " + e.getMessage());
+        }
+        capture = null;
+    }
+
+    boolean isCapturing() {
+        return capture != null;
+    }
+
+    boolean isRelayRunning() {
+        return relay != null;
+    }
+
+    /**
+     * @return Address other viewers can use to connect to the relay or null if not connected.
+     */
+    InetAddress getLocalAddress() {
+        return communication.getLocalAddress();
     }
 
     /**
@@ -64,38 +235,212 @@ class UsgCommunicationTask extends AsyncTask<Void, String, Void> {
         AudioManager audioManager = contextWR.get().audioManager;
         while (!isCancelled()) {
             try {
-                communication.connectToUsgServer();
+                if (!communication.isConnected()) {
+                    InetAddress knownServer = communication.getServerAddress() != null
+                            ? communication.getServerAddress() : requestedServerAddress;
+                    if (knownServer != null) {
+                        // Set up from what discovery told while the connection is made.
+                        applyAnnouncement(knownServer);
+                    }
+                    communication.connectToUsgServer();
+                    if (!communication.isConnected()) {
+                        if (!isCancelled()) {
+                            ErrorMessage("Can't connect to USG server, still trying");
+                        }
+                        continue;   // Attempts go on at the longest delay.
+                    }
+                }
                 isConnected = true;
                 publishProgress(SET_MAIN_TEXT, ""); // clear command from main text
+                reportHandshake();
 
                 Log.d(LOG_TAG, "connected...");
-                commandQueue.add(Command.GET_PICTURE);
-                commandQueue.add(Command.GET_GAIN);
-                commandQueue.add(Command.GET_AREA);
+                UsgTrace.record(UsgTrace.CONNECTED, 0);
+                parameters.clear();
+                boolean parametersAnnounced = applyAnnouncement(communication.getServerAddress());
+                if (formatQuerySupported && formatSelector == null) {
+                    queueCommand(Command.GET_FORMATS);
+                }
+                queueCommand(Command.GET_PICTURE);
+                if (parametersAnnounced) {
+                    Log.d(LOG_TAG, "Parameters announced, not queried");
+                } else if (stateQuerySupported) {
+                    queueCommand(Command.GET_STATE);
+                } else {
+                    queueCommand(Command.GET_GAIN);
+                    queueCommand(Command.GET_AREA);
+                }
 
+                long lastPollNanos = 0;
                 while (communication.isConnected() && !isCancelled()) {
                     String command = commandQueue.poll();
+                    FrameRateGovernor currentGovernor = governor;
+                    int pollInterval = frozen ? FROZEN_POLL_INTERVAL_MS
+                            : currentGovernor != null ? currentGovernor.getPollIntervalMillis() : 0;
+                    if (command == null && pollInterval > 0) {
+                        // Wait for the next picture poll, still answering user commands at once,
+                        // so unfreezing takes effect right away.
+                        long wait = pollInterval - (System.nanoTime() - lastPollNanos) / 1000000;
+                        if (wait > 0) {
+                            try {
+                                command = commandQueue.poll(wait, TimeUnit.MILLISECONDS);
+                            } catch (InterruptedException e) {
+                                break;  // Cancelled.
+                            }
+                        }
+                    }
+                    boolean zoomed = zoomRegion.isZoomed();
+                    boolean roiRequested = false;
                     if (command == null) {
-                        command = Command.GET_PICTURE;  // Send pull picture command if queue is empty.
+                        lastPollNanos = System.nanoTime();
+                        // Send pull picture command if queue is empty. While frozen it's a
+                        // heartbeat, mostly answered NOT_MODIFIED, a new picture ends the freeze.
+                        roiRequested = zoomed && roiQuerySupported;
+                        command = roiRequested
+                                ? zoomRegion.getRoiCommand() : Command.GET_PICTURE;
+                    }
+                    // ROI commands differ by region, trace and measure them together.
+                    String commandName = roiRequested ? Command.GET_PICTURE_ROI : command;
+                    int commandCode = UsgTrace.commandCode(commandName);
+                    UsgTrace.record(UsgTrace.COMMAND_SENT, commandCode);
+                    long sentNanos = System.nanoTime();
+                    boolean conditionalRequested = command == Command.GET_PICTURE
+                            && conditionalQuerySupported
+                            && communication.getLastPictureBytesLength() > 0;
+                    if (conditionalRequested) {
+                        communication.SendConditionalPictureRequest();
+                    } else {
+                        communication.SendString(command);
                     }
-                    Log.d(LOG_TAG, "Sending " + command + " command");
-                    communication.SendString(command);
 
                     try {
-                        if (command == Command.GET_PICTURE) {
+                        if (command == Command.GET_PICTURE || roiRequested) {
                             // Receive picture.
-                            usgPicture = communication.ReceiveBitmap();
-                            // Show picture.
-                            publishProgress(command);
+                            int sampleSize =
+                                    currentGovernor != null ? currentGovernor.getSampleSize() : 1;
+                            if (zoomed && !roiRequested) {
+                                // Server can't crop, decode the zoomed region only.
+                                usgPicture = communication.ReceiveBitmap(zoomRegion);
+                            } else {
+                                usgPicture = sampleSize > 1
+                                        ? communication.ReceiveBitmap(sampleSize)
+                                        : communication.ReceiveBitmap();
+                            }
+                            if (currentGovernor != null) {
+                                currentGovernor.frameReceived();
+                            }
+                            int replyLength = communication.getLastReplyLength();
+                            UsgTrace.record(UsgTrace.PICTURE_RECEIVED, replyLength);
+                            metrics.increment(UsgMetrics.FRAMES_RECEIVED, 1);
+                            metrics.increment(UsgMetrics.BYTES_RECEIVED, replyLength);
+                            if (replyLength < communication.getLastPictureBytesLength()) {
+                                metrics.increment(UsgMetrics.BYTES_SAVED,
+                                        communication.getLastPictureBytesLength() - replyLength);
+                            }
+                            checkFrozen(communication.isLastPictureRepeated());
+                            if (communication.isLastPictureUnchanged()) {
+                                // Frozen or idle probe, the picture on the screen is current.
+                                metrics.increment(UsgMetrics.UNCHANGED_FRAMES, 1);
+                            } else {
+                                metrics.record(UsgMetrics.DECODE_TIME,
+                                        communication.getLastDecodeNanos() / 1000);
+                                UsgRelayServer currentRelay = relay;
+                                // Viewers get whole JPEG pictures only.
+                                if (currentRelay != null && !roiRequested
+                                        && communication.getPictureFormat() == PictureFormat.JPEG) {
+                                    currentRelay.publishFrame(communication.getLastPictureBytes());
+                                }
+                                if (autoGain.isEnabled() && !zoomed) {
+                                    adjustGain();
+                                }
+                                UsgPictureFilters filters = pictureFilters;
+                                long filterStart = System.nanoTime();
+                                if (filters != null && filters.apply(usgPicture)) {
+                                    metrics.record(UsgMetrics.FILTER_TIME,
+                                            (System.nanoTime() - filterStart) / 1000);
+                                    metrics.increment(UsgMetrics.FILTER_SKIPPED_BANDS,
+                                            filters.getLastSkippedBands(
+                                                    UsgPictureFilters.SPECKLE_REDUCTION)
+                                            + filters.getLastSkippedBands(
+                                                    UsgPictureFilters.CONTRAST_ENHANCEMENT));
+                                }
+                                // Show picture.
+                                FramePacer pacer = framePacer;
+                                UsgPictureRenderer renderer = pictureRenderer;
+                                if (pacer != null) {
+                                    pacer.offer(usgPicture, System.nanoTime());
+                                } else if (renderer != null) {
+                                    renderer.showFrame(usgPicture);
+                                }
+                            }
+                            if (!setupReported) {
+                                reportSetupTime();
+                            }
+                            PictureFormatSelector selector = formatSelector;
+                            if (selector != null) {
+                                if (!zoomed && !communication.isLastPictureUnchanged()) {
+                                    selector.pictureDecoded(communication.getPictureFormat(),
+                                            replyLength, communication.getLastTransferNanos(),
+                                            communication.getLastDecodeNanos());
+                                }
+                                // Viewers of a shared stream may not negotiate formats.
+                                String format = relay != null ? PictureFormat.JPEG
+                                        : selector.getFormat(System.nanoTime());
+                                if (format != communication.getPictureFormat()) {
+                                    switchPictureFormat(format);
+                                }
+                            }
                         } else {
-                            publishProgress(command, communication.ReceiveString());
+                            receiveReply(command);
+                            UsgTrace.record(UsgTrace.REPLY_RECEIVED, commandCode);
                         }
+                        metrics.record(UsgMetrics.ROUND_TRIP_TIME,
+                                (communication.getLastReplyStartNanos() - sentNanos) / 1000);
+                        metrics.recordCommandLatency(
+                                commandName, (System.nanoTime() - sentNanos) / 1000);
+                        metrics.increment(UsgMetrics.SOCKET_READS, communication.takeReadCount());
                     } catch (SocketTimeoutException e) {
+                        UsgTrace.record(UsgTrace.CONNECTION_LOST, commandCode);
+                        metrics.increment(UsgMetrics.RECONNECTS, 1);
                         Log.e(LOG_TAG, "Couldn't receive response for '" + command
-                                + "' command. Restarting connection.");
+                                + "' command (" + e.getMessage() + "). Restarting connection.");
                         communication.connectToUsgServer();
-                        commandQueue.add(command);
+                        metrics.record(UsgMetrics.RECONNECT_TIME,
+                                communication.getLastConnectNanos() / 1000);
+                        reportHandshake();
+                        if (!roiRequested) {    // Picture polls are repeated anyway.
+                            queueCommand(command);
+                        }
                     } catch (UsgCommandExecutionException e) {
+                        UsgTrace.record(UsgTrace.COMMAND_ERROR, commandCode);
+                        metrics.increment(UsgMetrics.COMMAND_ERRORS, 1);
+                        if (command == Command.GET_STATE) {
+                            // Server doesn't know GET_STATE, fall back to single-value queries.
+                            Log.d(LOG_TAG, "GET_STATE not supported: " + e.getMessage());
+                            stateQuerySupported = false;
+                            queueCommand(Command.GET_GAIN);
+                            queueCommand(Command.GET_AREA);
+                            continue;
+                        }
+                        if (command == Command.GET_FORMATS) {
+                            // Server sends JPEG only.
+                            Log.d(LOG_TAG, "GET_FORMATS not supported: " + e.getMessage());
+                            formatQuerySupported = false;
+                            continue;
+                        }
+                        if (conditionalRequested) {
+                            // Server doesn't take frame IDs, repeats are recognized by hash.
+                            Log.d(LOG_TAG, "Conditional GET_PICTURE not supported: "
+                                    + e.getMessage());
+                            conditionalQuerySupported = false;
+                            continue;
+                        }
+                        if (roiRequested) {
+                            // Server can't crop pictures, the zoomed region is decoded locally.
+                            Log.d(LOG_TAG, "GET_PICTURE_ROI not supported: " + e.getMessage());
+                            roiQuerySupported = false;
+                            continue;
+                        }
                         audioManager.playSoundEffect(Sounds.ERROR);
                         ErrorMessage(e.getMessage());
                     }
@@ -111,6 +456,217 @@ class UsgCommunicationTask extends AsyncTask<Void, String, Void> {
         return null;
     }
 
+    /**
+     * Receives reply to the command other than {@link Command#GET_PICTURE}. State snapshots
+     * (also returned by control commands on servers supporting {@link Command#GET_STATE}) go
+     * to the {@link #parameters} cache, single values are cached and passed to the UI as before.
+     * Which one a reply is depends on the command, see {@link #isStateReplyExpected}.
+     * @param command Command the reply is for.
+     * @throws IOException
+     */
+    private void receiveReply(String command) throws IOException {
+        String reply = communication.ReceiveString();
+        if (command == Command.GET_FORMATS) {
+            formatSelector = new PictureFormatSelector(PictureFormat.parseFormats(reply));
+            return;
+        }
+        int version = parameters.getVersion();
+        if (isStateReplyExpected(command) && parameters.update(reply)) {
+            String frozenValue = parameters.get(UsgParameters.FROZEN);
+            if (frozenValue.length() > 0) {
+                setFrozen(frozenValue.equals("1"));
+                freezeCheckStartNanos = 0;
+            } else if (command == Command.FREEZE) {
+                startFreezeCheck();
+            }
+            // Repeated state replies change nothing, keep the messages shown.
+            if (command != Command.GET_STATE || parameters.getVersion() != version) {
+                publishProgress(Command.GET_STATE);
+            }
+            return;
+        }
+
+        if (command == Command.FREEZE) {
+            startFreezeCheck();     // The reply text isn't specified.
+        }
+
+        if (command == Command.GAIN_UP || command == Command.GAIN_DOWN || command == Command.GET_GAIN) {
+            parameters.put(UsgParameters.GAIN, reply);
+        } else if (command == Command.AREA_UP || command == Command.AREA_DOWN || command == Command.GET_AREA) {
+            parameters.put(UsgParameters.AREA, reply);
+        }
+        publishProgress(command, reply);
+    }
+
+    /**
+     * @return True if the reply to the command is a state snapshot: always for
+     * {@link Command#GET_STATE}, for control commands if the server supports it, never for the
+     * single-value queries, whatever their reply looks like.
+     */
+    private boolean isStateReplyExpected(String command) {
+        if (command == Command.GET_STATE) {
+            return true;
+        }
+        return stateQuerySupported && command != Command.GET_GAIN && command != Command.GET_AREA
+                && command != Command.GET_TX_FREQUENCY && command != Command.GET_TX_TYPE
+                && command != Command.GET_FPS;
+    }
+
+    /**
+     * Takes what the server announced in its reply to discovery: the requests it takes and the
+     * picture formats it can send, so they aren't probed, and its parameters, shown right away.
+     * @param serverAddress Server connected to or about to be.
+     * @return True if the gain and the range were announced recently enough to skip querying
+     * them.
+     */
+    private boolean applyAnnouncement(InetAddress serverAddress) {
+        ServerAnnouncement announcement = UsgServerDiscovery.getAnnouncement(serverAddress);
+        if (announcement == null || announcement.getVersion() < 2) {
+            return false;
+        }
+        if (announcement != appliedAnnouncement) {
+            appliedAnnouncement = announcement;
+            if (announcement.hasModes()) {
+                stateQuerySupported = announcement.supportsMode(ServerAnnouncement.MODE_STATE);
+                roiQuerySupported = announcement.supportsMode(ServerAnnouncement.MODE_ROI);
+                conditionalQuerySupported =
+                        announcement.supportsMode(ServerAnnouncement.MODE_CONDITIONAL);
+            }
+            if (announcement.getFormats() != null && formatSelector == null) {
+                formatSelector = new PictureFormatSelector(announcement.getFormats());
+            }
+        }
+        String gain = announcement.getGain();
+        String range = announcement.getRange();
+        if (gain.length() == 0 && range.length() == 0) {
+            return false;
+        }
+        // Shown even if stale, until the query replies.
+        if (gain.length() > 0) {
+            parameters.put(UsgParameters.GAIN, gain);
+        }
+        if (range.length() > 0) {
+            parameters.put(UsgParameters.AREA, range);
+        }
+        if (announcement.getFps().length() > 0) {
+            parameters.put(UsgParameters.FPS, announcement.getFps());
+        }
+        publishProgress(Command.GET_STATE);
+        return gain.length() > 0 && range.length() > 0
+                && announcement.getAgeMillis() < ANNOUNCEMENT_MAX_AGE_MS;
+    }
+
+    /**
+     * Queues a command of the session's own, e.g. a query after connecting. User commands may
+     * have filled the queue meanwhile, the command is dropped then rather than block or fail.
+     */
+    private void queueCommand(String command) {
+        if (!commandQueue.offer(command)) {
+            Log.w(LOG_TAG, "Command queue full, '" + command + "' dropped");
+        }
+    }
+
+    /**
+     * Samples the new picture, unfiltered, for automatic gain and queues the gain steps it
+     * decides on. They are sent one after another before the next picture poll.
+     */
+    private void adjustGain() {
+        int steps = autoGain.pictureReceived(usgPicture, parameters.get(UsgParameters.GAIN),
+                !commandQueue.isEmpty());
+        metrics.record(UsgMetrics.HISTOGRAM_TIME, autoGain.getLastCostNanos() / 1000);
+        for (int i = 0; i < Math.abs(steps); i++) {
+            commandQueue.offer(steps > 0 ? Command.GAIN_UP : Command.GAIN_DOWN);
+        }
+        metrics.increment(UsgMetrics.AUTO_GAIN_STEPS, Math.abs(steps));
+    }
+
+    /**
+     * Switches the server to the picture format, or leaves it out of the choice if the server
+     * refuses it.
+     */
+    private void switchPictureFormat(String format) throws IOException {
+        communication.SendString(Command.SET_FORMAT + ':' + format);
+        try {
+            communication.ReceiveString();
+            communication.setPictureFormat(format);
+            metrics.increment(UsgMetrics.FORMAT_SWITCHES, 1);
+        } catch (UsgCommandExecutionException e) {
+            Log.d(LOG_TAG, "Picture format " + format + " refused: " + e.getMessage());
+            formatSelector.reject(format);
+        }
+    }
+
+    /**
+     * Records how long it took from the session start to the first picture, and whether the
+     * connection was made in advance.
+     */
+    private void reportSetupTime() {
+        setupReported = true;
+        long setupMillis = (System.nanoTime() - createdNanos) / 1000000;
+        long connectMillis = communication.getLastConnectNanos() / 1000000;
+        metrics.set(UsgMetrics.SETUP_TIME_MS, setupMillis);
+        metrics.set(UsgMetrics.CONNECT_TIME_MS, connectMillis);
+        metrics.set(UsgMetrics.WARM_START, warmStart ? 1 : 0);
+        Log.i(LOG_TAG, "First picture after " + setupMillis + " ms, "
+                + (warmStart ? "connected in advance in " : "connected in ") + connectMillis
+                + " ms");
+    }
+
+    /**
+     * Records the TLS handshake of the connection, if it's over TLS, and shows how long it took,
+     * so slow reconnects are noticed.
+     */
+    private void reportHandshake() {
+        if (!communication.isSecure() || !communication.isConnected()) {
+            return;
+        }
+        long micros = communication.getLastHandshakeNanos() / 1000;
+        boolean resumed = communication.isLastHandshakeResumed();
+        metrics.record(resumed ? UsgMetrics.TLS_RESUMPTION_TIME : UsgMetrics.TLS_HANDSHAKE_TIME,
+                micros);
+        publishProgress(CONNECTION_MESSAGE,
+                (resumed ? "TLS resumed in " : "TLS handshake in ") + micros / 1000 + " ms");
+    }
+
+    /**
+     * Polls at full rate after a {@link Command#FREEZE} whose reply doesn't tell the state, so
+     * the following pictures tell it, see {@link #checkFrozen}.
+     */
+    private void startFreezeCheck() {
+        setFrozen(false);
+        freezeCheckStartNanos = System.nanoTime();
+        repeatedPictures = 0;
+    }
+
+    /**
+     * Tells the freeze state from the pictures: a new one means live, a run of repeated ones
+     * shortly after a {@link Command#FREEZE} means frozen.
+     * @param repeated True if the picture received is the same as the previous one.
+     */
+    private void checkFrozen(boolean repeated) {
+        if (!repeated) {
+            setFrozen(false);
+            repeatedPictures = 0;
+            return;
+        }
+        if (freezeCheckStartNanos == 0) {
+            return;
+        }
+        if (System.nanoTime() - freezeCheckStartNanos > FREEZE_CHECK_WINDOW_NANOS) {
+            freezeCheckStartNanos = 0;  // Live, an idle probe isn't a freeze.
+        } else if (++repeatedPictures >= FROZEN_REPEATED_PICTURES) {
+            setFrozen(true);
+            freezeCheckStartNanos = 0;
+        }
+    }
+
+    private void setFrozen(boolean newFrozen) {
+        if (newFrozen != frozen) {
+            Log.d(LOG_TAG, newFrozen ? "Frozen, polling slowly" : "Unfrozen, polling at full rate");
+            frozen = newFrozen;
+        }
+    }
+
     private void ErrorMessage(String message) {
         Log.e(LOG_TAG, message);
         publishProgress(ERROR_MESSAGE, message); // clear command from main text
@@ -125,13 +681,19 @@ class UsgCommunicationTask extends AsyncTask<Void, String, Void> {
 
         UsgSessionActivity context = contextWR.get();
         String command = progressData[0];
-        if (command == Command.GET_PICTURE) {
-            BitmapDrawable drawable = new BitmapDrawable(Resources.getSystem(), usgPicture);
-            context.textView.setBackground(drawable);
-        } else if (command == SET_MAIN_TEXT) {
+        if (command == SET_MAIN_TEXT) {
             context.textView.setText(progressData[1]);
         } else if (command == ERROR_MESSAGE) {
             context.errorMessage(progressData[1]);
+        } else if (command == CONNECTION_MESSAGE) {
+            context.normalMessage(progressData[1]);
+        } else if (command == Command.GET_STATE) {
+            if (displayedParametersVersion != parameters.getVersion()) {
+                displayedParametersVersion = parameters.getVersion();
+                context.gainTextView.setText("\u2195" + parameters.get(UsgParameters.GAIN));
+                context.areaTextView.setText("\u2194" + parameters.get(UsgParameters.AREA));
+            }
+            context.textView.setText(""); // clear command from main text
         } else if (command == Command.GAIN_UP || command == Command.GAIN_DOWN || command == Command.GET_GAIN) {
             context.gainTextView.setText("\u2195" + progressData[1]);
             context.textView.setText(""); // clear command from main text
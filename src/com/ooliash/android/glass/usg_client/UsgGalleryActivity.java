@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2018 Bartlomiej Uliasz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ooliash.android.glass.usg_client;
+
+import com.google.android.glass.media.Sounds;
+import com.google.android.glass.widget.CardBuilder;
+import com.google.android.glass.widget.CardScrollAdapter;
+import com.google.android.glass.widget.CardScrollView;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.media.AudioManager;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reviews pictures saved during sessions: lists sessions, newest first, and tapping a session
+ * lists its pictures, where tapping opens the session options, i.e. DICOM export. Thumbnails come
+ * from {@link ThumbnailCache} as the cards are shown, so only the pictures scrolled to are ever
+ * decoded.
+ */
+public class UsgGalleryActivity extends Activity {
+
+    /**
+     * Intent extra with the path of the session directory to show pictures of. Without it the
+     * sessions are listed.
+     */
+    static final String EXTRA_SESSION_DIRECTORY = "session_directory";
+
+    private static final String PICTURE_EXTENSION = ".jpg";
+
+    private static final FileFilter PICTURE_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(PICTURE_EXTENSION);
+        }
+    };
+
+    /** Session directories or pictures of the session, with the pictures shown for them. */
+    private final List<File> items = new ArrayList<File>();
+    private final List<File> itemPictures = new ArrayList<File>();
+    private final List<Integer> itemPictureCounts = new ArrayList<Integer>();
+
+    private File sessionDirectory;  // Null when listing sessions.
+    private boolean listed;
+    private AudioManager mAudioManager;
+    private CardScrollView cardScrollView;
+    private GalleryCardAdapter adapter;
+    private ThumbnailCache thumbnailCache;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        String sessionPath = getIntent().getStringExtra(EXTRA_SESSION_DIRECTORY);
+        sessionDirectory = sessionPath != null ? new File(sessionPath) : null;
+
+        thumbnailCache = new ThumbnailCache(this, new ThumbnailCache.Listener() {
+            @Override
+            public void onThumbnailLoaded(File picture, Bitmap thumbnail) {
+                adapter.notifyDataSetChanged();
+            }
+        });
+        adapter = new GalleryCardAdapter();
+        cardScrollView = new CardScrollView(this);
+        cardScrollView.setAdapter(adapter);
+        cardScrollView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                if (sessionDirectory == null && position < items.size()) {
+                    mAudioManager.playSoundEffect(Sounds.TAP);
+                    Intent intent = new Intent(UsgGalleryActivity.this, UsgGalleryActivity.class);
+                    intent.putExtra(EXTRA_SESSION_DIRECTORY, items.get(position).getPath());
+                    startActivity(intent);
+                } else if (sessionDirectory != null && !items.isEmpty()) {
+                    mAudioManager.playSoundEffect(Sounds.TAP);
+                    openOptionsMenu();
+                } else {
+                    mAudioManager.playSoundEffect(Sounds.DISALLOWED);
+                }
+            }
+        });
+        setContentView(cardScrollView);
+        new ListTask().execute();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        if (sessionDirectory == null) {
+            return false;
+        }
+        getMenuInflater().inflate(R.menu.gallery_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.export_dicom) {
+            Toast.makeText(this, R.string.dicom_export_started, Toast.LENGTH_SHORT).show();
+            new DicomExportTask(this).execute(sessionDirectory);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        cardScrollView.activate();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        cardScrollView.deactivate();
+        thumbnailCache.cancelPending();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        thumbnailCache.release();
+    }
+
+    /**
+     * Lists session directories or session pictures. Pictures themselves are not read.
+     */
+    private class ListTask extends AsyncTask<Void, Void, Void> {
+        private final List<File> foundItems = new ArrayList<File>();
+        private final List<File> foundPictures = new ArrayList<File>();
+        private final List<Integer> foundPictureCounts = new ArrayList<Integer>();
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            if (sessionDirectory != null) {
+                for (File picture : listPictures(sessionDirectory)) {
+                    foundItems.add(picture);
+                    foundPictures.add(picture);
+                    foundPictureCounts.add(1);
+                }
+                return null;
+            }
+            File[] sessions = UsgStorage.getSessionsRootDirectory().listFiles();
+            if (sessions == null) {
+                return null;
+            }
+            Arrays.sort(sessions, Collections.reverseOrder());    // Names sort by time.
+            for (File session : sessions) {
+                if (!session.isDirectory()) {
+                    continue;
+                }
+                List<File> pictures = listPictures(session);
+                if (!pictures.isEmpty()) {
+                    foundItems.add(session);
+                    foundPictures.add(pictures.get(0));
+                    foundPictureCounts.add(pictures.size());
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            items.addAll(foundItems);
+            itemPictures.addAll(foundPictures);
+            itemPictureCounts.addAll(foundPictureCounts);
+            listed = true;
+            adapter.notifyDataSetChanged();
+        }
+
+        private List<File> listPictures(File directory) {
+            File[] pictures = directory.listFiles(PICTURE_FILTER);
+            if (pictures == null) {
+                return Collections.emptyList();
+            }
+            Arrays.sort(pictures);
+            return Arrays.asList(pictures);
+        }
+    }
+
+    /**
+     * One card per session or picture, or a single card while listing or if there's nothing.
+     */
+    private class GalleryCardAdapter extends CardScrollAdapter {
+        @Override
+        public int getCount() {
+            return Math.max(1, items.size());
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return position < items.size() ? items.get(position) : null;
+        }
+
+        @Override
+        public int getPosition(Object item) {
+            return items.indexOf(item);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            if (items.isEmpty()) {
+                return new CardBuilder(UsgGalleryActivity.this, CardBuilder.Layout.TEXT)
+                        .setText(getString(listed ? R.string.no_saved_pictures : R.string.loading))
+                        .getView(convertView, parent);
+            }
+            String name = items.get(position).getName();
+            CardBuilder card = new CardBuilder(UsgGalleryActivity.this, CardBuilder.Layout.CAPTION);
+            if (sessionDirectory != null) {
+                card.setText(name.substring(0, name.length() - PICTURE_EXTENSION.length()))
+                        .setFootnote(getString(R.string.picture_position, position + 1,
+                                items.size()));
+            } else {
+                card.setText(name).setFootnote(
+                        getString(R.string.session_pictures, itemPictureCounts.get(position)));
+            }
+            Bitmap thumbnail = thumbnailCache.get(itemPictures.get(position));
+            if (thumbnail != null) {
+                card.addImage(thumbnail);
+            }
+            return card.getView(convertView, parent);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.ooliash.android.glass.usg_client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client-side cache of the USG scanner parameters.
+ *
+ * It is filled from compact {@link Command#GET_STATE} replies of the form
+ * {@code "GAIN=12;IMAGING_RANGE=40;TX_FREQUENCY=25;TX_TYPE=SINE_4_25;FPS=20;FROZEN=0;VERSION=7"}
+ * as well as from the single-value replies of older servers. FROZEN is "1" while the picture is
+ * frozen, "0" otherwise; servers reporting it reply to {@link Command#FREEZE} with the state as
+ * well. Written by the communication thread, read by the UI thread.
+ */
+final class UsgParameters {
+    // State reply keys.
+    static final String GAIN = "GAIN";
+    static final String AREA = "IMAGING_RANGE";
+    static final String TX_FREQUENCY = "TX_FREQUENCY";
+    static final String TX_TYPE = "TX_TYPE";
+    static final String FPS = "FPS";
+    static final String FROZEN = "FROZEN";  // "1" while the picture is frozen, "0" otherwise.
+    static final String VERSION = "VERSION";
+
+    private static final char ENTRY_SEPARATOR = ';';
+    private static final char VALUE_SEPARATOR = '=';
+
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /**
+     * Version of the server-side state the cache was last filled from, -1 if none was received.
+     */
+    private long serverVersion = -1;
+
+    /**
+     * Local version, incremented on every change so readers can skip redundant redraws.
+     */
+    private int version = 0;
+
+    /**
+     * Applies a state snapshot reply to the cache. Whether a reply is meant as a snapshot is told
+     * by the command it answers, not by its text, as single values may contain '=' as well.
+     * @param reply Reply to {@link Command#GET_STATE}, or to a control command of a server
+     *              supporting it.
+     * @return True if the reply was a state snapshot, false if it has to be handled otherwise.
+     */
+    synchronized boolean update(String reply) {
+        if (reply == null || reply.indexOf(VALUE_SEPARATOR) < 0) {
+            return false;
+        }
+
+        Map<String, String> snapshot = new HashMap<String, String>();
+        int start = 0;
+        while (start < reply.length()) {
+            int end = reply.indexOf(ENTRY_SEPARATOR, start);
+            if (end < 0) {
+                end = reply.length();
+            }
+            int separator = reply.indexOf(VALUE_SEPARATOR, start);
+            if (separator < 0 || separator > end) {
+                return false;
+            }
+            snapshot.put(reply.substring(start, separator).trim(),
+                    reply.substring(separator + 1, end).trim());
+            start = end + 1;
+        }
+
+        String snapshotVersion = snapshot.remove(VERSION);
+        if (snapshotVersion != null) {
+            try {
+                long newServerVersion = Long.parseLong(snapshotVersion);
+                if (newServerVersion <= serverVersion) {
+                    return true;    // Stale snapshot, e.g. reply to a query sent before a change.
+                }
+                serverVersion = newServerVersion;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        if (!snapshot.equals(values)) {
+            values.clear();
+            values.putAll(snapshot);
+            version++;
+        }
+        return true;
+    }
+
+    /**
+     * Stores single parameter value received as an answer to a single-value command.
+     * @param key Parameter key.
+     * @param value Parameter value.
+     */
+    synchronized void put(String key, String value) {
+        if (!value.equals(values.put(key, value))) {
+            version++;
+        }
+    }
+
+    /**
+     * @param key Parameter key.
+     * @return Parameter value or empty string if it's not known yet.
+     */
+    synchronized String get(String key) {
+        String value = values.get(key);
+        return value != null ? value : "";
+    }
+
+    /**
+     * Formats the cache as a {@link Command#GET_STATE} reply, e.g. for {@link UsgRelayServer}
+     * viewers. The local version is used as the snapshot version.
+     * @return State reply or null if nothing is known yet.
+     */
+    synchronized String toStateReply() {
+        if (values.isEmpty()) {
+            return null;
+        }
+        StringBuilder reply = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            reply.append(entry.getKey()).append(VALUE_SEPARATOR)
+                    .append(entry.getValue()).append(ENTRY_SEPARATOR);
+        }
+        return reply.append(VERSION).append(VALUE_SEPARATOR).append(version).toString();
+    }
+
+    synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Forgets cached values, e.g. after connecting to a (possibly different) server.
+     */
+    synchronized void clear() {
+        values.clear();
+        serverVersion = -1;
+        version++;
+    }
+}
@@ -0,0 +1,74 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+
+import com.ooliash.usg.imaging.ContrastFilter;
+import com.ooliash.usg.imaging.FilterPipeline;
+import com.ooliash.usg.imaging.SpeckleFilter;
+
+/**
+ * Optional post-processing of decoded pictures before they are shown: speckle reduction and
+ * contrast enhancement, both off until toggled from the session menu. Pictures are filtered in
+ * place, saved pictures and shared streams stay as the server sent them.
+ */
+final class UsgPictureFilters {
+    static final int SPECKLE_REDUCTION = 0;
+    static final int CONTRAST_ENHANCEMENT = 1;
+    // Budgets per picture, together below the interval of the fastest polling.
+    private static final int SPECKLE_REDUCTION_BUDGET_MICROS = 20000;
+    private static final int CONTRAST_ENHANCEMENT_BUDGET_MICROS = 6000;
+
+    private final FilterPipeline pipeline =
+            new FilterPipeline(Runtime.getRuntime().availableProcessors());
+    private int[] pixels = new int[0];
+
+    UsgPictureFilters() {
+        // Added in the order of the constants, which are their indexes.
+        pipeline.add(new SpeckleFilter(), SPECKLE_REDUCTION_BUDGET_MICROS);
+        pipeline.add(new ContrastFilter(), CONTRAST_ENHANCEMENT_BUDGET_MICROS);
+    }
+
+    /**
+     * @param filter {@link #SPECKLE_REDUCTION} or {@link #CONTRAST_ENHANCEMENT}.
+     * @return True if the filter is on now.
+     */
+    boolean toggle(int filter) {
+        boolean enabled = !pipeline.isEnabled(filter);
+        pipeline.setEnabled(filter, enabled);
+        return enabled;
+    }
+
+    /**
+     * Filters the picture with the filters on, if any. Immutable pictures are left as they are.
+     * Communication thread only.
+     * @return True if the picture was filtered.
+     */
+    boolean apply(Bitmap picture) {
+        if (!pipeline.isActive() || picture == null || !picture.isMutable()) {
+            return false;
+        }
+        int width = picture.getWidth();
+        int height = picture.getHeight();
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        picture.getPixels(pixels, 0, width, 0, 0, width, height);
+        pipeline.process(pixels, width, height);
+        picture.setPixels(pixels, 0, width, 0, 0, width, height);
+        return true;
+    }
+
+    /**
+     * @return Bands of the last picture left unfiltered by the filter, being out of time.
+     */
+    int getLastSkippedBands(int filter) {
+        return pipeline.isEnabled(filter) ? pipeline.getLastSkippedBands(filter) : 0;
+    }
+
+    /**
+     * Stops the filter threads.
+     */
+    void release() {
+        pipeline.close();
+    }
+}
@@ -0,0 +1,179 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.view.SurfaceHolder;
+
+/**
+ * Draws USG pictures on a dedicated surface from its own render thread, so neither the UI thread
+ * nor view invalidation and layout are involved in the picture path. Text overlays stay regular
+ * views on top of the surface.
+ *
+ * Pictures may be handed over from any thread; when they come faster than they can be drawn only
+ * the latest one is drawn. Pictures which won't be drawn again go to the {@link BitmapPool}.
+ */
+final class UsgPictureRenderer implements SurfaceHolder.Callback, FramePacer.FrameSink {
+    // Enough for the pictures the pacer may drop at once.
+    private static final int POOL_CAPACITY = 4;
+
+    private final SurfaceHolder holder;
+    private final HandlerThread renderThread;
+    private final Handler renderHandler;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final BitmapPool bitmapPool = new BitmapPool(POOL_CAPACITY);
+
+    // Picture to surface scaling, recomputed only when either size changes. Render thread only.
+    private final Matrix matrix = new Matrix();
+    private final RectF pictureRect = new RectF();
+    private final RectF surfaceRect = new RectF();
+    private int matrixPictureWidth = -1;
+    private int matrixPictureHeight = -1;
+    private int matrixSurfaceWidth = -1;
+    private int matrixSurfaceHeight = -1;
+
+    /** Lock guarding the fields below; held while drawing, so the surface can't go meanwhile. */
+    private final Object lock = new Object();
+    private Bitmap pendingPicture;
+    private Bitmap shownPicture;
+    private boolean drawPosted;
+    private boolean hasSurface;
+    private int surfaceWidth;
+    private int surfaceHeight;
+
+    private final Runnable drawRunnable = new Runnable() {
+        @Override
+        public void run() {
+            draw();
+        }
+    };
+
+    UsgPictureRenderer(SurfaceHolder holder) {
+        this.holder = holder;
+        renderThread = new HandlerThread("USG renderer", Process.THREAD_PRIORITY_DISPLAY);
+        renderThread.start();
+        renderHandler = new Handler(renderThread.getLooper());
+        holder.addCallback(this);
+    }
+
+    /**
+     * Runs the action on the render thread, e.g. to start {@link FramePacer} on its
+     * {@link android.view.Choreographer}.
+     */
+    void runOnRenderThread(Runnable action) {
+        renderHandler.post(action);
+    }
+
+    /**
+     * @return Pool of pictures this renderer is done with.
+     */
+    BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Stops the render thread. The renderer can't be used afterwards.
+     */
+    void release() {
+        holder.removeCallback(this);
+        renderThread.quitSafely();
+    }
+
+    /**
+     * Draws the picture as soon as possible. The picture mustn't be modified afterwards, until
+     * the renderer puts it to the pool.
+     * @param picture Picture to draw.
+     */
+    @Override
+    public void showFrame(Bitmap picture) {
+        synchronized (lock) {
+            bitmapPool.release(pendingPicture);     // Replaced before it was drawn.
+            pendingPicture = picture;
+            if (drawPosted) {
+                return;
+            }
+            drawPosted = true;
+        }
+        if (Looper.myLooper() == renderThread.getLooper()) {
+            draw();
+        } else {
+            renderHandler.post(drawRunnable);
+        }
+    }
+
+    @Override
+    public void discardFrame(Bitmap picture) {
+        bitmapPool.release(picture);
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        synchronized (lock) {
+            hasSurface = true;
+            surfaceWidth = width;
+            surfaceHeight = height;
+        }
+        renderHandler.post(drawRunnable);   // Redraw the last picture on the new surface.
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        synchronized (lock) {
+            hasSurface = false;
+        }
+    }
+
+    private void draw() {
+        synchronized (lock) {
+            drawPosted = false;
+            if (pendingPicture != null) {
+                bitmapPool.release(shownPicture);
+                shownPicture = pendingPicture;
+                pendingPicture = null;
+            }
+            if (!hasSurface || shownPicture == null) {
+                return;
+            }
+
+            Canvas canvas = holder.lockCanvas();
+            if (canvas == null) {
+                return;
+            }
+            try {
+                updateMatrix(shownPicture.getWidth(), shownPicture.getHeight());
+                canvas.drawColor(Color.BLACK);
+                canvas.drawBitmap(shownPicture, matrix, paint);
+            } finally {
+                holder.unlockCanvasAndPost(canvas);
+            }
+        }
+    }
+
+    /**
+     * Stretches the picture over the whole surface, as the former view background did.
+     */
+    private void updateMatrix(int pictureWidth, int pictureHeight) {
+        if (pictureWidth == matrixPictureWidth && pictureHeight == matrixPictureHeight
+                && surfaceWidth == matrixSurfaceWidth && surfaceHeight == matrixSurfaceHeight) {
+            return;
+        }
+        matrixPictureWidth = pictureWidth;
+        matrixPictureHeight = pictureHeight;
+        matrixSurfaceWidth = surfaceWidth;
+        matrixSurfaceHeight = surfaceHeight;
+        pictureRect.set(0, 0, pictureWidth, pictureHeight);
+        surfaceRect.set(0, 0, surfaceWidth, surfaceHeight);
+        matrix.setRectToRect(pictureRect, surfaceRect, Matrix.ScaleToFit.FILL);
+    }
+}
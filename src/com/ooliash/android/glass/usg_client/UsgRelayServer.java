@@ -0,0 +1,361 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.util.Log;
+
+import com.ooliash.usg.protocol.FrameDecoder;
+import com.ooliash.usg.protocol.FrameFormat;
+import com.ooliash.usg.protocol.PictureFormat;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Shares the session's USG stream with other viewers (other Glass units, a trainee laptop).
+ *
+ * The relay speaks the USG server protocol, so unmodified clients can discover it and connect.
+ * It is fed with every picture the session receives, so the USG server load doesn't depend on the
+ * number of viewers. {@link Command#GET_PICTURE} requests are held until a picture newer than the
+ * one the viewer got last is available and then answered from the single cached frame. Viewers
+ * still busy receiving a previous picture simply miss the intermediate ones. {@link
+ * Command#GET_STATE} is answered from the session's {@link UsgParameters}, {@link Command#PING}
+ * heartbeats of viewers waiting for a held picture at once; control commands are refused, as
+ * viewers are read-only.
+ */
+final class UsgRelayServer implements Runnable {
+    // Constants.
+    private static final String LOG_TAG = "USG";
+    private static final int PORT_NUMBER = 9050;
+    private static final int MAX_COMMAND_LENGTH = 512;
+    private static final String READ_ONLY_MESSAGE = "Read-only USG relay";
+    private static final String NO_STATE_MESSAGE = "No USG state yet";
+    private static final String CONDITIONAL_PICTURE_PREFIX = Command.GET_PICTURE + ':';
+    private static final String[] ANNOUNCED_FORMATS = { PictureFormat.JPEG };
+    // Conditional requests are taken as plain ones, see Viewer.handleCommands.
+    private static final String[] ANNOUNCED_MODES =
+            { ServerAnnouncement.MODE_STATE, ServerAnnouncement.MODE_CONDITIONAL };
+
+    private final UsgParameters parameters;
+
+    /** Lock guarding {@link #latestFrame} and {@link #latestFrameNumber}. */
+    private final Object frameLock = new Object();
+
+    /** Latest picture with its length prefix, ready to be written to any number of viewers. */
+    private ByteBuffer latestFrame;
+    private int latestFrameNumber;
+
+    private final List<Viewer> viewers = new ArrayList<Viewer>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private DatagramSocket discoverySocket;
+    private Thread relayThread;
+    private Thread discoveryThread;
+    private volatile boolean running;
+
+    /**
+     * @param parameters Parameters cache of the session used to answer state queries.
+     */
+    UsgRelayServer(UsgParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Starts accepting viewers and answering discovery broadcasts.
+     * @throws IOException If the USG ports can't be bound.
+     */
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(PORT_NUMBER));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        discoverySocket = new DatagramSocket(UsgServerDiscovery.BROADCAST_PORT_NUMBER);
+
+        running = true;
+        relayThread = new Thread(this, "USG relay");
+        relayThread.start();
+        discoveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                answerDiscovery();
+            }
+        }, "USG relay discovery");
+        discoveryThread.start();
+        Log.d(LOG_TAG, "USG relay started.");
+    }
+
+    /**
+     * Disconnects all viewers and stops the relay.
+     */
+    void stop() {
+        running = false;
+        discoverySocket.close();
+        selector.wakeup();
+        try {
+            relayThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.d(LOG_TAG, "USG relay stopped.");
+    }
+
+    /**
+     * Makes the picture the latest one and sends it to every viewer waiting for it.
+     * @param picture Encoded picture as received from the USG server. Not modified afterwards.
+     */
+    void publishFrame(byte[] picture) {
+        ByteBuffer frame = ByteBuffer.wrap(FrameFormat.encode(picture));
+        synchronized (frameLock) {
+            latestFrame = frame;
+            latestFrameNumber++;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * @return Number of currently connected viewers.
+     */
+    int getViewerCount() {
+        synchronized (viewers) {
+            return viewers.size();
+        }
+    }
+
+    @Override
+    public void run() {
+        int fannedOutFrameNumber = 0;
+        try {
+            while (running) {
+                selector.select();
+
+                ByteBuffer frame;
+                int frameNumber;
+                synchronized (frameLock) {
+                    frame = latestFrame;
+                    frameNumber = latestFrameNumber;
+                }
+                if (frameNumber != fannedOutFrameNumber) {
+                    fannedOutFrameNumber = frameNumber;
+                    fanOut(frame, frameNumber);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Viewer viewer = (Viewer) key.attachment();
+                        if (key.isWritable()) {
+                            viewer.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            viewer.read();
+                        }
+                    } catch (IOException e) {
+                        close((Viewer) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "USG relay failed: " + e);
+        } finally {
+            for (Viewer viewer : new ArrayList<Viewer>(viewers)) {
+                close(viewer);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends the new frame to every viewer waiting for a picture.
+     */
+    private void fanOut(ByteBuffer frame, int frameNumber) {
+        for (Viewer viewer : viewers) {
+            if (viewer.waitingForFrame) {
+                viewer.waitingForFrame = false;
+                viewer.lastFrameNumber = frameNumber;
+                viewer.reply(frame.duplicate());
+            } else {
+                viewer.droppedFrames++;
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Viewer viewer = new Viewer(channel);
+        viewer.key = channel.register(selector, SelectionKey.OP_READ, viewer);
+        synchronized (viewers) {
+            viewers.add(viewer);
+        }
+        Log.d(LOG_TAG, "USG relay viewer connected: " + channel.socket().getInetAddress());
+    }
+
+    private void close(Viewer viewer) {
+        if (viewer == null) {
+            return;
+        }
+        synchronized (viewers) {
+            viewers.remove(viewer);
+        }
+        viewer.key.cancel();
+        try {
+            viewer.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.d(LOG_TAG, "USG relay viewer disconnected, missed " + viewer.droppedFrames
+                + " pictures.");
+    }
+
+    /**
+     * Answers "looking for USG server" broadcasts, so viewers find the relay as any USG server.
+     */
+    private void answerDiscovery() {
+        byte[] recvBuf = new byte[100];
+        DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
+        byte[] ack = UsgServerDiscovery.DISCOVERY_ACK.getBytes();
+        while (running) {
+            try {
+                packet.setLength(recvBuf.length);
+                discoverySocket.receive(packet);
+                String messageStr = new String(packet.getData(), 0, packet.getLength()).trim();
+                byte[] reply = null;
+                if (messageStr.equals(UsgServerDiscovery.DISCOVERY_REQUEST)) {
+                    reply = ack;
+                } else if (messageStr.equals(UsgServerDiscovery.EXTENDED_DISCOVERY_REQUEST)) {
+                    // Parameters as last seen, they change while sharing.
+                    reply = ServerAnnouncement.format(PORT_NUMBER, ANNOUNCED_FORMATS,
+                            ANNOUNCED_MODES, parameters).getBytes();
+                }
+                if (reply != null) {
+                    discoverySocket.send(new DatagramPacket(
+                            reply, reply.length, packet.getAddress(), packet.getPort()));
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(LOG_TAG, "USG relay discovery: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Connected viewer. Accessed only from the relay thread.
+     */
+    private final class Viewer {
+        final SocketChannel channel;
+        final FrameDecoder commands = new FrameDecoder(MAX_COMMAND_LENGTH);
+        /** The decoder window, for reading into it without copying. */
+        final ByteBuffer commandWindow = ByteBuffer.wrap(commands.window());
+        SelectionKey key;
+        ByteBuffer pendingReply;
+        boolean waitingForFrame;
+        int lastFrameNumber;
+        int droppedFrames;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int offset = commands.fillOffset();
+            commandWindow.limit(offset + commands.fillCapacity()).position(offset);
+            int count = channel.read(commandWindow);
+            if (count < 0) {
+                throw new IOException("Viewer closed connection");
+            }
+            commands.filled(count);
+            handleCommands();
+        }
+
+        void write() throws IOException {
+            channel.write(pendingReply);
+            if (!pendingReply.hasRemaining()) {
+                pendingReply = null;
+                key.interestOps(SelectionKey.OP_READ);
+                handleCommands();
+            }
+        }
+
+        void reply(ByteBuffer reply) {
+            pendingReply = reply;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Handles the next buffered command, one at a time as the protocol is request-response.
+         */
+        void handleCommands() throws IOException {
+            if (pendingReply != null || waitingForFrame || !commands.next()) {
+                return;
+            }
+            if (commands.isError()) {
+                throw new IOException("Viewer sent an error");
+            }
+            String command = new String(
+                    commands.window(), commands.frameOffset(), commands.frameLength());
+
+            // Viewers get every frame once, so a conditional request is a plain one here.
+            if (command.equals(Command.GET_PICTURE)
+                    || command.startsWith(CONDITIONAL_PICTURE_PREFIX)) {
+                ByteBuffer frame;
+                int frameNumber;
+                synchronized (frameLock) {
+                    frame = latestFrame;
+                    frameNumber = latestFrameNumber;
+                }
+                if (frame != null && frameNumber != lastFrameNumber) {
+                    lastFrameNumber = frameNumber;
+                    reply(frame.duplicate());
+                } else {
+                    waitingForFrame = true;
+                }
+            } else if (command.equals(Command.GET_FORMATS)) {
+                reply(encodeString(PictureFormat.JPEG));    // What every viewer can decode.
+            } else if (command.equals(Command.PING)) {
+                reply(encodeString(Command.PING));
+            } else if (command.equals(Command.GET_STATE)) {
+                String state = parameters.toStateReply();
+                reply(state != null ? encodeString(state) : encodeError(NO_STATE_MESSAGE));
+            } else {
+                reply(encodeError(READ_ONLY_MESSAGE));
+            }
+        }
+    }
+
+    private static ByteBuffer encodeString(String text) {
+        return ByteBuffer.wrap(FrameFormat.encode(text.getBytes()));
+    }
+
+    private static ByteBuffer encodeError(String message) {
+        return ByteBuffer.wrap(FrameFormat.encodeError(message.getBytes()));
+    }
+}
@@ -0,0 +1,190 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds USG servers in the local network using UDP broadcast "looking for USG server". Both the
+ * bare request and the extended one are broadcast, what servers tell in their replies is kept as
+ * {@link ServerAnnouncement}s.
+ */
+final class UsgServerDiscovery {
+    // Constants.
+    private static final String LOG_TAG = "USG";
+    static final int BROADCAST_PORT_NUMBER = 9049;
+    static final String DISCOVERY_REQUEST = "LF_PJATK_USG_SERVER";
+    static final String DISCOVERY_ACK = "PJATK_USG_SERVER_ACK";
+    // Asks newer servers for a ServerAnnouncement, older ones ignore it.
+    static final String EXTENDED_DISCOVERY_REQUEST =
+            DISCOVERY_REQUEST + ";v=" + ServerAnnouncement.VERSION;
+    private static final int RESPONSE_TIMEOUT = 4000;
+    static final int BROADCAST_INTERVAL = 500;
+    private static final int MAX_ACK_LENGTH = 1024;
+    // After the bare ACK of the first server, its announcement may still be on the way.
+    private static final int ANNOUNCEMENT_WAIT = 100;
+    // A server only giving the bare ACK for this long may have been replaced by an older one.
+    private static final long STALE_ANNOUNCEMENT_MILLIS = 60000;
+
+    /** Latest announcement of every server found, extended ones kept over bare ACKs. */
+    private static final Map<InetAddress, ServerAnnouncement> announcements =
+            new HashMap<InetAddress, ServerAnnouncement>();
+
+    /**
+     * Listener notified about every newly found server.
+     */
+    interface Listener {
+        void onServerFound(InetAddress serverAddress);
+    }
+
+    private UsgServerDiscovery() {
+    }
+
+    /**
+     * Broadcasts until any USG server responds.
+     * @return Address of the first server which responded.
+     */
+    static InetAddress findFirstServer() {
+        Set<InetAddress> found = new LinkedHashSet<InetAddress>();
+        while (found.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            Log.d(LOG_TAG, "Broadcast looking for USG server...");
+            discover(RESPONSE_TIMEOUT, true, found, null);
+        }
+        return found.isEmpty() ? null : found.iterator().next();
+    }
+
+    /**
+     * Collects every USG server responding within the given time window.
+     * @param windowMillis Time to wait for responses.
+     * @param listener Optional listener notified about each server as soon as it responds.
+     * @return Addresses of all servers found, in order of response.
+     */
+    static List<InetAddress> findAllServers(int windowMillis, Listener listener) {
+        Set<InetAddress> found = new LinkedHashSet<InetAddress>();
+        discover(windowMillis, false, found, listener);
+        return new ArrayList<InetAddress>(found);
+    }
+
+    /**
+     * @return What the server told in its last reply to discovery, null if it wasn't found.
+     */
+    static ServerAnnouncement getAnnouncement(InetAddress serverAddress) {
+        synchronized (announcements) {
+            return announcements.get(serverAddress);
+        }
+    }
+
+    /**
+     * Broadcasts "Looking for USG server" every {@link #BROADCAST_INTERVAL} and collects ACKs.
+     */
+    private static void discover(
+            int windowMillis, boolean stopAtFirst, Set<InetAddress> found, Listener listener) {
+        // Hack Prevent crash (sending should be done using an async task)
+        StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitAll().build();
+        StrictMode.setThreadPolicy(policy);
+
+        DatagramSocket socket = null;
+        try {
+            //Open a random port to send the package
+            socket = new DatagramSocket();
+            socket.setBroadcast(true);
+            InetAddress broadcastAddress = InetAddress.getByName("255.255.255.255");
+            byte[] sendData = DISCOVERY_REQUEST.getBytes();
+            DatagramPacket sendPacket = new DatagramPacket(
+                    sendData,
+                    sendData.length,
+                    broadcastAddress,
+                    BROADCAST_PORT_NUMBER);
+            byte[] extendedData = EXTENDED_DISCOVERY_REQUEST.getBytes();
+            DatagramPacket extendedPacket = new DatagramPacket(
+                    extendedData, extendedData.length, broadcastAddress, BROADCAST_PORT_NUMBER);
+
+            byte[] recvBuf = new byte[MAX_ACK_LENGTH];
+            DatagramPacket receivedPacket = new DatagramPacket(recvBuf, recvBuf.length);
+            long deadline = System.currentTimeMillis() + windowMillis;
+            long nextBroadcast = 0;
+            long now;
+            while ((now = System.currentTimeMillis()) < deadline) {
+                if (now >= nextBroadcast) {
+                    socket.send(extendedPacket);    // First, so its reply tends to come first.
+                    socket.send(sendPacket);
+                    UsgTrace.record(UsgTrace.BROADCAST_SENT, 0);
+                    nextBroadcast = now + BROADCAST_INTERVAL;
+                }
+
+                //Wait for a response
+                socket.setSoTimeout((int) Math.max(1, Math.min(deadline, nextBroadcast) - now));
+                receivedPacket.setLength(recvBuf.length);
+                try {
+                    socket.receive(receivedPacket);
+                } catch (SocketTimeoutException ex) {
+                    continue;
+                }
+                String messageStr = new String(
+                        receivedPacket.getData(), 0, receivedPacket.getLength()).trim();
+                ServerAnnouncement announcement = ServerAnnouncement.parse(messageStr);
+                UsgTrace.record(UsgTrace.BROADCAST_RESPONSE, announcement != null ? 1 : 0);
+                if (announcement == null || isLocal(receivedPacket.getAddress())) {
+                    continue;   // Not a server or our own UsgRelayServer.
+                }
+                keepAnnouncement(receivedPacket.getAddress(), announcement);
+                if (found.add(receivedPacket.getAddress())) {
+                    Log.d(LOG_TAG, "USG server found at "
+                            + receivedPacket.getAddress().getHostAddress()
+                            + ", discovery version " + announcement.getVersion());
+                    if (listener != null) {
+                        listener.onServerFound(receivedPacket.getAddress());
+                    }
+                }
+                if (stopAtFirst) {
+                    if (announcement.getVersion() > 1) {
+                        break;
+                    }
+                    deadline = Math.min(deadline, now + ANNOUNCEMENT_WAIT);
+                    nextBroadcast = deadline;   // No more rounds.
+                }
+            }
+            if (found.isEmpty()) {
+                Log.d(LOG_TAG, "No broadcast response...");
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "IOException: " + e.getMessage());
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private static void keepAnnouncement(InetAddress address, ServerAnnouncement announcement) {
+        synchronized (announcements) {
+            ServerAnnouncement previous = announcements.get(address);
+            // Both requests are answered every round, the bare ACK doesn't replace the other.
+            if (previous == null || announcement.getVersion() > 1 || previous.getVersion() == 1
+                    || previous.getAgeMillis() > STALE_ANNOUNCEMENT_MILLIS) {
+                announcements.put(address, announcement);
+            }
+        }
+    }
+
+    private static boolean isLocal(InetAddress address) {
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+}
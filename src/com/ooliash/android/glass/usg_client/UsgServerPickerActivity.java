@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2018 Bartlomiej Uliasz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ooliash.android.glass.usg_client;
+
+import com.google.android.glass.media.Sounds;
+import com.google.android.glass.widget.CardBuilder;
+import com.google.android.glass.widget.CardScrollAdapter;
+import com.google.android.glass.widget.CardScrollView;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.media.AudioManager;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects every USG server responding in the local network and lets the user pick one. Each card
+ * shows a low-rate live thumbnail from its server; the picked server's connection is handed over
+ * to the session, so it starts without reconnecting.
+ */
+public class UsgServerPickerActivity extends Activity {
+
+    private static final String LOG_TAG = "USG";
+
+    /**
+     * Time window in which the responses to one discovery broadcast round are collected.
+     */
+    private static final int DISCOVERY_WINDOW = 1000;
+
+    /** Servers found so far, in order of response. */
+    private final List<InetAddress> servers = new ArrayList<InetAddress>();
+    private final Map<InetAddress, Bitmap> thumbnails = new HashMap<InetAddress, Bitmap>();
+    private final Map<InetAddress, UsgThumbnailTask> thumbnailTasks =
+            new HashMap<InetAddress, UsgThumbnailTask>();
+
+    private AudioManager mAudioManager;
+    private CardScrollView cardScrollView;
+    private ServerCardAdapter adapter;
+    private DiscoveryTask discoveryTask;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        servers.addAll(ConnectionWarmUp.getServers());  // Thumbnails start in onResume().
+
+        adapter = new ServerCardAdapter();
+        cardScrollView = new CardScrollView(this);
+        cardScrollView.setAdapter(adapter);
+        cardScrollView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                if (position < servers.size()) {
+                    mAudioManager.playSoundEffect(Sounds.TAP);
+                    startSession(servers.get(position));
+                } else {
+                    mAudioManager.playSoundEffect(Sounds.DISALLOWED);
+                }
+            }
+        });
+        setContentView(cardScrollView);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        cardScrollView.activate();
+        for (InetAddress server : servers) {
+            startThumbnailTask(server);
+        }
+        discoveryTask = new DiscoveryTask();
+        // Off the serial executor, so a finishing round never delays the session task.
+        discoveryTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        cardScrollView.deactivate();
+        discoveryTask.cancel(true);
+        for (UsgThumbnailTask task : thumbnailTasks.values()) {
+            task.cancel(true);
+        }
+        thumbnailTasks.clear();
+    }
+
+    /**
+     * Called by {@link UsgThumbnailTask} with every new thumbnail.
+     */
+    void showThumbnail(InetAddress server, Bitmap thumbnail) {
+        thumbnails.put(server, thumbnail);
+        adapter.notifyDataSetChanged();
+    }
+
+    private void addServer(InetAddress server) {
+        if (servers.contains(server)) {
+            return;
+        }
+        Log.d(LOG_TAG, "Found USG server: " + server.getHostAddress());
+        servers.add(server);
+        adapter.notifyDataSetChanged();
+        startThumbnailTask(server);
+    }
+
+    private void startThumbnailTask(InetAddress server) {
+        UsgThumbnailTask task = new UsgThumbnailTask(this, server);
+        thumbnailTasks.put(server, task);
+        task.start();
+    }
+
+    /**
+     * Starts session with the given server, handing over the thumbnail connection to it.
+     */
+    private void startSession(InetAddress server) {
+        UsgThumbnailTask task = thumbnailTasks.remove(server);
+        if (task != null) {
+            task.handOver();
+        }
+        Intent intent = new Intent(this, UsgSessionActivity.class);
+        intent.putExtra(UsgSessionActivity.EXTRA_SERVER_ADDRESS, server.getHostAddress());
+        startActivity(intent);
+        finish();
+    }
+
+    /**
+     * Called after every discovery round. If exactly one server is in the network, the session
+     * with it starts right away.
+     */
+    private void discoveryRoundFinished() {
+        if (servers.size() == 1) {
+            discoveryTask.cancel(true);
+            startSession(servers.get(0));
+        }
+    }
+
+    /**
+     * Broadcasts discovery rounds until cancelled.
+     */
+    private class DiscoveryTask extends AsyncTask<Void, InetAddress, Void> {
+        @Override
+        protected Void doInBackground(Void... params) {
+            UsgServerDiscovery.Listener listener = new UsgServerDiscovery.Listener() {
+                @Override
+                public void onServerFound(InetAddress serverAddress) {
+                    publishProgress(serverAddress);
+                }
+            };
+            while (!isCancelled()) {
+                UsgServerDiscovery.findAllServers(DISCOVERY_WINDOW, listener);
+                publishProgress((InetAddress) null);    // Round finished.
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(InetAddress... found) {
+            if (isCancelled()) {
+                return;
+            }
+            if (found[0] != null) {
+                addServer(found[0]);
+            } else {
+                discoveryRoundFinished();
+            }
+        }
+    }
+
+    /**
+     * One card per server, or a single "looking for servers" card while none was found.
+     */
+    private class ServerCardAdapter extends CardScrollAdapter {
+        @Override
+        public int getCount() {
+            return Math.max(1, servers.size());
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return position < servers.size() ? servers.get(position) : null;
+        }
+
+        @Override
+        public int getPosition(Object item) {
+            return servers.indexOf(item);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            if (servers.isEmpty()) {
+                return new CardBuilder(UsgServerPickerActivity.this, CardBuilder.Layout.TEXT)
+                        .setText(getString(R.string.looking_for_usg_servers))
+                        .getView(convertView, parent);
+            }
+            InetAddress server = servers.get(position);
+            CardBuilder card = new CardBuilder(
+                    UsgServerPickerActivity.this, CardBuilder.Layout.CAPTION)
+                    .setText(server.getHostAddress())
+                    .setFootnote(getString(R.string.tap_to_connect));
+            Bitmap thumbnail = thumbnails.get(server);
+            if (thumbnail != null) {
+                card.addImage(thumbnail);
+            }
+            return card.getView(convertView, parent);
+        }
+    }
+}
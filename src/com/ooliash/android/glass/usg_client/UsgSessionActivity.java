@@ -19,16 +19,24 @@ package com.ooliash.android.glass.usg_client;
 import com.google.android.glass.media.Sounds;
 import com.google.android.glass.touchpad.Gesture;
 import com.google.android.glass.view.WindowUtils;
+import com.ooliash.usg.metrics.UsgMetrics;
 
+import android.content.Context;
+import android.content.Intent;
 import android.graphics.Color;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.SurfaceView;
 import android.view.Window;
 import android.widget.TextView;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -40,6 +48,13 @@ import java.util.Locale;
 public class UsgSessionActivity extends BaseActivity {
 
     private static final String LOG_TAG = "USG";
+
+    /**
+     * Intent extra with the IP address of the USG server to connect to. Without it the session
+     * connects to the first server responding to discovery.
+     */
+    static final String EXTRA_SERVER_ADDRESS = "server_address";
+
     UsgCommunicationTask usgCommunicationTask;
 
     /**
@@ -69,6 +84,10 @@ public class UsgSessionActivity extends BaseActivity {
      * TextView that displays the current time.
      */
     private TextView mTimer;
+    private UsgPictureRenderer pictureRenderer;
+    private FramePacer framePacer;
+    private FrameRateGovernor frameRateGovernor;
+    private UsgPictureFilters pictureFilters;
     private UsgSessionMenuHandler _menuHandler;
     private Calendar _calendar;
     private SimpleDateFormat _timeFormat;
@@ -83,10 +102,26 @@ public class UsgSessionActivity extends BaseActivity {
 
         super.onCreate(savedInstanceState);
 
-        usgCommunicationTask = new UsgCommunicationTask(this);
+        TransportSecurity.configure(getApplicationContext());
+        pictureRenderer = new UsgPictureRenderer(
+                ((SurfaceView) findViewById(R.id.usg_picture_view)).getHolder());
+        usgCommunicationTask = new UsgCommunicationTask(this, getServerAddress());
+        usgCommunicationTask.setPictureRenderer(pictureRenderer);
+        frameRateGovernor = new FrameRateGovernor(
+                (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE));
+        usgCommunicationTask.setGovernor(frameRateGovernor);
+        pictureFilters = new UsgPictureFilters();
+        usgCommunicationTask.setPictureFilters(pictureFilters);
         mTimer = (TextView) findViewById(R.id.timer);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        pictureRenderer.release();
+        pictureFilters.release();
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -102,8 +137,55 @@ public class UsgSessionActivity extends BaseActivity {
     @Override
     protected void onStop() {
         super.onStop();
+        if (framePacer != null) {
+            toggleSmoothPlayback();
+        }
+        usgCommunicationTask.stopRelay();
+        usgCommunicationTask.stopCapture();
         cancelUsgCommunicationTask();
         mHandler.removeCallbacks(mTick);
+        frameRateGovernor.release();
+        writeSessionMetrics();
+    }
+
+    @Override
+    protected void onBatteryChanged(Intent intent) {
+        if (frameRateGovernor != null) {
+            frameRateGovernor.onBatteryChanged(intent);
+        }
+    }
+
+    /**
+     * Writes session performance metrics next to the session pictures directory.
+     */
+    private void writeSessionMetrics() {
+        UsgMetrics metrics = usgCommunicationTask.getMetrics();
+        if (metrics.getCounter(UsgMetrics.FRAMES_RECEIVED) == 0) {
+            return;
+        }
+        metrics.set(UsgMetrics.SESSION_DURATION_MS,
+                System.currentTimeMillis() - sessionStartTime.getTime());
+        try {
+            metrics.writeTo(UsgStorage.getSessionMetricsFile(sessionStartTime));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't write session metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Address of the USG server picked in {@link UsgServerPickerActivity} or null.
+     */
+    private InetAddress getServerAddress() {
+        String serverAddress = getIntent().getStringExtra(EXTRA_SERVER_ADDRESS);
+        if (serverAddress == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(serverAddress);    // IP literal, no DNS lookup.
+        } catch (UnknownHostException e) {
+            Log.e(LOG_TAG, "Invalid USG server address: " + serverAddress);
+            return null;
+        }
     }
 
     /**
@@ -170,6 +252,21 @@ public class UsgSessionActivity extends BaseActivity {
             case SWIPE_DOWN:
                 sendCommand(Command.GAIN_DOWN);
                 break;
+            case TWO_TAP:
+                if (usgCommunicationTask.getZoomRegion().isZoomed()) {
+                    resetZoom();
+                } else {
+                    zoomIn();
+                }
+                break;
+            case TWO_SWIPE_LEFT:
+                return panZoom(-1, 0);
+            case TWO_SWIPE_RIGHT:
+                return panZoom(1, 0);
+            case TWO_SWIPE_UP:
+                return panZoom(0, -1);
+            case TWO_SWIPE_DOWN:
+                return panZoom(0, 1);
             case TWO_LONG_PRESS:
                 permText("EXITING...");
                 finish();
@@ -272,6 +369,9 @@ public class UsgSessionActivity extends BaseActivity {
             try {
                 usgCommunicationTask.commandQueue.put(command);
                 permText(command.replace('_', ' '));
+                if (command == Command.GAIN_UP || command == Command.GAIN_DOWN) {
+                    usgCommunicationTask.getAutoGain().manualAdjustment();
+                }
 
             } catch (InterruptedException e) {
                 Log.e(LOG_TAG, "Cannot put new command to the command queue: "
@@ -280,7 +380,160 @@ public class UsgSessionActivity extends BaseActivity {
         }
     }
 
+    /**
+     * Turns the jitter buffer between the USG stream and the display on or off. The pacer runs
+     * on the render thread's {@link android.view.Choreographer}.
+     */
+    void toggleSmoothPlayback() {
+        final FramePacer pacer = framePacer;
+        if (pacer != null) {
+            usgCommunicationTask.setFramePacer(null);
+            usgCommunicationTask.getMetrics().increment(
+                    UsgMetrics.DROPPED_FRAMES, pacer.getDroppedFrames());
+            pictureRenderer.runOnRenderThread(new Runnable() {
+                @Override
+                public void run() {
+                    pacer.stop();
+                }
+            });
+            normalMessage("Smooth playback off");
+            framePacer = null;
+            return;
+        }
+        framePacer = new FramePacer(pictureRenderer,
+                getResources().getInteger(R.integer.jitter_buffer_target_delay_ms));
+        pictureRenderer.runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                framePacer.start();
+            }
+        });
+        usgCommunicationTask.setFramePacer(framePacer);
+        normalMessage("Smooth playback on");
+    }
+
+    void zoomIn() {
+        ZoomRegion zoomRegion = usgCommunicationTask.getZoomRegion();
+        zoomRegion.zoomIn();
+        normalMessage("Zoom " + zoomRegion.getZoom() + "x");
+    }
+
+    void zoomOut() {
+        ZoomRegion zoomRegion = usgCommunicationTask.getZoomRegion();
+        zoomRegion.zoomOut();
+        normalMessage("Zoom " + zoomRegion.getZoom() + "x");
+    }
+
+    void resetZoom() {
+        usgCommunicationTask.getZoomRegion().reset();
+        normalMessage("Zoom off");
+    }
+
+    /**
+     * Moves the zoomed region by half of its size.
+     * @return False if not zoomed, so the gesture isn't consumed.
+     */
+    private boolean panZoom(int dx, int dy) {
+        ZoomRegion zoomRegion = usgCommunicationTask.getZoomRegion();
+        if (!zoomRegion.isZoomed()) {
+            return false;
+        }
+        zoomRegion.pan(dx, dy);
+        playSoundEffect(Sounds.TAP);
+        return true;
+    }
+
+    /**
+     * Selects power profile of the {@link FrameRateGovernor}.
+     * @param profile One of FrameRateGovernor.PROFILE_* constants.
+     */
+    void setPowerProfile(int profile) {
+        frameRateGovernor.setProfile(profile);
+        normalMessage("Power profile: " + frameRateGovernor.getEffectiveProfileName());
+    }
+
+    /**
+     * Starts or stops capturing the session traffic for replay with
+     * {@link com.ooliash.usg.protocol.ReplayServer}.
+     */
+    void toggleTrafficRecording() {
+        if (usgCommunicationTask.isCapturing()) {
+            usgCommunicationTask.stopCapture();
+            normalMessage("Recording stopped");
+            return;
+        }
+        try {
+            usgCommunicationTask.startCapture(UsgStorage.getCaptureFile(sessionStartTime));
+            normalMessage("Recording traffic");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot record USG traffic: " + e.getMessage());
+            errorMessage("Couldn't record traffic");
+        }
+    }
+
+    /**
+     * Starts or stops sharing the USG stream with other viewers through {@link UsgRelayServer}.
+     */
+    void toggleStreamSharing() {
+        if (usgCommunicationTask.isRelayRunning()) {
+            usgCommunicationTask.stopRelay();
+            normalMessage("Stream sharing stopped");
+            return;
+        }
+        if (TransportSecurity.isRequired()) {
+            errorMessage("Viewers would get plaintext, TLS is required");
+            return;
+        }
+        InetAddress localAddress = usgCommunicationTask.getLocalAddress();
+        if (localAddress == null) {
+            errorMessage("Not connected to USG");
+            return;
+        }
+        try {
+            usgCommunicationTask.startRelay();
+            normalMessage("Sharing at " + localAddress.getHostAddress());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot start USG relay: " + e.getMessage());
+            errorMessage("Couldn't share stream");
+        }
+    }
+
+    /**
+     * Turns a post-processing filter of the pictures on or off.
+     * @param filter {@link UsgPictureFilters#SPECKLE_REDUCTION} or
+     *               {@link UsgPictureFilters#CONTRAST_ENHANCEMENT}.
+     */
+    void togglePictureFilter(int filter) {
+        boolean enabled = pictureFilters.toggle(filter);
+        String name = getString(filter == UsgPictureFilters.SPECKLE_REDUCTION
+                ? R.string.speckle_reduction : R.string.contrast_enhancement);
+        normalMessage(name + (enabled ? " on" : " off"));
+    }
+
+    /**
+     * Turns automatic gain on or off. While on, a manual gain change holds it off for a while.
+     */
+    void toggleAutoGain() {
+        boolean enabled = usgCommunicationTask.getAutoGain().toggle();
+        normalMessage(enabled ? "Auto gain on" : "Auto gain off");
+    }
+
+    /**
+     * Closes this session and lets the user pick another USG server.
+     */
+    void switchUsgServer() {
+        startActivity(new Intent(this, UsgServerPickerActivity.class));
+        finish();
+    }
+
+    /**
+     * @return The last picture as JPEG, null if it couldn't be converted.
+     */
     public byte[] getLastUsgPictureBytes() {
         return usgCommunicationTask.getLastUsgPictureBytes();
     }
+
+    String getParametersState() {
+        return usgCommunicationTask.getParametersState();
+    }
 }
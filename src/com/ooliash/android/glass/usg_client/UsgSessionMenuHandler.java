@@ -2,16 +2,17 @@ package com.ooliash.android.glass.usg_client;
 
 import android.content.Intent;
 import android.net.Uri;
-import android.os.Environment;
 import android.util.Log;
 
 import com.google.android.glass.media.Sounds;
+import com.ooliash.usg.export.DicomExporter;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -19,6 +20,7 @@ import java.util.Date;
 public class UsgSessionMenuHandler {
 
     private static final String LOG_TAG = "USG";
+    private static final int TRACE_FRAME_SAMPLING = 10;
     private final UsgSessionActivity context;
 
     UsgSessionMenuHandler(UsgSessionActivity context) {
@@ -82,6 +84,60 @@ public class UsgSessionMenuHandler {
             case R.id.log3_0:
                 context.sendCommand(Command.PALETTE_LOG_3_0);
                 break;
+            case R.id.record_traffic:
+                context.toggleTrafficRecording();
+                break;
+            case R.id.trace_off:
+                setTraceLevel(UsgTrace.LEVEL_OFF, 1);
+                break;
+            case R.id.trace_info:
+                setTraceLevel(UsgTrace.LEVEL_INFO, 1);
+                break;
+            case R.id.trace_sampled_frames:
+                setTraceLevel(UsgTrace.LEVEL_DEBUG, TRACE_FRAME_SAMPLING);
+                break;
+            case R.id.trace_all_frames:
+                setTraceLevel(UsgTrace.LEVEL_DEBUG, 1);
+                break;
+            case R.id.dump_trace:
+                dumpTrace();
+                break;
+            case R.id.zoom_in:
+                context.zoomIn();
+                break;
+            case R.id.zoom_out:
+                context.zoomOut();
+                break;
+            case R.id.zoom_reset:
+                context.resetZoom();
+                break;
+            case R.id.power_performance:
+                context.setPowerProfile(FrameRateGovernor.PROFILE_PERFORMANCE);
+                break;
+            case R.id.power_balanced:
+                context.setPowerProfile(FrameRateGovernor.PROFILE_BALANCED);
+                break;
+            case R.id.power_endurance:
+                context.setPowerProfile(FrameRateGovernor.PROFILE_ENDURANCE);
+                break;
+            case R.id.smooth_playback:
+                context.toggleSmoothPlayback();
+                break;
+            case R.id.speckle_reduction:
+                context.togglePictureFilter(UsgPictureFilters.SPECKLE_REDUCTION);
+                break;
+            case R.id.contrast_enhancement:
+                context.togglePictureFilter(UsgPictureFilters.CONTRAST_ENHANCEMENT);
+                break;
+            case R.id.auto_gain:
+                context.toggleAutoGain();
+                break;
+            case R.id.share_stream:
+                context.toggleStreamSharing();
+                break;
+            case R.id.switch_usg:
+                context.switchUsgServer();
+                break;
             case R.id.close_session:
                 context.finish();
                 break;
@@ -94,13 +150,19 @@ public class UsgSessionMenuHandler {
 
     private void savePicture() {
         try {
+            byte[] picture = context.getLastUsgPictureBytes();
+            if (picture == null) {
+                context.errorMessage("Couldn't convert picture.");
+                return;
+            }
             File outputFile = preparePictureDirectoryAndFile();
             outputFile.createNewFile();
             BufferedOutputStream bos = new BufferedOutputStream(
                     new FileOutputStream(outputFile));
-            bos.write(context.getLastUsgPictureBytes());
+            bos.write(picture);
             bos.flush();
             bos.close();
+            saveParameters(DicomExporter.stateFile(outputFile));
             context.audioManager.playSoundEffect(Sounds.SUCCESS);
             // viewPicture(outputFile); - not working on GG Exp
         } catch (FileNotFoundException e) {
@@ -112,6 +174,51 @@ public class UsgSessionMenuHandler {
         }
     }
 
+    /**
+     * Saves scanner parameters next to a picture, for {@link DicomExporter} to tag it with.
+     * @param stateFile Sidecar file of the picture.
+     */
+    private void saveParameters(File stateFile) throws IOException {
+        String state = context.getParametersState();
+        if (state == null) {
+            return;
+        }
+        FileWriter writer = new FileWriter(stateFile);
+        try {
+            writer.write(state);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Sets what {@link UsgTrace} records from now on, for the whole process.
+     * @param frameSampling 1 to record the events of every frame, n for every n-th.
+     */
+    private void setTraceLevel(int level, int frameSampling) {
+        UsgTrace.setLevel(level);
+        UsgTrace.setSampling(UsgTrace.COMMAND_SENT, frameSampling);
+        UsgTrace.setSampling(UsgTrace.REPLY_RECEIVED, frameSampling);
+        UsgTrace.setSampling(UsgTrace.PICTURE_RECEIVED, frameSampling);
+        context.normalMessage(level == UsgTrace.LEVEL_OFF ? "Trace off" : "Trace on");
+    }
+
+    /**
+     * Writes the {@link UsgTrace} events recorded so far to the session directory.
+     */
+    private void dumpTrace() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH_mm_ss");
+        File traceFile = new File(prepareSessionDirectory(),
+                "trace " + dateFormat.format(new Date()) + ".csv");
+        try {
+            UsgTrace.dump(traceFile);
+            context.normalMessage("Trace saved");
+        } catch (IOException e) {
+            e.printStackTrace();
+            context.errorMessage("Couldn't write trace to file.");
+        }
+    }
+
     /**
      * Opens image passed as File argument in a system image viewer.
      * Unfortunately it seems to be no default image viewer on Google Glass Exp
@@ -131,22 +238,16 @@ public class UsgSessionMenuHandler {
      * @return Output file.
      */
     private File preparePictureDirectoryAndFile() {
-        // Create main pictures folder if it doesn't exist
-        File picturesPublicDirectory =
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-        picturesPublicDirectory.mkdirs();
-        // File parent = context.getFilesDir();
-        File sessionsRootDirectory  = new File(picturesPublicDirectory, "usg_pictures");
-        sessionsRootDirectory.mkdirs();
-
-        // Create session folder
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH_mm");
-        File sessionDirectory =
-                new File(sessionsRootDirectory, dateFormat.format(context.sessionStartTime));
-        sessionDirectory.mkdirs();
-
         // Create image file
-        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH_mm_ss");
-        return new File(sessionDirectory, dateFormat.format(new Date()) + ".jpg");
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH_mm_ss");
+        return new File(prepareSessionDirectory(), dateFormat.format(new Date()) + ".jpg");
+    }
+
+    /**
+     * Prepare USG pictures directory of the current session.
+     * @return Session directory.
+     */
+    private File prepareSessionDirectory() {
+        return UsgStorage.getSessionDirectory(context.sessionStartTime);
     }
 }
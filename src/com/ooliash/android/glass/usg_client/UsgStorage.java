@@ -0,0 +1,97 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.os.Environment;
+
+import com.ooliash.usg.metrics.UsgMetrics;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Locations of the files kept per USG session: Pictures/usg_pictures/&lt;session&gt;/ with saved
+ * pictures, traffic captures and DICOM/ exports, and Pictures/usg_pictures/&lt;session&gt;.metrics
+ * next to it.
+ */
+final class UsgStorage {
+    private static final String SESSIONS_DIRECTORY = "usg_pictures";
+    private static final String SESSION_NAME_FORMAT = "yyyy-MM-dd HH_mm";
+    private static final String CAPTURE_NAME_FORMAT = "'capture' HH_mm_ss'.usgcap'";
+    private static final String CAPTURE_EXTENSION = ".usgcap";
+    private static final String DICOM_DIRECTORY = "DICOM";
+
+    private UsgStorage() {
+    }
+
+    /**
+     * @return Directory with all sessions, created if it doesn't exist.
+     */
+    static File getSessionsRootDirectory() {
+        // Create main pictures folder if it doesn't exist
+        File picturesPublicDirectory =
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        picturesPublicDirectory.mkdirs();
+        // File parent = context.getFilesDir();
+        File sessionsRootDirectory  = new File(picturesPublicDirectory, SESSIONS_DIRECTORY);
+        sessionsRootDirectory.mkdirs();
+        return sessionsRootDirectory;
+    }
+
+    /**
+     * @param sessionStartTime Start time of the session.
+     * @return Directory of the session, created if it doesn't exist.
+     */
+    static File getSessionDirectory(Date sessionStartTime) {
+        File sessionDirectory = new File(getSessionsRootDirectory(), getSessionName(sessionStartTime));
+        sessionDirectory.mkdirs();
+        return sessionDirectory;
+    }
+
+    /**
+     * @param sessionStartTime Start time of the session.
+     * @return File for the session {@link UsgMetrics}, next to the session directory.
+     */
+    static File getSessionMetricsFile(Date sessionStartTime) {
+        return new File(getSessionsRootDirectory(),
+                getSessionName(sessionStartTime) + UsgMetrics.FILE_EXTENSION);
+    }
+
+    /**
+     * @param sessionStartTime Start time of the session.
+     * @return New file in the session directory for a traffic capture starting now.
+     */
+    static File getCaptureFile(Date sessionStartTime) {
+        return new File(getSessionDirectory(sessionStartTime),
+                new SimpleDateFormat(CAPTURE_NAME_FORMAT).format(new Date()));
+    }
+
+    /**
+     * @param sessionDirectory Directory of the session.
+     * @return Traffic captures of the session.
+     */
+    static File[] getCaptureFiles(File sessionDirectory) {
+        File[] captures = sessionDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.endsWith(CAPTURE_EXTENSION);
+            }
+        });
+        return captures != null ? captures : new File[0];
+    }
+
+    /**
+     * @param sessionDirectory Directory of the session.
+     * @return Directory in the session directory for DICOM files exported from the session,
+     * created if it doesn't exist.
+     */
+    static File getDicomDirectory(File sessionDirectory) {
+        File dicomDirectory = new File(sessionDirectory, DICOM_DIRECTORY);
+        dicomDirectory.mkdirs();
+        return dicomDirectory;
+    }
+
+    private static String getSessionName(Date sessionStartTime) {
+        return new SimpleDateFormat(SESSION_NAME_FORMAT).format(sessionStartTime);
+    }
+}
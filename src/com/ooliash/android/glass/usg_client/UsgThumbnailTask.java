@@ -0,0 +1,113 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps its own connection to one USG server and pulls a subsampled picture from it once per
+ * {@link #THUMBNAIL_INTERVAL}. The live connection can be handed over to a session with
+ * {@link #handOver()}.
+ *
+ * The protocol has no request for a smaller picture, so only decoding is subsampled: a changed
+ * picture is transferred at full size, as in a session, just at a low rate. Pictures are asked
+ * for conditionally, so an idle or frozen probe costs a {@link Command#NOT_MODIFIED} reply.
+ */
+class UsgThumbnailTask extends AsyncTask<Void, Bitmap, Void> {
+    // Constants.
+    private static final String LOG_TAG = "USG";
+    private static final int THUMBNAIL_INTERVAL = 1000;
+    private static final int THUMBNAIL_SAMPLE_SIZE = 4;
+
+    /**
+     * Every thumbnail task blocks on its own server, so they can't share the serial executor.
+     */
+    private static final Executor EXECUTOR = Executors.newCachedThreadPool();
+
+    private final InetAddress serverAddress;
+    private final WindowsSocketCommunication communication;
+    private final WeakReference<UsgServerPickerActivity> contextWR;
+    private boolean handedOver;
+    private boolean offered;
+    private boolean conditionalQuerySupported = true;
+
+    UsgThumbnailTask(UsgServerPickerActivity context, InetAddress serverAddress) {
+        this.contextWR = new WeakReference<UsgServerPickerActivity>(context);
+        this.serverAddress = serverAddress;
+        this.communication = new WindowsSocketCommunication(serverAddress);
+    }
+
+    void start() {
+        executeOnExecutor(EXECUTOR);
+    }
+
+    /**
+     * Stops pulling thumbnails and leaves the connection in {@link ConnectionHandoff}.
+     * Waits for the request in flight, if any.
+     */
+    void handOver() {
+        synchronized (communication) {
+            handedOver = true;
+            cancel(false);
+            if (communication.isConnected()) {
+                ConnectionHandoff.offer(communication);
+                offered = true;
+            }
+        }
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        communication.connectToUsgServer();
+        try {
+            while (!isCancelled()) {
+                synchronized (communication) {
+                    if (handedOver || !communication.isConnected()) {
+                        break;
+                    }
+                    boolean conditional = conditionalQuerySupported
+                            && communication.getLastPictureBytesLength() > 0;
+                    if (conditional) {
+                        communication.SendConditionalPictureRequest();
+                    } else {
+                        communication.SendString(Command.GET_PICTURE);
+                    }
+                    try {
+                        publishProgress(communication.ReceiveBitmap(THUMBNAIL_SAMPLE_SIZE));
+                    } catch (UsgCommandExecutionException e) {
+                        if (!conditional) {
+                            throw e;
+                        }
+                        conditionalQuerySupported = false;  // Plain requests from now on.
+                    }
+                }
+                Thread.sleep(THUMBNAIL_INTERVAL);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Thumbnail from " + serverAddress.getHostAddress() + ": " + e);
+        } catch (InterruptedException e) {
+            // Cancelled.
+        } finally {
+            synchronized (communication) {
+                if (!offered) {
+                    communication.disconnectFromUsgServer();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(Bitmap... thumbnails) {
+        UsgServerPickerActivity context = contextWR.get();
+        if (context != null && thumbnails[0] != null) {
+            context.showThumbnail(serverAddress, thumbnails[0]);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.ooliash.android.glass.usg_client;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide, preallocated ring buffer of trace events replacing log calls on hot paths.
+ *
+ * Recording an event stores its code, an integer argument and a {@link System#nanoTime()}
+ * timestamp without allocating. Events above the current level return after a single comparison,
+ * and each event can be sampled so only every n-th occurrence is stored. The buffer can be dumped
+ * to a CSV file on demand for offline analysis. Level and sampling are set from the session menu.
+ */
+final class UsgTrace {
+    // Levels.
+    static final int LEVEL_OFF = 0;
+    static final int LEVEL_INFO = 1;
+    static final int LEVEL_DEBUG = 2;
+
+    // Event codes, indexes to the tables below.
+    static final int CONNECTED = 0;         // arg: -
+    static final int CONNECTION_LOST = 1;   // arg: code of the command which timed out
+    static final int COMMAND_SENT = 2;      // arg: command code
+    static final int REPLY_RECEIVED = 3;    // arg: command code
+    static final int PICTURE_RECEIVED = 4;  // arg: picture size in bytes
+    static final int COMMAND_ERROR = 5;     // arg: command code
+    static final int BROADCAST_SENT = 6;    // arg: -
+    static final int BROADCAST_RESPONSE = 7;    // arg: 1 if USG server ACK, 0 otherwise
+
+    private static final String[] EVENT_NAMES = {
+            "CONNECTED", "CONNECTION_LOST", "COMMAND_SENT", "REPLY_RECEIVED", "PICTURE_RECEIVED",
+            "COMMAND_ERROR", "BROADCAST_SENT", "BROADCAST_RESPONSE"
+    };
+    private static final int[] EVENT_LEVELS = {
+            LEVEL_INFO, LEVEL_INFO, LEVEL_DEBUG, LEVEL_DEBUG, LEVEL_DEBUG,
+            LEVEL_INFO, LEVEL_DEBUG, LEVEL_DEBUG
+    };
+
+    private static final int CAPACITY = 8192;   // Power of 2.
+    private static final int MASK = CAPACITY - 1;
+
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final int[] events = new int[CAPACITY];
+    private static final long[] args = new long[CAPACITY];
+    private static final AtomicLong recorded = new AtomicLong();
+
+    private static final int[] samplingIntervals = new int[EVENT_NAMES.length];
+    private static final int[] occurrences = new int[EVENT_NAMES.length];
+    private static volatile int level = BuildConfig.DEBUG ? LEVEL_DEBUG : LEVEL_INFO;
+
+    /** Command codes used as event arguments. */
+    private static final Map<String, Integer> commandCodes =
+            new ConcurrentHashMap<String, Integer>();
+    private static final Map<Integer, String> commandNames =
+            new ConcurrentHashMap<Integer, String>();
+
+    static {
+        for (int i = 0; i < samplingIntervals.length; i++) {
+            samplingIntervals[i] = 1;
+        }
+    }
+
+    private UsgTrace() {
+    }
+
+    /**
+     * Records event if its level is enabled and it's picked by sampling. Doesn't allocate.
+     * @param event Event code.
+     * @param arg Event argument, see event code description.
+     */
+    static void record(int event, long arg) {
+        if (EVENT_LEVELS[event] > level) {
+            return;
+        }
+        int interval = samplingIntervals[event];
+        if (interval > 1 && ++occurrences[event] % interval != 0) {
+            return;
+        }
+        int slot = (int) (recorded.getAndIncrement() & MASK);
+        events[slot] = event;
+        args[slot] = arg;
+        timestamps[slot] = System.nanoTime();
+    }
+
+    /**
+     * Sets the level of the events recorded, {@link BuildConfig#DEBUG} builds start at
+     * {@link #LEVEL_DEBUG}, others at {@link #LEVEL_INFO}.
+     */
+    static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Records only every n-th occurrence of the event.
+     */
+    static void setSampling(int event, int interval) {
+        samplingIntervals[event] = Math.max(1, interval);
+    }
+
+    /**
+     * @param command One of {@link Command} strings.
+     * @return Integer code of the command usable as an event argument.
+     */
+    static int commandCode(String command) {
+        Integer code = commandCodes.get(command);
+        if (code != null) {
+            return code;
+        }
+        synchronized (commandCodes) {
+            code = commandCodes.get(command);
+            if (code == null) {
+                code = commandCodes.size();
+                commandNames.put(code, command);
+                commandCodes.put(command, code);
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Writes recorded events, oldest first, as "timestamp_ns,event,arg" lines. Events recorded
+     * meanwhile may be torn, it's meant to be called when things went wrong, not continuously.
+     * @param file Output file.
+     * @throws IOException
+     */
+    static void dump(File file) throws IOException {
+        long end = recorded.get();
+        long start = Math.max(0, end - CAPACITY);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write("timestamp_ns,event,arg\n");
+            for (long i = start; i < end; i++) {
+                int slot = (int) (i & MASK);
+                int event = events[slot];
+                writer.write(timestamps[slot] + "," + EVENT_NAMES[event] + ","
+                        + formatArg(event, args[slot]) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String formatArg(int event, long arg) {
+        if (event == COMMAND_SENT || event == REPLY_RECEIVED || event == COMMAND_ERROR
+                || event == CONNECTION_LOST) {
+            String command = commandNames.get((int) arg);
+            if (command != null) {
+                return command;
+            }
+        }
+        return Long.toString(arg);
+    }
+}
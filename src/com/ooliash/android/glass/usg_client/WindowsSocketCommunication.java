@@ -2,72 +2,239 @@ package com.ooliash.android.glass.usg_client;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.StrictMode;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.util.Log;
 
+import com.ooliash.usg.protocol.CaptureWriter;
+import com.ooliash.usg.protocol.FrameDecoder;
+import com.ooliash.usg.protocol.FrameFormat;
+import com.ooliash.usg.protocol.PinnedTls;
+import com.ooliash.usg.protocol.PictureFormat;
+import com.ooliash.usg.protocol.PictureReceiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 public class WindowsSocketCommunication {
     // Constants.
     private static final String LOG_TAG = "USG";
     private static final int PORT_NUMBER = 9050;
-    private static final int BROADCAST_PORT_NUMBER = 9049;
+    private static final int TLS_PORT_NUMBER = 9443;
+    // Connects, and replies while the server can't be sent heartbeats.
     private static final int SOCKET_TIMEOUT = 4000;
-    private static final int PICTURE_BUFFER_SIZE = 128*1024;
-    private static final int STRING_BUFFER_SIZE = 512;
+    // Failed connections are retried after a delay doubling up to the maximum, so a server
+    // refusing them isn't hammered, and given up on after a few attempts.
+    private static final int MIN_CONNECT_BACKOFF = UsgServerDiscovery.BROADCAST_INTERVAL;
+    private static final int MAX_CONNECT_BACKOFF = 8000;
+    private static final int MAX_CONNECT_ATTEMPTS = 5;
+    // Reads wake up this often to check on the reply.
+    private static final int READ_TIMEOUT = 100;
+    // No reply for this long, the server is sent a heartbeat over the spare connection.
+    private static final int HEARTBEAT_INTERVAL = 300;
+    // A reply under way without a byte for this long, the spare connection is made ready.
+    private static final int STALL_TIMEOUT = 400;
+    // A heartbeat unanswered, or a reply under way without a byte, for this long, the link is
+    // taken for dead.
+    private static final int DEAD_LINK_TIMEOUT = 900;
+    private static final int HEARTBEAT_REPLY_SIZE = 4*1024;    // Error messages included.
+    private static final byte[] HEARTBEAT_FRAME = FrameFormat.encode(Command.PING.getBytes());
+    static final int PICTURE_BUFFER_SIZE = 128*1024;   // Longest reply, also in captures.
+    private static final int RECEIVE_BUFFER_SIZE = 2 * PICTURE_BUFFER_SIZE;
+    private static final int SEND_BUFFER_SIZE = 8*1024;
+    private static final int MAX_ENCODED_COMMANDS = 64;
+    private static final int SAVED_JPEG_QUALITY = 95;
+    private static final int HANDSHAKE_NANOS = 0;
+    private static final int HANDSHAKE_RESUMED = 1;
+    private static final int HANDSHAKE_LENGTH = 2;
 
-    // Data transfer variables.
-    private static byte[] intBuffer = new byte[4];
-    private static byte[] pictureDataBuffer = new byte[PICTURE_BUFFER_SIZE];
-    private static byte[] stringDataBuffer = new byte[STRING_BUFFER_SIZE];
+    /** Frames of the commands sent so far, the set of {@link Command}s is small and fixed. */
+    private static final Map<String, byte[]> encodedCommands =
+            new ConcurrentHashMap<String, byte[]>();
+
+    // Data transfer variables (per connection, so several servers can be used at once).
+    /** Receive window; bulk reads go straight into it, replies are parsed in place. */
+    private final FrameDecoder frameDecoder = new FrameDecoder(PICTURE_BUFFER_SIZE);
+    private final Rect decodedRegion = new Rect();
+    /** Zoomed regions are filtered in place, see {@link UsgPictureFilters#apply}. */
+    private final BitmapFactory.Options regionOptions = new BitmapFactory.Options();
     private Socket socket;
 
     // Other variables.
+    private final InetAddress fixedServerAddress;   // null if any discovered server will do
     private InetAddress serverAddress;   // "192.168.1.100"
     private InputStream inputStream;
     private OutputStream outputStream;
-    private int lastPictureBytesLength = 0;
+    private long lastReplyStartNanos;
+    private long lastDecodeNanos;
+    private long lastConnectNanos;
+    private int connectFailures;    // In a row, across connectToUsgServer calls.
+    /** TLS handshake of the connection: time in nanoseconds, 0 in plaintext, and resumed flag. */
+    private final long[] handshake = new long[HANDSHAKE_LENGTH];
+
+    // Repeated pictures, recognized by the server or by their hash, aren't decoded again.
+    private final PictureReceiver pictureReceiver = new PictureReceiver(PICTURE_BUFFER_SIZE);
+    private volatile BitmapPool bitmapPool;
+    private final PictureDecoder bitmapFactoryDecoder = new BitmapFactoryDecoder();
+    private PictureDecoder raw8Decoder;
+    private PictureDecoder pictureDecoder = bitmapFactoryDecoder;
+    private volatile String pictureFormat = PictureFormat.JPEG;
+    private volatile String lastPictureFormat = PictureFormat.JPEG;   // Of the buffered picture.
+    private long lastTransferNanos;
+    private byte[] lastStringBytes = new byte[64];
+    private int lastStringLength = -1;
+    private String lastString;
+    private Bitmap lastBitmap;
+    private Object lastDecodeKey;               // Sample size or zoom region of lastBitmap.
+    private boolean lastPictureUnchanged;
+    private boolean lastPictureRepeated;
+    private int lastReplyLength;
+    private int readCount;
+    private volatile CaptureWriter pendingCapture;  // Starts with the next command.
+    private volatile CaptureWriter capture;
+    private final Object spareLock = new Object();
+    private Thread heartbeatSender;     // Guarded by spareLock, like the fields below.
+    private Socket spareSocket;         // Up, and answered the last heartbeat.
+    private final long[] spareHandshake = new long[HANDSHAKE_LENGTH];
+    private long heartbeatWaitNanos;    // Start of the reply wait the last heartbeat was for.
+    private long heartbeatSentNanos;
+    private long heartbeatAnsweredNanos;
+    private boolean heartbeatFailed;
+    private boolean spareUnavailable;   // The last heartbeat couldn't connect.
 
     /**
-     * Connects to USG server. Restarts connection if it's already connected.
-     * @throws IOException
+     * Creates communication with the first USG server responding to the discovery broadcast.
+     */
+    WindowsSocketCommunication() {
+        this(null);
+    }
+
+    /**
+     * Creates communication with the given USG server.
+     * @param serverAddress Address of the server, e.g. picked from
+     *                      {@link UsgServerDiscovery#findAllServers}.
+     */
+    WindowsSocketCommunication(InetAddress serverAddress) {
+        this.fixedServerAddress = serverAddress;
+        regionOptions.inMutable = true;
+    }
+
+    /**
+     * Connects to USG server. Restarts connection if it's already connected. The spare
+     * connection is taken over if it answered a heartbeat lately, and a server found before
+     * is tried again before discovering one. Failed attempts are retried with growing delays and
+     * given up on after {@link #MAX_CONNECT_ATTEMPTS}, {@link #isConnected()} tells if it worked.
      */
     void connectToUsgServer() {
+        long startNanos = System.nanoTime();
+        Socket spare = takeSpareSocket();
         if (isConnected()) {
             Log.e(LOG_TAG, "I'm already connected to USG. Disconnecting...");
             disconnectFromUsgServer();
         }
+        if (spare != null) {
+            Log.d(LOG_TAG, "Switching to the spare connection");
+            useSocket(spare);
+            lastConnectNanos = System.nanoTime() - startNanos;
+            return;
+        }
 
-        boolean done = false;
-        do {
-            findUsgServerAddress();
+        InetAddress lastServerAddress = fixedServerAddress == null ? serverAddress : null;
+        int attempts = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            boolean remembered = false;
+            if (fixedServerAddress != null) {
+                serverAddress = fixedServerAddress;
+            } else if (lastServerAddress != null) {
+                // Usually the same server after a link blip, no need to wait for discovery.
+                serverAddress = lastServerAddress;
+                lastServerAddress = null;
+                remembered = true;
+            } else {
+                findUsgServerAddress();
+            }
+            if (serverAddress == null) {
+                return;     // interrupted
+            }
 
             Log.d(LOG_TAG, "creating Socket");
             try {
-                socket = new Socket();
-                socket.setSoTimeout(SOCKET_TIMEOUT);
-                socket.connect(new InetSocketAddress(serverAddress, PORT_NUMBER), SOCKET_TIMEOUT);
-
-                inputStream = socket.getInputStream();
-                outputStream = socket.getOutputStream();
-                done = true;
+                useSocket(openSocket(serverAddress, handshake));
+                connectFailures = 0;
+                break;
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.w(LOG_TAG, "Couldn't connect to " + serverAddress.getHostAddress() + ": "
+                        + e.getMessage());
+            }
+            if (remembered) {
+                continue;   // Gone or moved, discover it right away.
+            }
+            connectFailures++;
+            if (++attempts >= MAX_CONNECT_ATTEMPTS) {
+                Log.e(LOG_TAG, "Couldn't connect to USG server, " + attempts + " attempts");
+                break;
+            }
+            try {
+                Thread.sleep(Math.min(MAX_CONNECT_BACKOFF,
+                        MIN_CONNECT_BACKOFF << Math.min(connectFailures - 1, 8)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } while (!done);
+        }
+        lastConnectNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return True if the connection is over TLS.
+     */
+    boolean isSecure() {
+        return socket instanceof SSLSocket;
+    }
+
+    /**
+     * @return Duration of the TLS handshake of the connection, 0 if it's in plaintext.
+     */
+    long getLastHandshakeNanos() {
+        return handshake[HANDSHAKE_NANOS];
+    }
+
+    /**
+     * @return True if the TLS handshake of the connection resumed an earlier session.
+     */
+    boolean isLastHandshakeResumed() {
+        return handshake[HANDSHAKE_RESUMED] != 0;
+    }
+
+    /**
+     * @return Local address of the connection or null if not connected.
+     */
+    InetAddress getLocalAddress() {
+        Socket currentSocket = socket;
+        return currentSocket != null ? currentSocket.getLocalAddress() : null;
+    }
+
+    /**
+     * @return Address of the server this communication is (or was last) connected to.
+     */
+    InetAddress getServerAddress() {
+        return serverAddress;
     }
 
     /**
@@ -83,11 +250,17 @@ public class WindowsSocketCommunication {
      * Nullifies all of them.
      */
     void disconnectFromUsgServer() {
+        discardSpareSocket();
         inputStream = null;
         outputStream = null;
+        if (socket == null) {
+            return;
+        }
         try {
-            socket.shutdownInput();
-            socket.shutdownOutput();
+            if (!(socket instanceof SSLSocket)) {     // TLS sockets can't be half closed.
+                socket.shutdownInput();
+                socket.shutdownOutput();
+            }
             socket.close();
             socket = null;
         } catch (IOException e) {
@@ -96,26 +269,65 @@ public class WindowsSocketCommunication {
     }
 
     /**
-     * Sends String through the {@link #outputStream}.
-     * @param text String to send.
+     * Captures the raw byte stream from the next command on, so the capture starts at a frame
+     * boundary.
+     * @param newCapture Capture to write to, null to stop capturing. The caller closes it.
+     */
+    void setCapture(CaptureWriter newCapture) {
+        if (newCapture == null) {
+            pendingCapture = null;
+            capture = null;
+        } else {
+            pendingCapture = newCapture;
+        }
+    }
+
+    /**
+     * Sends String through the {@link #outputStream} as a single write of the whole frame.
+     * @param text String to send, usually one of {@link Command}s, their frames are cached.
      * @throws IOException
      */
     void SendString(String text) throws IOException {
-        byte[] bytesToSend = text.getBytes();
-//        networkIndicateDataPush();
-        outputStream.write(IntToByteArray(bytesToSend.length));
-        outputStream.write(bytesToSend);
-//        networkIndicateNoDataTransfer();
+        byte[] frame = encodedCommands.get(text);
+        if (frame == null) {
+            frame = FrameFormat.encode(text.getBytes());
+            if (encodedCommands.size() < MAX_ENCODED_COMMANDS) {
+                encodedCommands.put(text, frame);
+            }
+        }
+        send(frame);
+    }
+
+    /**
+     * Sends {@link Command#GET_PICTURE} with the ID of the last picture received, so the server
+     * can reply {@link Command#NOT_MODIFIED} if it didn't change. A picture must have been
+     * received already.
+     * @throws IOException
+     */
+    void SendConditionalPictureRequest() throws IOException {
+        // Not cached with the other commands, there's a new one for every picture.
+        send(pictureReceiver.conditionalRequest(), pictureReceiver.conditionalRequestLength());
     }
 
     /**
      * Receives String from the {@link #inputStream}.
-     * @return The string received.
+     * @return The string received, the same instance as the last time if the reply repeats.
      * @throws IOException
      */
     String ReceiveString() throws IOException {
-        int length = ReceiveByteArray(stringDataBuffer);
-        return new String(stringDataBuffer, 0, length);
+        ReceiveFrame();
+        byte[] window = frameDecoder.window();
+        int offset = frameDecoder.frameOffset();
+        int length = frameDecoder.frameLength();
+        if (length == lastStringLength && regionEquals(window, offset, lastStringBytes, length)) {
+            return lastString;
+        }
+        if (length > lastStringBytes.length) {
+            lastStringBytes = new byte[length];
+        }
+        System.arraycopy(window, offset, lastStringBytes, 0, length);
+        lastStringLength = length;
+        return lastString = new String(window, offset, length);
     }
 
     /**
@@ -124,9 +336,93 @@ public class WindowsSocketCommunication {
      * @throws IOException
      */
     Bitmap ReceiveBitmap() throws IOException {
-        lastPictureBytesLength = ReceiveByteArray(pictureDataBuffer);
+        if (!ReceivePicture(1)) {
+            return lastBitmap;
+        }
 //        Log.d(LOG_TAG, "Received " + length + " bytes.");
-        return BitmapFactory.decodeByteArray(pictureDataBuffer, 0, lastPictureBytesLength);
+        return decode(1);
+    }
+
+    /**
+     * Receives Bitmap from the {@link #inputStream} decoding it at reduced resolution.
+     * @param sampleSize Subsampling factor, e.g. 4 decodes every 4th pixel in each dimension.
+     * @return The Bitmap received.
+     * @throws IOException
+     */
+    Bitmap ReceiveBitmap(int sampleSize) throws IOException {
+        if (!ReceivePicture(sampleSize)) {
+            return lastBitmap;
+        }
+        return decode(sampleSize);
+    }
+
+    /**
+     * Receives Bitmap from the {@link #inputStream} decoding only the zoomed region of it.
+     * @param zoomRegion Region to decode.
+     * @return The region of the Bitmap received.
+     * @throws IOException
+     */
+    Bitmap ReceiveBitmap(ZoomRegion zoomRegion) throws IOException {
+        if (!ReceivePicture(zoomRegion.getRoiCommand())) {    // Same instance for same region.
+            return lastBitmap;
+        }
+        long decodeStart = System.nanoTime();
+        Bitmap bitmap;
+        try {
+            BitmapRegionDecoder regionDecoder = BitmapRegionDecoder.newInstance(
+                    pictureReceiver.picture(), 0, pictureReceiver.pictureLength(), false);
+            try {
+                zoomRegion.getRegion(
+                        regionDecoder.getWidth(), regionDecoder.getHeight(), decodedRegion);
+                bitmap = regionDecoder.decodeRegion(decodedRegion, regionOptions);
+                if (bitmap != null && !bitmap.isMutable()) {
+                    // Region decoders of older platforms ignore inMutable.
+                    Bitmap mutable = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                    if (mutable != null) {
+                        bitmap.recycle();
+                        bitmap = mutable;
+                    }
+                }
+            } finally {
+                regionDecoder.recycle();
+            }
+        } catch (IOException e) {
+            // Format without region decoding support, show it whole.
+            bitmap = pictureDecoder.decode(
+                    pictureReceiver.picture(), pictureReceiver.pictureLength(), 1, null);
+        }
+        lastDecodeNanos = System.nanoTime() - decodeStart;
+        return lastBitmap = bitmap;
+    }
+
+    /**
+     * Sets format the server was switched to, which the following pictures are decoded as.
+     * @param format One of the {@link PictureFormat} constants.
+     */
+    void setPictureFormat(String format) {
+        if (format == PictureFormat.RAW8_LZ4) {
+            if (raw8Decoder == null) {
+                raw8Decoder = new Raw8PictureDecoder();
+            }
+            pictureDecoder = raw8Decoder;
+        } else {
+            pictureDecoder = bitmapFactoryDecoder;
+        }
+        pictureFormat = format;
+    }
+
+    /**
+     * @return Format of the pictures, {@link PictureFormat#JPEG} on every new connection.
+     */
+    String getPictureFormat() {
+        return pictureFormat;
+    }
+
+    /**
+     * Sets pool of pictures no longer shown, which are decoded into instead of new ones.
+     */
+    void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
     }
 
     /*
@@ -134,49 +430,248 @@ public class WindowsSocketCommunication {
      */
 
     /**
-     * Broadcasts "Looking for USG server".
+     * Decodes the last picture into a pooled Bitmap, if there is one big enough.
      */
-    private void sendBroadcast() {
-        // Hack Prevent crash (sending should be done using an async task)
-        StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitAll().build();
-        StrictMode.setThreadPolicy(policy);
+    private Bitmap decode(int sampleSize) {
+        long decodeStart = System.nanoTime();
+        BitmapPool pool = bitmapPool;
+        Bitmap bitmap = pictureDecoder.decode(pictureReceiver.picture(),
+                pictureReceiver.pictureLength(), sampleSize, pool != null ? pool.acquire() : null);
+        lastDecodeNanos = System.nanoTime() - decodeStart;
+        return lastBitmap = bitmap;
+    }
 
+    /**
+     * Opens a connection to the server, set up for request/reply traffic, on the port it
+     * announced if it did. It's over TLS whenever that's configured, whatever the server
+     * announced, see {@link TransportSecurity}.
+     * @param handshakeResult Receives the TLS handshake time and whether it was resumed.
+     * @throws IOException Also if TLS is configured but couldn't be set up.
+     */
+    private static Socket openSocket(InetAddress address, long[] handshakeResult)
+            throws IOException {
+        ServerAnnouncement announcement = UsgServerDiscovery.getAnnouncement(address);
+        SSLContext tlsContext = TransportSecurity.getContext();
+        boolean tls = TransportSecurity.isRequired();
+        if (tls && tlsContext == null) {
+            throw new IOException("TLS required, but its configuration is broken");
+        }
+        int port;
+        if (tls) {
+            port = announcement != null && announcement.getTlsPort() > 0
+                    ? announcement.getTlsPort() : TLS_PORT_NUMBER;
+        } else {
+            port = announcement != null && announcement.getPort() > 0
+                    ? announcement.getPort() : PORT_NUMBER;
+        }
+        handshakeResult[HANDSHAKE_NANOS] = 0;
+        handshakeResult[HANDSHAKE_RESUMED] = 0;
+        Socket newSocket = new Socket();
         try {
-            //Open a random port to send the package
-            DatagramSocket socket = new DatagramSocket();
-            socket.setBroadcast(true);
-            socket.setSoTimeout(SOCKET_TIMEOUT);
-            byte[] sendData = "LF_PJATK_USG_SERVER".getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(
-                    sendData,
-                    sendData.length,
-                    InetAddress.getByName("255.255.255.255"),
-                    BROADCAST_PORT_NUMBER);
-
-            String messageStr = null;
-            byte[] recvBuf = new byte[100];
-            DatagramPacket receivedPacket = new DatagramPacket(recvBuf, recvBuf.length);
-            do {
-                socket.send(sendPacket);
-                Log.d(LOG_TAG, "Broadcast packet sent to: 255.255.255.255");
-
-                //Wait for a response
-                try {
-                    socket.receive(receivedPacket);
-                } catch (InterruptedIOException ex) {
-                    Log.d(LOG_TAG, "No broadcast response...");
-                    continue;
+            newSocket.setSoTimeout(READ_TIMEOUT);
+            // Commands are tiny request/response messages, don't let Nagle hold them back
+            // waiting for the delayed ACK of the previous reply.
+            newSocket.setTcpNoDelay(true);
+            // Before connecting, so the TCP window scale covers a whole picture in flight.
+            newSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            newSocket.setSendBufferSize(SEND_BUFFER_SIZE);
+            newSocket.connect(new InetSocketAddress(address, port), SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        if (!tls) {
+            return newSocket;
+        }
+        newSocket.setSoTimeout(SOCKET_TIMEOUT);     // Handshake messages come at their own pace.
+        long startNanos = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        SSLSocket secureSocket = PinnedTls.startClient(
+                tlsContext, newSocket, address.getHostAddress(), port);
+        handshakeResult[HANDSHAKE_NANOS] = System.nanoTime() - startNanos;
+        handshakeResult[HANDSHAKE_RESUMED] =
+                PinnedTls.isResumed(secureSocket.getSession(), startMillis) ? 1 : 0;
+        secureSocket.setSoTimeout(READ_TIMEOUT);
+        return secureSocket;
+    }
+
+    private void useSocket(Socket newSocket) {
+        socket = newSocket;
+        try {
+            newSocket.setSoTimeout(READ_TIMEOUT);   // The spare waited for heartbeats longer.
+            inputStream = newSocket.getInputStream();
+            outputStream = newSocket.getOutputStream();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        frameDecoder.reset();
+        setPictureFormat(PictureFormat.JPEG);  // Formats are negotiated per connection.
+    }
+
+    /**
+     * Checks on the server while no reply to the command has come yet, sending it heartbeats
+     * over the spare connection. The reply may be held, e.g. a picture poll by a relay until
+     * it has a new picture, or slow to make, so by itself it tells nothing of the link.
+     * @param waitStartNanos When the reply started to be waited for.
+     * @return Why the link is taken for dead, null as long as it isn't.
+     */
+    private String checkServer(long waitStartNanos) {
+        long nowNanos = System.nanoTime();
+        synchronized (spareLock) {
+            long lastAliveNanos = waitStartNanos;
+            if (heartbeatWaitNanos == waitStartNanos) {
+                if (heartbeatSender != null) {
+                    long unansweredMillis = (nowNanos - heartbeatSentNanos) / 1000000;
+                    return unansweredMillis >= DEAD_LINK_TIMEOUT
+                            ? "Heartbeat unanswered for " + unansweredMillis + " ms" : null;
                 }
-                messageStr = new String(receivedPacket.getData()).trim();
-                Log.d(LOG_TAG,
-                        "Received response from " + receivedPacket.getAddress().getHostAddress()
-                                + ": " + messageStr);
-            } while (messageStr == null || !messageStr.equals("PJATK_USG_SERVER_ACK"));
+                if (heartbeatFailed) {
+                    return "Heartbeat failed";
+                }
+                if (spareUnavailable) {
+                    // E.g. the server takes a single connection, give the reply long.
+                    long silentMillis = (nowNanos - waitStartNanos) / 1000000;
+                    return silentMillis >= SOCKET_TIMEOUT
+                            ? "Nothing received for " + silentMillis + " ms" : null;
+                }
+                lastAliveNanos = heartbeatAnsweredNanos;
+            }
+            if ((nowNanos - lastAliveNanos) / 1000000 >= HEARTBEAT_INTERVAL) {
+                startHeartbeat(waitStartNanos);
+            }
+        }
+        return null;
+    }
 
-            serverAddress = receivedPacket.getAddress();
-            socket.close();
+    /**
+     * Sends the server a heartbeat from another thread, over the spare connection, connecting
+     * it first if there's none, unless a heartbeat is under way already. The spare connection
+     * is left open for the next heartbeats and to be taken over on reconnect.
+     * @param waitStartNanos Start of the reply wait the heartbeat is for.
+     */
+    private void startHeartbeat(long waitStartNanos) {
+        final InetAddress address = serverAddress;
+        synchronized (spareLock) {
+            if (heartbeatSender != null || address == null) {
+                return;
+            }
+            final Socket spare = spareSocket;
+            spareSocket = null;     // The sender's until it's answered.
+            heartbeatWaitNanos = waitStartNanos;
+            heartbeatSentNanos = System.nanoTime();
+            heartbeatFailed = false;
+            spareUnavailable = false;
+            heartbeatSender = new Thread("USG heartbeat") {
+                @Override
+                public void run() {
+                    Socket connection = spare;
+                    long[] spareResult = null;
+                    boolean answered = false;
+                    try {
+                        if (connection == null) {
+                            spareResult = new long[HANDSHAKE_LENGTH];
+                            connection = openSocket(address, spareResult);
+                        }
+                        exchangeHeartbeat(connection);
+                        answered = true;
+                    } catch (IOException e) {
+                        Log.d(LOG_TAG, "Heartbeat failed: " + e.getMessage());
+                    }
+                    synchronized (spareLock) {
+                        if (heartbeatSender == this) {
+                            heartbeatSender = null;
+                            if (answered) {
+                                heartbeatAnsweredNanos = System.nanoTime();
+                                spareSocket = connection;
+                                if (spareResult != null) {
+                                    System.arraycopy(spareResult, 0, spareHandshake, 0,
+                                            HANDSHAKE_LENGTH);
+                                }
+                                return;
+                            }
+                            heartbeatFailed = connection != null;
+                            spareUnavailable = connection == null;
+                        }
+                    }
+                    closeQuietly(connection);   // Failed or no longer needed.
+                }
+            };
+            heartbeatSender.start();
+        }
+    }
+
+    /**
+     * Sends {@link Command#PING} over the connection and waits for the reply. Any reply will
+     * do, servers not knowing the command reply with an error.
+     * @throws IOException If there's no reply within {@link #DEAD_LINK_TIMEOUT}.
+     */
+    private void exchangeHeartbeat(Socket connection) throws IOException {
+        connection.setSoTimeout(DEAD_LINK_TIMEOUT);
+        connection.getOutputStream().write(HEARTBEAT_FRAME);
+        InputStream input = connection.getInputStream();
+        // Its own, a sender given up on may still be reading.
+        FrameDecoder decoder = new FrameDecoder(HEARTBEAT_REPLY_SIZE);
+        while (!decoder.next()) {
+            int count = input.read(decoder.window(), decoder.fillOffset(), decoder.fillCapacity());
+            if (count < 0) {
+                throw new EOFException("Connection closed by USG server");
+            }
+            decoder.filled(count);
+        }
+    }
+
+    /**
+     * @return Spare connection if it answered a heartbeat lately, waiting for the one under way,
+     * otherwise null.
+     */
+    private Socket takeSpareSocket() {
+        Thread sender;
+        synchronized (spareLock) {
+            sender = heartbeatSender;
+        }
+        if (sender != null) {
+            try {
+                sender.join(SOCKET_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Socket spare;
+        synchronized (spareLock) {
+            spare = spareSocket;
+            spareSocket = null;
+            heartbeatSender = null;
+            if (spare != null
+                    && (System.nanoTime() - heartbeatAnsweredNanos) / 1000000 < SOCKET_TIMEOUT) {
+                System.arraycopy(spareHandshake, 0, handshake, 0, HANDSHAKE_LENGTH);
+                return spare;
+            }
+        }
+        closeQuietly(spare);    // Idle for long, may have gone with the other one.
+        return null;
+    }
+
+    /**
+     * Lets the spare connection go, and the heartbeat under way, if any.
+     */
+    private void discardSpareSocket() {
+        Socket spare;
+        synchronized (spareLock) {
+            spare = spareSocket;
+            spareSocket = null;
+            heartbeatSender = null;
+        }
+        closeQuietly(spare);
+    }
+
+    private static void closeQuietly(Socket closedSocket) {
+        if (closedSocket == null) {
+            return;
+        }
+        try {
+            closedSocket.close();
         } catch (IOException e) {
-            Log.e(LOG_TAG, "IOException: " + e.getMessage());
+            e.printStackTrace();
         }
     }
 
@@ -184,74 +679,233 @@ public class WindowsSocketCommunication {
      * Finds USG server using UDP broadcast "looking for USG server".
      */
     private void findUsgServerAddress() {
-        serverAddress = null;
-        while (serverAddress == null) {
-            Log.d(LOG_TAG, "Broadcast looking for USG server...");
-            sendBroadcast();
-        }
+        serverAddress = UsgServerDiscovery.findFirstServer();
     }
 
     /**
-     * Receives byte array from the {@link #inputStream}.
-     * @return The byte array received.
+     * Receives picture frame into the {@link #pictureReceiver}, which keeps a copy, so it stays
+     * available for {@link #getLastPictureBytes()} after the receive window is reused.
+     * A {@link Command#NOT_MODIFIED} reply or a picture with the hash of the last one leaves
+     * the last picture in place.
+     * @param decodeKey Sample size or zoom region the picture is going to be decoded with.
+     * @return True if the picture has to be decoded, false if {@link #lastBitmap} shows it.
      * @throws IOException
      */
-    private int ReceiveByteArray(byte[] byteArray) throws IOException {
-//        networkIndicateDataPop();
-//        logd("receiving data length...");
-        int length = ReceiveInt();
+    private boolean ReceivePicture(Object decodeKey) throws IOException {
+        ReceiveFrame();
+        lastReplyLength = frameDecoder.frameLength();
+        boolean unchanged = !pictureReceiver.receive(frameDecoder);
+        if (!unchanged) {
+            lastPictureFormat = pictureFormat;
+        }
+        lastPictureRepeated = unchanged;
+        lastPictureUnchanged = unchanged && lastBitmap != null && decodeKey.equals(lastDecodeKey);
+        if (lastPictureUnchanged) {
+            lastDecodeNanos = 0;
+            return false;
+        }
+        lastDecodeKey = decodeKey;
+        return true;
+    }
 
-        if (length == 0) {
-            throw new UsgCommandExecutionException(ReceiveString());
+    private static boolean regionEquals(byte[] buffer, int offset, byte[] other, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != other[i]) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        if (length < 0 || length > PICTURE_BUFFER_SIZE) {
-            Log.e(LOG_TAG, "data length (" + length + ") out of bounds.");
-            throw new IndexOutOfBoundsException("Length: " + length);
+    /**
+     * Writes the frame in one go, starting a pending capture if no reply is outstanding.
+     */
+    private void send(byte[] frame) throws IOException {
+        send(frame, frame.length);
+    }
+
+    private void send(byte[] frame, int length) throws IOException {
+        CaptureWriter newCapture = pendingCapture;
+        if (newCapture != null && frameDecoder.available() == 0) {
+            capture = newCapture;
+            pendingCapture = null;
         }
+//        networkIndicateDataPush();
+        outputStream.write(frame, 0, length);
+        capture(CaptureWriter.DIRECTION_SENT, frame, 0, length);
+//        networkIndicateNoDataTransfer();
+    }
 
-//        Log.d(LOG_TAG, "Receiving " + length + " bytes...");
-        int received = 0;
-        while (received < length) {
-            received += inputStream.read(byteArray, received, length - received);
-//            logd("Received " + received + "/" + length);
+    /**
+     * Receives the next frame into the {@link #frameDecoder}. Reads as much as the socket has
+     * available, so a header and its payload (and often the following frame) take one read.
+     * Until the reply starts, the server is checked on with heartbeats, see
+     * {@link #checkServer}. Once it has started, any byte received counts as progress, so a long
+     * picture transfer doesn't time out as long as it moves.
+     * @throws UsgCommandExecutionException If the server replied with an error.
+     * @throws EOFException If the server closed the connection.
+     * @throws SocketTimeoutException If the link is taken for dead, see
+     * {@link #DEAD_LINK_TIMEOUT}.
+     * @throws IOException
+     */
+    private void ReceiveFrame() throws IOException {
+//        networkIndicateDataPop();
+        long waitStartNanos = System.nanoTime();
+        lastReplyStartNanos = waitStartNanos;   // Correct if the reply is already buffered.
+        boolean replyStarted = frameDecoder.available() > 0;
+        long progressNanos = waitStartNanos;
+        while (!frameDecoder.next()) {
+            int offset = frameDecoder.fillOffset();
+            int count;
+            try {
+                count = inputStream.read(
+                        frameDecoder.window(), offset, frameDecoder.fillCapacity());
+            } catch (SocketTimeoutException e) {
+                if (!replyStarted) {
+                    String deadLink = checkServer(waitStartNanos);
+                    if (deadLink != null) {
+                        throw new SocketTimeoutException(deadLink);
+                    }
+                    continue;
+                }
+                long stalledMillis = (System.nanoTime() - progressNanos) / 1000000;
+                if (stalledMillis >= DEAD_LINK_TIMEOUT) {
+                    throw new SocketTimeoutException("Nothing received for " + stalledMillis
+                            + " ms");
+                }
+                if (stalledMillis >= STALL_TIMEOUT) {
+                    startHeartbeat(waitStartNanos);     // Gets the spare connection ready.
+                }
+                continue;
+            }
+            progressNanos = System.nanoTime();
+            readCount++;
+            if (count < 0) {
+                throw new EOFException("Connection closed by USG server");
+            }
+            capture(CaptureWriter.DIRECTION_RECEIVED, frameDecoder.window(), offset, count);
+            if (!replyStarted && count > 0) {
+                lastReplyStartNanos = System.nanoTime();
+                replyStarted = true;
+            }
+            frameDecoder.filled(count);
         }
 //        networkIndicateNoDataTransfer();
+        lastTransferNanos = System.nanoTime() - lastReplyStartNanos;
 
-        return length;
+        if (frameDecoder.isError()) {
+            throw new UsgCommandExecutionException(new String(frameDecoder.window(),
+                    frameDecoder.frameOffset(), frameDecoder.frameLength()));
+        }
     }
 
     /**
-     * Receives integer from {@link #inputStream}.
-     * @return The integer received.
-     * @throws IOException
+     * Appends the chunk to the {@link #capture}, if any. Stops capturing if it can't be written,
+     * rather than failing the connection.
      */
-    private int ReceiveInt() throws IOException {
-        int count = inputStream.read(intBuffer, 0, 4);
-        if (count != 4) {
-            throw new IOException("Couldn't read 4 bytes [read " + count + "]");
+    private void capture(int direction, byte[] buffer, int offset, int length) {
+        CaptureWriter currentCapture = capture;
+        if (currentCapture == null) {
+            return;
+        }
+        try {
+            currentCapture.record(direction, buffer, offset, length);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Stopped capturing USG traffic: " + e.getMessage());
+            capture = null;
         }
-        return (((intBuffer[3] & 0xFF) << 24)
-                | ((intBuffer[2] & 0xFF) << 16)
-                | ((intBuffer[1] & 0xFF) << 8)
-                | (intBuffer[0] & 0xFF));
     }
 
     /**
-     * Converts integer to byte array so it can be sent through socket to .NET client.
-     * @param inputInt Integer to convert.
-     * @return Byte array containing integer.
+     * @return {@link System#nanoTime()} at which the first bytes of the last reply were received.
+     */
+    long getLastReplyStartNanos() {
+        return lastReplyStartNanos;
+    }
+
+    /**
+     * @return Time from the first to the last byte of the last reply, as long as the link took
+     * to carry it, unless it was buffered before it was asked for.
+     */
+    long getLastTransferNanos() {
+        return lastTransferNanos;
+    }
+
+    /**
+     * @return Time the last {@link #connectToUsgServer()} took, discovery and retries included.
+     */
+    long getLastConnectNanos() {
+        return lastConnectNanos;
+    }
+
+    /**
+     * @return Time the last {@link #ReceiveBitmap} spent decoding.
+     */
+    long getLastDecodeNanos() {
+        return lastDecodeNanos;
+    }
+
+    /**
+     * @return Number of socket reads since the last call, to compare with the number of replies.
      */
-    private byte[] IntToByteArray(int inputInt) {
-        byte[] byteArray = new byte[4];
-        byteArray[0] = (byte)(inputInt & 0xFF);
-        byteArray[1] = (byte)((inputInt >> 8) & 0xFF);
-        byteArray[2] = (byte)((inputInt >> 16) & 0xFF);
-        byteArray[3] = (byte)((inputInt >> 24) & 0xFF);
-        return byteArray;
+    int takeReadCount() {
+        int count = readCount;
+        readCount = 0;
+        return count;
+    }
+
+    /**
+     * @return True if the last {@link #ReceiveBitmap} returned the previous Bitmap, as the
+     * picture didn't change, so it needs no redraw.
+     */
+    boolean isLastPictureUnchanged() {
+        return lastPictureUnchanged;
+    }
+
+    /**
+     * @return True if the last picture received is the same as the one before, whether or not
+     * it had to be decoded again, e.g. for another zoom region.
+     */
+    boolean isLastPictureRepeated() {
+        return lastPictureRepeated;
+    }
+
+    /**
+     * @return Bytes of the last picture reply, less than the picture for
+     * {@link Command#NOT_MODIFIED}.
+     */
+    int getLastReplyLength() {
+        return lastReplyLength;
+    }
+
+    int getLastPictureBytesLength() {
+        return pictureReceiver.pictureLength();
     }
 
     public byte[] getLastPictureBytes() {
-        return Arrays.copyOf(pictureDataBuffer, lastPictureBytesLength);
+        return Arrays.copyOf(pictureReceiver.picture(), pictureReceiver.pictureLength());
+    }
+
+    /**
+     * @return The last picture as JPEG, converted unless the server sent it so, e.g. for saving
+     * it with the others. Null if it couldn't be decoded.
+     */
+    byte[] getLastPictureAsJpeg() {
+        String format = lastPictureFormat;
+        byte[] picture = getLastPictureBytes();
+        if (format == PictureFormat.JPEG) {
+            return picture;
+        }
+        // Own decoder, this isn't the communication thread.
+        PictureDecoder decoder = format == PictureFormat.RAW8_LZ4
+                ? new Raw8PictureDecoder() : new BitmapFactoryDecoder();
+        Bitmap bitmap = decoder.decode(picture, picture.length, 1, null);
+        if (bitmap == null) {
+            return null;
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, SAVED_JPEG_QUALITY, jpeg);
+        bitmap.recycle();
+        return jpeg.toByteArray();
     }
 }
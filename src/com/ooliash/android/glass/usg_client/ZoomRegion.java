@@ -0,0 +1,99 @@
+package com.ooliash.android.glass.usg_client;
+
+import android.graphics.Rect;
+
+/**
+ * Region of the USG picture the user zoomed into: a zoom factor and the region center, both
+ * independent of the picture resolution. The region keeps the picture aspect ratio, so it fills
+ * the screen like the whole picture does.
+ *
+ * Changed from the UI thread, read by the communication thread.
+ */
+final class ZoomRegion {
+    private static final int MAX_ZOOM = 8;
+    private static final float PAN_STEP = 0.5f;     // Of the visible region.
+    private static final int ROI_SCALE = 1000;      // ROI command coordinates are per mille.
+
+    private int zoom = 1;
+    private float centerX = 0.5f;
+    private float centerY = 0.5f;
+    private String roiCommand;      // Cached, rebuilt when the region changes.
+
+    synchronized boolean isZoomed() {
+        return zoom > 1;
+    }
+
+    synchronized int getZoom() {
+        return zoom;
+    }
+
+    synchronized void zoomIn() {
+        if (zoom < MAX_ZOOM) {
+            zoom *= 2;
+            changed();
+        }
+    }
+
+    synchronized void zoomOut() {
+        if (zoom > 1) {
+            zoom /= 2;
+            changed();
+        }
+    }
+
+    synchronized void reset() {
+        zoom = 1;
+        centerX = 0.5f;
+        centerY = 0.5f;
+        changed();
+    }
+
+    /**
+     * Moves the region by half of its size in the given direction.
+     * @param dx -1 left, 1 right, 0 none.
+     * @param dy -1 up, 1 down, 0 none.
+     */
+    synchronized void pan(int dx, int dy) {
+        centerX += dx * PAN_STEP / zoom;
+        centerY += dy * PAN_STEP / zoom;
+        changed();
+    }
+
+    /**
+     * Computes the region in pixels of a picture of the given size.
+     * @param out Rectangle to store the region in.
+     */
+    synchronized void getRegion(int width, int height, Rect out) {
+        int regionWidth = Math.max(1, width / zoom);
+        int regionHeight = Math.max(1, height / zoom);
+        int left = clamp(Math.round(centerX * width) - regionWidth / 2, width - regionWidth);
+        int top = clamp(Math.round(centerY * height) - regionHeight / 2, height - regionHeight);
+        out.set(left, top, left + regionWidth, top + regionHeight);
+    }
+
+    /**
+     * @return {@link Command#GET_PICTURE_ROI} command for the current region, the same instance
+     * until the region changes.
+     */
+    synchronized String getRoiCommand() {
+        if (roiCommand == null) {
+            Rect region = new Rect();
+            getRegion(ROI_SCALE, ROI_SCALE, region);
+            roiCommand = Command.GET_PICTURE_ROI + ":" + region.left + "," + region.top + ","
+                    + region.right + "," + region.bottom;
+        }
+        return roiCommand;
+    }
+
+    private void changed() {
+        // Keep the center where the whole region fits into the picture.
+        float half = 0.5f / zoom;
+        centerX = Math.max(half, Math.min(1 - half, centerX));
+        centerY = Math.max(half, Math.min(1 - half, centerY));
+        roiCommand = null;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+}